@@ -0,0 +1,56 @@
+package org.six11.util.math;
+
+/**
+ * Solves A x = b for a symmetric positive definite A, given only as a SymmetricOperator, by the
+ * conjugate gradient method. With SparseMatrix.getNormalOperator() this solves a damped
+ * Gauss-Newton step without ever forming J'J.
+ */
+public class ConjugateGradient {
+
+  /**
+   * Improves x in place, starting from whatever x holds, until |b - Ax| is at most tolerance times
+   * |b| or maxIterations is reached. Returns the number of iterations used.
+   */
+  public static int solve(SymmetricOperator a, double[] b, double[] x, int maxIterations,
+      double tolerance) {
+    int n = a.getDimension();
+    double[] r = new double[n];
+    double[] p = new double[n];
+    double[] ap = new double[n];
+    a.multiply(x, ap);
+    double bNorm = 0;
+    double rr = 0;
+    for (int i = 0; i < n; i++) {
+      r[i] = b[i] - ap[i];
+      p[i] = r[i];
+      rr += r[i] * r[i];
+      bNorm += b[i] * b[i];
+    }
+    double goal = tolerance * tolerance * bNorm;
+    int iter = 0;
+    while (iter < maxIterations && rr > goal) {
+      iter++;
+      a.multiply(p, ap);
+      double pap = 0;
+      for (int i = 0; i < n; i++) {
+        pap += p[i] * ap[i];
+      }
+      if (!(pap > 0)) {
+        break; // not positive definite along p
+      }
+      double alpha = rr / pap;
+      double rrNext = 0;
+      for (int i = 0; i < n; i++) {
+        x[i] += alpha * p[i];
+        r[i] -= alpha * ap[i];
+        rrNext += r[i] * r[i];
+      }
+      double beta = rrNext / rr;
+      for (int i = 0; i < n; i++) {
+        p[i] = r[i] + beta * p[i];
+      }
+      rr = rrNext;
+    }
+    return iter;
+  }
+}
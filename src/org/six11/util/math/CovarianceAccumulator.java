@@ -0,0 +1,148 @@
+package org.six11.util.math;
+
+/**
+ * Computes the means and covariance of a stream of sample vectors in one pass, without keeping the
+ * samples (Welford's method). Only the upper triangle of the covariance is stored.
+ *
+ * An accumulator is not thread-safe. To use several threads, give each its own accumulator and
+ * merge() them at the end; the result is the same as if one accumulator had seen every sample.
+ *
+ * The accumulator is also a SymmetricOperator that multiplies by the sample covariance, so
+ * TopEigen can find its principal components directly.
+ */
+public class CovarianceAccumulator implements SymmetricOperator {
+
+  private final int dim;
+  private long count;
+  private final double[] mean;
+  private final double[] comoment; // sum of (x_i - mean_i)(x_j - mean_j), packed upper triangle
+  private final double[] delta;
+
+  public CovarianceAccumulator(int dimension) {
+    this.dim = dimension;
+    this.mean = new double[dim];
+    this.comoment = new double[dim * (dim + 1) / 2];
+    this.delta = new double[dim];
+  }
+
+  public int getDimension() {
+    return dim;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public void add(double[] sample) {
+    count++;
+    for (int i = 0; i < dim; i++) {
+      delta[i] = sample[i] - mean[i];
+      mean[i] += delta[i] / count;
+    }
+    int k = 0;
+    for (int i = 0; i < dim; i++) {
+      double di = delta[i];
+      for (int j = i; j < dim; j++) {
+        comoment[k++] += di * (sample[j] - mean[j]);
+      }
+    }
+  }
+
+  public void addAll(double[][] samples) {
+    for (double[] sample : samples) {
+      add(sample);
+    }
+  }
+
+  /**
+   * Folds the samples another accumulator has seen into this one (Chan et al.'s pairwise update).
+   * The other accumulator is not changed.
+   */
+  public void merge(CovarianceAccumulator other) {
+    if (other.dim != dim) {
+      throw new IllegalArgumentException("Can't merge a " + other.dim + "-dimensional accumulator into a "
+          + dim + "-dimensional one.");
+    }
+    if (other.count == 0) {
+      return;
+    }
+    long total = count + other.count;
+    double scale = (double) count * other.count / total;
+    for (int i = 0; i < dim; i++) {
+      delta[i] = other.mean[i] - mean[i];
+    }
+    int k = 0;
+    for (int i = 0; i < dim; i++) {
+      for (int j = i; j < dim; j++) {
+        comoment[k] += other.comoment[k] + delta[i] * delta[j] * scale;
+        k++;
+      }
+    }
+    for (int i = 0; i < dim; i++) {
+      mean[i] += delta[i] * other.count / total;
+    }
+    count = total;
+  }
+
+  /**
+   * Returns a copy of the per-dimension means.
+   */
+  public double[] getMeans() {
+    return mean.clone();
+  }
+
+  /**
+   * The sample covariance (divided by count - 1) of dimensions i and j.
+   */
+  public double getCovariance(int i, int j) {
+    if (i > j) {
+      int t = i;
+      i = j;
+      j = t;
+    }
+    return comoment[index(i, j)] / (count - 1);
+  }
+
+  /**
+   * The full sample covariance matrix. This is dimension squared doubles; for large dimensions use
+   * this object as a SymmetricOperator instead.
+   */
+  public double[][] getCovariance() {
+    double[][] ret = new double[dim][dim];
+    double norm = 1.0 / (count - 1);
+    int k = 0;
+    for (int i = 0; i < dim; i++) {
+      for (int j = i; j < dim; j++) {
+        ret[i][j] = comoment[k] * norm;
+        ret[j][i] = ret[i][j];
+        k++;
+      }
+    }
+    return ret;
+  }
+
+  public void multiply(double[] x, double[] y) {
+    double norm = 1.0 / (count - 1);
+    for (int i = 0; i < dim; i++) {
+      y[i] = 0;
+    }
+    int k = 0;
+    for (int i = 0; i < dim; i++) {
+      double xi = x[i];
+      double yi = comoment[k++] * xi;
+      for (int j = i + 1; j < dim; j++) {
+        double c = comoment[k++];
+        yi += c * x[j];
+        y[j] += c * xi;
+      }
+      y[i] += yi;
+    }
+    for (int i = 0; i < dim; i++) {
+      y[i] *= norm;
+    }
+  }
+
+  private int index(int i, int j) {
+    return i * dim - i * (i - 1) / 2 + (j - i);
+  }
+}
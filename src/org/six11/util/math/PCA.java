@@ -5,10 +5,9 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.SortedSet;
 import java.util.StringTokenizer;
-import java.util.TreeSet;
 
 import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
@@ -110,7 +109,7 @@ public class PCA {
     }
     Matrix originalData = new Matrix(matrix);
     bug("Here is the original data from " + source + ", before adjusting by each dimension mean:");
-    originalData.print(8, 4);
+    print(originalData);
 
     PCA pca = new PCA(matrix);
 
@@ -125,19 +124,19 @@ public class PCA {
     }
     Matrix features = PCA.getDominantComponentsMatrix(mainComponents);
     bug("Feature matrix (k=" + k + ") :");
-    features.print(8, 4);
+    print(features);
 
     Matrix featuresXpose = features.transpose();
     bug("Xposed feature matrix (k=" + k + ") :");
-    featuresXpose.print(8, 4);
+    print(featuresXpose);
 
     double[][] matrixAdjusted = PCA.getMeanAdjusted(matrix, pca.getMeans());
     Matrix adjustedInput = new Matrix(matrixAdjusted);
     bug("Original input adjusted by dimension means (k=" + k + ") :");
-    adjustedInput.print(8, 4);
+    print(adjustedInput);
     Matrix xformedData = featuresXpose.times(adjustedInput.transpose());
     bug("Transformed data into PCA-space (k=" + k + ") :");
-    xformedData.transpose().print(8, 4);
+    print(xformedData.transpose());
 
     k = 1;
     mainComponents = pca.getDominantComponents(k);
@@ -148,28 +147,33 @@ public class PCA {
     }
     features = PCA.getDominantComponentsMatrix(mainComponents);
     bug("Feature matrix (k=" + k + ") :");
-    features.print(8, 4);
+    print(features);
 
     featuresXpose = features.transpose();
     bug("Xposed feature matrix (k=" + k + ") :");
-    featuresXpose.print(8, 4);
+    print(featuresXpose);
 
     matrixAdjusted = PCA.getMeanAdjusted(matrix, pca.getMeans());
     adjustedInput = new Matrix(matrixAdjusted);
     bug("Original input adjusted by dimension means (k=" + k + ") :");
-    adjustedInput.print(8, 4);
+    print(adjustedInput);
     xformedData = featuresXpose.times(adjustedInput.transpose());
     bug("Transformed data into PCA-space (k=" + k + ") :");
-    xformedData.transpose().print(8, 4);
+    print(xformedData.transpose());
 
   }
 
+  private static final int MAX_ROUNDS = 500;
+  private static final int MAX_PRINTED = 400; // matrix cells main() will print
+  private static final double TOLERANCE = 1e-10;
+
   Matrix covMatrix;
   EigenvalueDecomposition eigenstuff;
   double[] eigenvalues;
   Matrix eigenvectors;
-  SortedSet<PrincipleComponent> principleComponents;
+  List<PrincipleComponent> principleComponents;
   double[] means;
+  CovarianceAccumulator covariance; // null unless made from an accumulator
 
   public PCA(double[][] input) {
     means = new double[input[0].length];
@@ -180,14 +184,27 @@ public class PCA {
     eigenvectors = eigenstuff.getV();
     double[][] vecs = eigenvectors.getArray();
     int numComponents = eigenvectors.getColumnDimension(); // same as num rows.
-    principleComponents = new TreeSet<PrincipleComponent>();
+    principleComponents = new ArrayList<PrincipleComponent>();
     for (int i = 0; i < numComponents; i++) {
       double[] eigenvector = new double[numComponents];
       for (int j = 0; j < numComponents; j++) {
-        eigenvector[j] = vecs[i][j];
+        eigenvector[j] = vecs[j][i]; // eigenvectors are the columns of V
       }
       principleComponents.add(new PrincipleComponent(eigenvalues[i], eigenvector));
     }
+    Collections.sort(principleComponents);
+  }
+
+  /**
+   * Uses the covariance gathered by a CovarianceAccumulator, so the samples never need to be in
+   * memory at once. Nothing is decomposed here: getDominantComponents(n) finds just the top n
+   * components by subspace iteration, which is far cheaper than a full decomposition when there
+   * are many dimensions.
+   */
+  public PCA(CovarianceAccumulator covariance) {
+    this.covariance = covariance;
+    this.means = covariance.getMeans();
+    this.principleComponents = new ArrayList<PrincipleComponent>();
   }
 
   public double[] getMeans() {
@@ -222,14 +239,20 @@ public class PCA {
    * Returns the top n principle components in descending order of relevance.
    */
   public List<PrincipleComponent> getDominantComponents(int n) {
+    if (covariance != null && principleComponents.size() < Math.min(n, getNumComponents())) {
+      TopEigen top = new TopEigen(covariance, n, MAX_ROUNDS, TOLERANCE, 0);
+      principleComponents.clear();
+      for (int i = 0; i < top.getEigenvalues().length; i++) {
+        principleComponents.add(new PrincipleComponent(top.getEigenvalues()[i], top
+            .getEigenvector(i)));
+      }
+    }
     List<PrincipleComponent> ret = new ArrayList<PrincipleComponent>();
-    int count = 0;
     for (PrincipleComponent pc : principleComponents) {
-      ret.add(pc);
-      count++;
-      if (count >= n) {
+      if (ret.size() >= n) {
         break;
       }
+      ret.add(pc);
     }
     return ret;
   }
@@ -247,7 +270,7 @@ public class PCA {
   }
 
   public int getNumComponents() {
-    return eigenvalues.length;
+    return covariance == null ? eigenvalues.length : covariance.getDimension();
   }
 
   public static class PrincipleComponent implements Comparable<PrincipleComponent> {
@@ -321,6 +344,17 @@ public class PCA {
     return ret;
   }
 
+  /**
+   * Prints a small matrix in full, or just the size of a big one.
+   */
+  private static void print(Matrix m) {
+    if (m.getRowDimension() * m.getColumnDimension() <= MAX_PRINTED) {
+      m.print(8, 4);
+    } else {
+      bug("  (" + m.getRowDimension() + " x " + m.getColumnDimension() + " matrix, not printed)");
+    }
+  }
+
   private static void bug(String what) {
     Debug.out("PCA", what);
   }
@@ -0,0 +1,210 @@
+package org.six11.util.math;
+
+import java.util.Arrays;
+
+/**
+ * A sparse rectangular matrix in compressed sparse row form, meant for things like constraint
+ * Jacobians where each row only touches a handful of columns. Fill it with add(), which sums
+ * entries given more than once, then multiply. The first multiply compresses the entries; adding
+ * more after that is allowed and recompresses on the next multiply.
+ *
+ * getNormalOperator() gives the damped normal equations (A'A + lambda diag(A'A)) as a
+ * SymmetricOperator without forming A'A, for use with ConjugateGradient.
+ */
+public class SparseMatrix {
+
+  private final int rows;
+  private final int cols;
+
+  // entries as given to add(), in no particular order
+  private int[] addRow = new int[16];
+  private int[] addCol = new int[16];
+  private double[] addVal = new double[16];
+  private int numAdded;
+
+  // compressed form: row r's entries are colIdx/vals[rowStart[r] .. rowStart[r + 1])
+  private int[] rowStart;
+  private int[] colIdx;
+  private double[] vals;
+  private boolean compressed;
+
+  public SparseMatrix(int rows, int cols) {
+    this.rows = rows;
+    this.cols = cols;
+  }
+
+  public int getRowCount() {
+    return rows;
+  }
+
+  public int getColumnCount() {
+    return cols;
+  }
+
+  /**
+   * Adds v to the entry at (row, col).
+   */
+  public void add(int row, int col, double v) {
+    if (row < 0 || row >= rows || col < 0 || col >= cols) {
+      throw new IndexOutOfBoundsException("(" + row + ", " + col + ") is outside a " + rows + " x "
+          + cols + " matrix");
+    }
+    if (numAdded == addRow.length) {
+      int size = numAdded * 2;
+      addRow = Arrays.copyOf(addRow, size);
+      addCol = Arrays.copyOf(addCol, size);
+      addVal = Arrays.copyOf(addVal, size);
+    }
+    addRow[numAdded] = row;
+    addCol[numAdded] = col;
+    addVal[numAdded] = v;
+    numAdded++;
+    compressed = false;
+  }
+
+  /**
+   * The number of distinct stored entries.
+   */
+  public int getNonZeroCount() {
+    compress();
+    return rowStart[rows];
+  }
+
+  public double get(int row, int col) {
+    compress();
+    double ret = 0;
+    for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+      if (colIdx[k] == col) {
+        ret = vals[k];
+        break;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * y = A x. x has getColumnCount() elements and y has getRowCount().
+   */
+  public void times(double[] x, double[] y) {
+    compress();
+    for (int r = 0; r < rows; r++) {
+      double sum = 0;
+      for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+        sum += vals[k] * x[colIdx[k]];
+      }
+      y[r] = sum;
+    }
+  }
+
+  /**
+   * y = A' x. x has getRowCount() elements and y has getColumnCount().
+   */
+  public void transposeTimes(double[] x, double[] y) {
+    compress();
+    Arrays.fill(y, 0, cols, 0);
+    for (int r = 0; r < rows; r++) {
+      double xr = x[r];
+      if (xr != 0) {
+        for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+          y[colIdx[k]] += vals[k] * xr;
+        }
+      }
+    }
+  }
+
+  /**
+   * The diagonal of A'A, which is the sum of squares of each column.
+   */
+  public double[] getColumnSquares() {
+    compress();
+    double[] ret = new double[cols];
+    for (int k = 0; k < rowStart[rows]; k++) {
+      ret[colIdx[k]] += vals[k] * vals[k];
+    }
+    return ret;
+  }
+
+  /**
+   * The operator (A'A + lambda * diag(A'A)), the damped Gauss-Newton system of a Jacobian A. As in
+   * the Levenberg-Marquardt solver, a diagonal entry is never damped by less than lambda * 1e-9, so
+   * an empty column doesn't make the system singular.
+   */
+  public SymmetricOperator getNormalOperator(final double lambda) {
+    compress();
+    final double[] damping = getColumnSquares();
+    for (int i = 0; i < cols; i++) {
+      damping[i] = lambda * Math.max(damping[i], 1e-9);
+    }
+    final double[] tmp = new double[rows];
+    return new SymmetricOperator() {
+      public int getDimension() {
+        return cols;
+      }
+
+      public void multiply(double[] x, double[] y) {
+        times(x, tmp);
+        transposeTimes(tmp, y);
+        for (int i = 0; i < cols; i++) {
+          y[i] += damping[i] * x[i];
+        }
+      }
+    };
+  }
+
+  /**
+   * Sorts the added entries by row and column and sums duplicates, by counting sort on rows.
+   */
+  private void compress() {
+    if (compressed) {
+      return;
+    }
+    int[] start = new int[rows + 1];
+    for (int k = 0; k < numAdded; k++) {
+      start[addRow[k] + 1]++;
+    }
+    for (int r = 0; r < rows; r++) {
+      start[r + 1] += start[r];
+    }
+    int[] next = Arrays.copyOf(start, rows);
+    int[] cIdx = new int[numAdded];
+    double[] v = new double[numAdded];
+    for (int k = 0; k < numAdded; k++) {
+      int slot = next[addRow[k]]++;
+      cIdx[slot] = addCol[k];
+      v[slot] = addVal[k];
+    }
+    // within each row, sort by column and merge duplicates
+    rowStart = new int[rows + 1];
+    int out = 0;
+    for (int r = 0; r < rows; r++) {
+      rowStart[r] = out;
+      int from = start[r];
+      int to = start[r + 1];
+      for (int i = from + 1; i < to; i++) { // insertion sort; rows are short
+        int c = cIdx[i];
+        double val = v[i];
+        int j = i - 1;
+        while (j >= from && cIdx[j] > c) {
+          cIdx[j + 1] = cIdx[j];
+          v[j + 1] = v[j];
+          j--;
+        }
+        cIdx[j + 1] = c;
+        v[j + 1] = val;
+      }
+      for (int i = from; i < to; i++) {
+        if (out > rowStart[r] && cIdx[out - 1] == cIdx[i]) {
+          v[out - 1] += v[i];
+        } else {
+          cIdx[out] = cIdx[i];
+          v[out] = v[i];
+          out++;
+        }
+      }
+    }
+    rowStart[rows] = out;
+    colIdx = cIdx;
+    vals = v;
+    compressed = true;
+  }
+}
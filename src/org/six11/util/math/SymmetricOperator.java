@@ -0,0 +1,21 @@
+package org.six11.util.math;
+
+/**
+ * A symmetric square matrix that is only ever used by multiplying it with vectors, such as a
+ * covariance matrix or the normal equations J'J of a sparse Jacobian. The iterative solvers in this
+ * package (TopEigen, ConjugateGradient) only need this much, so the matrix never has to be written
+ * out in full.
+ */
+public interface SymmetricOperator {
+
+  /**
+   * The number of rows (and columns).
+   */
+  public int getDimension();
+
+  /**
+   * Sets y to this matrix times x. Both arrays have getDimension() elements and are not the same
+   * array.
+   */
+  public void multiply(double[] x, double[] y);
+}
@@ -0,0 +1,165 @@
+package org.six11.util.math;
+
+import java.util.List;
+import java.util.Random;
+
+import Jama.Matrix;
+import junit.framework.TestCase;
+
+/**
+ * Checks the streaming covariance and top-k eigen paths against the dense ones.
+ */
+public class TestPCA extends TestCase {
+
+  /**
+   * Samples with a few strong directions plus a little noise in every dimension.
+   */
+  private static double[][] makeSamples(int count, int dim, long seed) {
+    Random rand = new Random(seed);
+    double[][] dirs = new double[3][dim];
+    for (double[] dir : dirs) {
+      for (int j = 0; j < dim; j++) {
+        dir[j] = rand.nextGaussian();
+      }
+    }
+    double[] weights = new double[] {
+        10, 5, 2
+    };
+    double[][] ret = new double[count][dim];
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < dim; j++) {
+        ret[i][j] = 3 + 0.1 * rand.nextGaussian();
+      }
+      for (int d = 0; d < dirs.length; d++) {
+        double c = weights[d] * rand.nextGaussian();
+        for (int j = 0; j < dim; j++) {
+          ret[i][j] += c * dirs[d][j];
+        }
+      }
+    }
+    return ret;
+  }
+
+  public void testAccumulator() {
+    double[][] samples = makeSamples(500, 6, 1);
+    double[] means = new double[6];
+    double[][] expected = PCA.getCovariance(samples, means);
+    CovarianceAccumulator all = new CovarianceAccumulator(6);
+    all.addAll(samples);
+    CovarianceAccumulator first = new CovarianceAccumulator(6);
+    CovarianceAccumulator second = new CovarianceAccumulator(6);
+    for (int i = 0; i < samples.length; i++) {
+      (i < 137 ? first : second).add(samples[i]);
+    }
+    first.merge(second);
+    assertEquals(500, first.getCount());
+    double[][] whole = all.getCovariance();
+    double[][] merged = first.getCovariance();
+    for (int i = 0; i < 6; i++) {
+      assertEquals(means[i], all.getMeans()[i], 1e-9);
+      assertEquals(means[i], first.getMeans()[i], 1e-9);
+      for (int j = 0; j < 6; j++) {
+        assertEquals(expected[i][j], whole[i][j], 1e-8);
+        assertEquals(expected[i][j], merged[i][j], 1e-8);
+      }
+    }
+    double[] x = new double[] {
+        1, -2, 0.5, 3, 0, 1
+    };
+    double[] y = new double[6];
+    all.multiply(x, y);
+    for (int i = 0; i < 6; i++) {
+      double sum = 0;
+      for (int j = 0; j < 6; j++) {
+        sum += expected[i][j] * x[j];
+      }
+      assertEquals(sum, y[i], 1e-8);
+    }
+  }
+
+  public void testTopComponents() {
+    double[][] samples = makeSamples(2000, 40, 2);
+    PCA dense = new PCA(samples);
+    CovarianceAccumulator acc = new CovarianceAccumulator(40);
+    acc.addAll(samples);
+    PCA streaming = new PCA(acc);
+    assertEquals(40, streaming.getNumComponents());
+    List<PCA.PrincipleComponent> expected = dense.getDominantComponents(3);
+    List<PCA.PrincipleComponent> actual = streaming.getDominantComponents(3);
+    assertEquals(3, actual.size());
+    for (int i = 0; i < 3; i++) {
+      double[] u = expected.get(i).eigenVector;
+      double[] v = actual.get(i).eigenVector;
+      assertEquals(expected.get(i).eigenValue, actual.get(i).eigenValue,
+          1e-6 * expected.get(0).eigenValue);
+      double dot = 0;
+      for (int j = 0; j < u.length; j++) {
+        dot += u[j] * v[j];
+      }
+      assertEquals(1, Math.abs(dot), 1e-6);
+    }
+  }
+
+  public void testSmithExample() {
+    double[][] data = new double[][] {
+        {
+            2.5, 2.4
+        }, {
+            0.5, 0.7
+        }, {
+            2.2, 2.9
+        }, {
+            1.9, 2.2
+        }, {
+            3.1, 3.0
+        }, {
+            2.3, 2.7
+        }, {
+            2, 1.6
+        }, {
+            1, 1.1
+        }, {
+            1.5, 1.6
+        }, {
+            1.1, 0.9
+        }
+    };
+    PCA.PrincipleComponent pc = new PCA(data).getDominantComponents(1).get(0);
+    assertEquals(1.28402771, pc.eigenValue, 1e-6);
+    assertEquals(0.677873399, Math.abs(pc.eigenVector[0]), 1e-6);
+    assertEquals(0.735178656, Math.abs(pc.eigenVector[1]), 1e-6);
+  }
+
+  public void testSparseNormalEquations() {
+    Random rand = new Random(3);
+    int rows = 60;
+    int cols = 20;
+    SparseMatrix a = new SparseMatrix(rows, cols);
+    Matrix dense = new Matrix(rows, cols);
+    for (int r = 0; r < rows; r++) {
+      for (int k = 0; k < 3; k++) {
+        int c = (r + k * 7) % cols;
+        double v = rand.nextGaussian();
+        a.add(r, c, v);
+        dense.set(r, c, dense.get(r, c) + v);
+      }
+    }
+    a.add(0, 0, 1); // a duplicate entry gets summed
+    dense.set(0, 0, dense.get(0, 0) + 1);
+    assertEquals(dense.get(0, 0), a.get(0, 0), 0);
+    double[] resid = new double[rows];
+    for (int r = 0; r < rows; r++) {
+      resid[r] = rand.nextGaussian();
+    }
+    double[] rhs = new double[cols];
+    a.transposeTimes(resid, rhs);
+    double[] x = new double[cols];
+    int iters = ConjugateGradient.solve(a.getNormalOperator(0), rhs, x, 200, 1e-12);
+    assertTrue(iters <= 200);
+    Matrix expected = dense.transpose().times(dense).solve(
+        dense.transpose().times(new Matrix(resid, rows)));
+    for (int i = 0; i < cols; i++) {
+      assertEquals(expected.get(i, 0), x[i], 1e-8);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package org.six11.util.math;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+/**
+ * Finds the k largest eigenvalues and their eigenvectors of a symmetric positive semi-definite
+ * operator by randomized subspace iteration. Each round multiplies a block of a few more than k
+ * vectors by the operator, re-orthonormalizes them, and solves the small projected problem with
+ * Jama. The cost per round is about k multiplications, so this is much cheaper than a full
+ * eigendecomposition when k is small compared to the dimension.
+ */
+public class TopEigen {
+
+  private static final int OVERSAMPLE = 5;
+
+  private final double[] values;
+  private final double[][] vectors;
+  private final int rounds;
+
+  /**
+   * @param k
+   *          how many eigenpairs to find.
+   * @param maxRounds
+   *          the most subspace iterations to do.
+   * @param tolerance
+   *          stop when every wanted eigenpair's residual |Av - lambda v| is below tolerance times
+   *          the largest eigenvalue.
+   * @param seed
+   *          for the random starting block, so results are repeatable.
+   */
+  public TopEigen(SymmetricOperator op, int k, int maxRounds, double tolerance, long seed) {
+    int d = op.getDimension();
+    k = Math.min(k, d);
+    int p = Math.min(d, k + OVERSAMPLE);
+    Random rand = new Random(seed);
+    double[][] q = new double[p][d]; // q[i] is the i'th basis vector
+    double[][] z = new double[p][d];
+    for (int i = 0; i < p; i++) {
+      for (int j = 0; j < d; j++) {
+        q[i][j] = rand.nextGaussian();
+      }
+    }
+    orthonormalize(q);
+    double[] theta = null;
+    double[][] w = null; // w[i] holds the coordinates of Ritz vector i in basis q
+    double[] ritz = new double[d];
+    double[] resid = new double[d];
+    int round = 0;
+    boolean converged = false;
+    while (!converged && round < maxRounds) {
+      round++;
+      for (int i = 0; i < p; i++) {
+        op.multiply(q[i], z[i]);
+      }
+      // Rayleigh-Ritz: eigen-solve the projection T = Q'AQ.
+      Matrix t = new Matrix(p, p);
+      for (int i = 0; i < p; i++) {
+        for (int j = i; j < p; j++) {
+          double v = dot(q[i], z[j]);
+          t.set(i, j, v);
+          t.set(j, i, v);
+        }
+      }
+      EigenvalueDecomposition eig = t.eig();
+      double[] vals = eig.getRealEigenvalues();
+      double[][] vecs = eig.getV().getArray();
+      Integer[] order = descending(vals);
+      theta = new double[p];
+      w = new double[p][p];
+      for (int i = 0; i < p; i++) {
+        theta[i] = vals[order[i]];
+        for (int j = 0; j < p; j++) {
+          w[i][j] = vecs[j][order[i]];
+        }
+      }
+      // residual of each wanted pair is |Z w - theta Q w|
+      converged = true;
+      double scale = Math.max(Math.abs(theta[0]), Double.MIN_NORMAL);
+      for (int i = 0; i < k && converged; i++) {
+        combine(q, w[i], ritz);
+        combine(z, w[i], resid);
+        double sum = 0;
+        for (int j = 0; j < d; j++) {
+          double e = resid[j] - theta[i] * ritz[j];
+          sum += e * e;
+        }
+        converged = Math.sqrt(sum) <= tolerance * scale;
+      }
+      if (!converged && round < maxRounds) {
+        double[][] swap = q;
+        q = z;
+        z = swap;
+        orthonormalize(q);
+      }
+    }
+    this.rounds = round;
+    this.values = new double[k];
+    this.vectors = new double[k][];
+    for (int i = 0; i < k; i++) {
+      values[i] = theta[i];
+      vectors[i] = new double[d];
+      combine(q, w[i], vectors[i]);
+    }
+  }
+
+  /**
+   * The eigenvalues found, largest first.
+   */
+  public double[] getEigenvalues() {
+    return values;
+  }
+
+  /**
+   * Unit eigenvector i, matching getEigenvalues()[i].
+   */
+  public double[] getEigenvector(int i) {
+    return vectors[i];
+  }
+
+  public int getRounds() {
+    return rounds;
+  }
+
+  private static double dot(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+  /**
+   * out = sum of coef[i] * basis[i].
+   */
+  private static void combine(double[][] basis, double[] coef, double[] out) {
+    for (int j = 0; j < out.length; j++) {
+      out[j] = 0;
+    }
+    for (int i = 0; i < basis.length; i++) {
+      double c = coef[i];
+      double[] b = basis[i];
+      for (int j = 0; j < out.length; j++) {
+        out[j] += c * b[j];
+      }
+    }
+  }
+
+  /**
+   * Modified Gram-Schmidt. A vector that vanishes (the block is rank deficient) starts over along
+   * a coordinate axis; some axis always survives because there are no more vectors than dimensions.
+   */
+  private static void orthonormalize(double[][] q) {
+    for (int i = 0; i < q.length; i++) {
+      int axis = 0;
+      while (!orthogonalize(q, i)) {
+        Arrays.fill(q[i], 0);
+        q[i][axis++] = 1;
+      }
+    }
+  }
+
+  /**
+   * Makes q[i] a unit vector orthogonal to q[0..i). Returns false if nothing is left of it.
+   */
+  private static boolean orthogonalize(double[][] q, int i) {
+    double before = Math.sqrt(dot(q[i], q[i]));
+    for (int pass = 0; pass < 2; pass++) { // twice, for round-off
+      for (int j = 0; j < i; j++) {
+        double c = dot(q[i], q[j]);
+        for (int k = 0; k < q[i].length; k++) {
+          q[i][k] -= c * q[j][k];
+        }
+      }
+    }
+    double norm = Math.sqrt(dot(q[i], q[i]));
+    boolean ret = norm > 1e-10 * before;
+    if (ret) {
+      for (int k = 0; k < q[i].length; k++) {
+        q[i][k] /= norm;
+      }
+    }
+    return ret;
+  }
+
+  private static Integer[] descending(final double[] vals) {
+    Integer[] order = new Integer[vals.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(vals[b], vals[a]);
+      }
+    });
+    return order;
+  }
+}
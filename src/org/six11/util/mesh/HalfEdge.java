@@ -19,13 +19,13 @@ public class HalfEdge {
   private HalfEdge next;
   private boolean boundary;
 
-  String id;
+  int id; // made into a String only when asked for, since edges are made by the million
   private static int ID_COUNTER = 0;
 
   public HalfEdge(Pt where, Triangle triangle) {
     this.vertex = where;
     this.face = triangle;
-    this.id = "" + ID_COUNTER++;
+    this.id = ID_COUNTER++;
   }
 
   /**
@@ -41,9 +41,9 @@ public class HalfEdge {
   }
 
   public String toString() {
-    String pairID = pair == null ? "?" : pair.id;
+    String pairID = pair == null ? "?" : pair.getId();
     String triID = face == null ? "?" : face.id;
-    String nextID = next == null ? "?" : next.id;
+    String nextID = next == null ? "?" : next.getId();
     String ptID = vertex == null ? "?" : vertex.getID() + "";
     return "[Edge " + id + " (point: " + ptID + ", pair: " + pairID + ", face: " + triID
         + ", next: " + nextID + ")]";
@@ -142,7 +142,7 @@ public class HalfEdge {
   }
 
   public String getId() {
-    return id;
+    return String.valueOf(id);
   }
 
   public void setBoundary(boolean b) {
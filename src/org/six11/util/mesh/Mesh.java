@@ -1,24 +1,19 @@
 package org.six11.util.mesh;
 
-import java.awt.Color;
-import java.awt.geom.Rectangle2D;
+import java.awt.geom.Point2D;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 
-import org.six11.util.pen.DrawingBufferRoutines;
 import org.six11.util.Debug;
 import org.six11.util.gui.BoundingBox;
-import org.six11.util.pen.CircleArc;
 import org.six11.util.pen.ConvexHull;
-import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.Functions;
 import org.six11.util.pen.IntersectionData;
 import org.six11.util.pen.Line;
 import org.six11.util.pen.Pt;
-import org.six11.util.pen.Vec;
 
 /**
  * 
@@ -29,25 +24,28 @@ public class Mesh {
 
   public static final String HALF_EDGE = "half-edge";
 
-  public static int fileCounter = 0;
-  public static File outDir = null;
-  public static String baseName = null;
-  public static boolean feelingSnappy = false;
+  private static final double WALK_TOL = 1e-12; // relative to edge length squared
+  private static final double SEG_TOL = 1e-9; // distance margin for touches()
+  private static final double ROOT_SCALE = 50; // root incircle radius per bounding box size
+  private static final int HILBERT_SIDE = 1 << 16; // grid cells per side for getBulkOrder()
+  private static final long BULK_SEED = 1; // so bulk loading is repeatable
 
   boolean sequenceMatters;
   List<Pt> allPoints;
   Set<Triangle> triangles;
   List<Pt> rootPoints;
   boolean dirty = true;
+  boolean classified; // every triangle has been labeled, so classifyTriangles() can just update
+  List<HalfEdge> newBoundaries = new ArrayList<HalfEdge>(); // made since the last classification
+  int floodMark; // last mark used by reclassify()
+  Set<Point2D> vertexLocations; // where the points in allPoints are, for duplicate checks
+  Triangle lastTriangle; // a recently made triangle, where findTriangle() starts walking
+  MeshTracer tracer = MeshTracer.NONE;
 
   public static void main(String[] args) throws IOException {
     Debug.useColor = false;
     Debug.useTime = false;
     File inFile = new File(args[0]);
-    outDir = inFile.getParentFile();
-    int dotIdx = inFile.getName().indexOf(".");
-    baseName = inFile.getName().substring(0, dotIdx);
-    feelingSnappy = true;
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     List<Pt> data = new ArrayList<Pt>();
     while (br.ready()) {
@@ -62,21 +60,18 @@ public class Mesh {
     // Mesh mesh = new Mesh(data, true);
     Mesh mesh = new Mesh();
     mesh.setSequenceMatters(true);
+    mesh.setTracer(new MeshTracerAdapter() {
+      public void pointAdded(Mesh m, Pt pt) {
+        bug("Added " + Debug.num(pt) + ": " + m.getPoints().size() + " points, " + m.size()
+            + " triangles");
+      }
+    });
     for (Pt pt : data) {
       mesh.addPoint(pt);
       mesh.classifyTriangles();
     }
-    snap(mesh, "Final State!");
-  }
-
-  private static void snap(Mesh mesh, String msg) {
-    if (feelingSnappy && outDir != null && baseName != null) {
-      DrawingBuffer db = new DrawingBuffer();
-      if (msg != null) {
-        db.addText(msg, Color.BLACK, DrawingBufferRoutines.defaultFont);
-      }
-      DrawingBufferRoutines.meshDebug(db, mesh);
-    }
+    bug("Final state: " + mesh.getInsideTriangles().size() + " of " + mesh.size()
+        + " triangles inside.");
   }
 
   public static HalfEdge he(Pt pt) {
@@ -84,79 +79,172 @@ public class Mesh {
   }
 
   public Mesh() {
+    this(new Pt(4000, 0), new Pt(-4000, 4000), new Pt(-4000, -4000));
+  }
+
+  /**
+   * An empty mesh whose root triangle has the given counterclockwise corners.
+   */
+  Mesh(Pt vertA, Pt vertB, Pt vertC) {
     this.allPoints = new ArrayList<Pt>();
+    this.vertexLocations = new HashSet<Point2D>();
     this.triangles = new HashSet<Triangle>();
-    Pt vertA = new Pt(4000, 0);
-    Pt vertB = new Pt(-4000, 4000);
-    Pt vertC = new Pt(-4000, -4000);
     Triangle root = new Triangle(vertA, vertB, vertC);
     this.rootPoints = new ArrayList<Pt>(root.getPoints());
     triangles.add(root);
+    lastTriangle = root;
   }
 
   public Mesh(List<Pt> points, boolean sequenceMatters) {
+    this(points, sequenceMatters, true);
+  }
+
+  /**
+   * Makes a mesh of the given points inside a root triangle sized to fit them. If sequenceMatters,
+   * points are added in the given order and each consecutive pair becomes an edge. Otherwise they
+   * are bulk loaded in the order from getBulkOrder(), so each one is found near the last, and
+   * getPoints() is put back in the given order afterwards. With verify set, every triangle is
+   * checked and the result logged. That costs about as much as the build, so pass false when not
+   * debugging.
+   */
+  public Mesh(List<Pt> points, boolean sequenceMatters, boolean verify) {
+    this(points, sequenceMatters, verify, MeshTracer.NONE);
+  }
+
+  /**
+   * As Mesh(List, boolean, boolean), with the tracer attached before any points are added.
+   */
+  public Mesh(List<Pt> points, boolean sequenceMatters, boolean verify, MeshTracer tracer) {
     this();
     long start = System.nanoTime();
     this.sequenceMatters = sequenceMatters;
 
-    if (points.size() > 2) {
-      BoundingBox bb = new BoundingBox();
-      for (Pt pt : points) {
-        bb.add(pt);
-      }
-      bb.grow(2000);
-      Rectangle2D boundingRect = bb.getRectangle();
-      List<Pt> box = new ArrayList<Pt>();
-      box.add(new Pt(boundingRect.getMinX(), boundingRect.getMinY())); // p0
-      box.add(new Pt(boundingRect.getMaxX(), boundingRect.getMinY())); // p1
-      box.add(new Pt(boundingRect.getMaxX(), boundingRect.getMaxY())); // p2
-      box.add(new Pt(boundingRect.getMinX(), boundingRect.getMaxY())); // p3
-
-      Line top = new Line(box.get(0), box.get(1));
-      Line side = new Line(box.get(2), box.get(1));
-      Vec sideVec = new Vec(side);
-      Line bot = new Line(box.get(2), box.get(3));
-      Pt topMid = top.getMidpoint();
-      Pt vertA = new Pt(topMid.x - sideVec.getX(), topMid.y - sideVec.getY());
-      Line toB = new Line(vertA, box.get(0));
-      Line toC = new Line(vertA, box.get(1));
-      Pt vertBHalf = Functions.getIntersectionPoint(toB, bot);
-      Pt vertCHalf = Functions.getIntersectionPoint(toC, bot);
-      if (vertBHalf == null) {
-        warn("vertBHalf is null. Box is: " + box);
-      }
-      if (vertCHalf == null) {
-        warn("vertCHalf is null. I will fail now.");
-      }
-      Pt vertB = Functions.getEndPoint(vertBHalf, new Vec(vertA, vertBHalf));
-      Pt vertC = Functions.getEndPoint(vertCHalf, new Vec(vertA, vertCHalf));
-      Triangle root = new Triangle(vertA, vertB, vertC);
-      this.rootPoints = new ArrayList<Pt>(root.getPoints());
-      triangles.add(root);
-    } else if (points.size() > 0) {
-      Pt happy = points.get(0);
-      Triangle root = new Triangle(happy.getTranslated(0, -2000), happy.getTranslated(-2000, 2000),
-          happy.getTranslated(2000, 2000));
+    if (points.size() > 0) {
+      Triangle root = makeRoot(points);
+      triangles.clear();
       this.rootPoints = new ArrayList<Pt>(root.getPoints());
       triangles.add(root);
+      lastTriangle = root;
     }
-    // and then add each point in 'points', fixing the mesh after each one. Not the fastest
-    // algorithm, but I'm dealing with relatively tiny regions.
-    for (Pt newVert : points) {
-      addPoint(newVert);
+    setTracer(tracer);
+    if (sequenceMatters) {
+      for (Pt newVert : points) {
+        addPoint(newVert);
+      }
+    } else {
+      for (Pt newVert : getBulkOrder(points)) {
+        addPoint(newVert);
+      }
+      Map<Pt, Pt> added = new IdentityHashMap<Pt, Pt>();
+      for (Pt pt : allPoints) {
+        added.put(pt, pt);
+      }
+      allPoints.clear();
+      for (Pt pt : points) {
+        if (added.remove(pt) != null) {
+          allPoints.add(pt);
+        }
+      }
     }
 
     classifyTriangles();
 
-    boolean ok = true;
-    for (Triangle t : triangles) {
-      for (Pt pt : t.getPoints()) {
-        ok = isDelaunay(pt, t);
+    if (verify) {
+      boolean ok = true;
+      for (Triangle t : triangles) {
+        for (Pt pt : t.getPoints()) {
+          ok = isDelaunay(pt, t) && ok;
+        }
       }
+      long end = System.nanoTime();
+      bug("Mesh OK? " + ok + " (took " + ((end - start) / 1000) + " microseconds to establish "
+          + triangles.size() + " triangles)");
     }
-    long end = System.nanoTime();
-    bug("Mesh OK? " + ok + " (took " + ((end - start) / 1000) + " microseconds to establish "
-        + triangles.size() + " triangles)");
+  }
+
+  /**
+   * A counterclockwise root triangle around the points. Its incircle is ROOT_SCALE times the size
+   * of their bounding box, so the root vertices are far enough away not to disturb the
+   * triangulation, but close enough that circle tests involving them keep their precision.
+   */
+  private static Triangle makeRoot(List<Pt> points) {
+    BoundingBox bb = new BoundingBox(points);
+    double r = ROOT_SCALE * Math.max(Math.max(bb.getWidth(), bb.getHeight()), 1);
+    double cx = bb.getX() + bb.getWidth() / 2;
+    double cy = bb.getY() + bb.getHeight() / 2;
+    double halfBase = Math.sqrt(3) * r;
+    return new Triangle(new Pt(cx, cy + 2 * r), new Pt(cx - halfBase, cy - r), new Pt(cx
+        + halfBase, cy - r));
+  }
+
+  /**
+   * The order to bulk load points in: a biased randomized insertion order (BRIO). Each point is put
+   * in the last round with probability 1/2, the one before with 1/4, and so on, and each round is
+   * sorted along a Hilbert curve over the bounding box. The random rounds keep the expected work
+   * per insertion low whatever order the points came in. The curve puts consecutive points next to
+   * each other, so findTriangle() only walks a few triangles each time.
+   */
+  static List<Pt> getBulkOrder(final List<Pt> points) {
+    int n = points.size();
+    final int[] round = new int[n];
+    final long[] curve = new long[n];
+    Integer[] order = new Integer[n];
+    if (n > 0) {
+      BoundingBox bb = new BoundingBox(points);
+      double scale = (HILBERT_SIDE - 1) / Math.max(Math.max(bb.getWidth(), bb.getHeight()), 1e-9);
+      int lastRound = 0;
+      while ((1 << lastRound) < n && lastRound < 30) {
+        lastRound++;
+      }
+      Random rand = new Random(BULK_SEED);
+      for (int i = 0; i < n; i++) {
+        int r = lastRound;
+        while (r > 0 && rand.nextBoolean()) {
+          r--;
+        }
+        round[i] = r;
+        Pt pt = points.get(i);
+        curve[i] = hilbertIndex((int) ((pt.x - bb.getX()) * scale), (int) ((pt.y - bb.getY())
+            * scale));
+        order[i] = i;
+      }
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int ret = round[a] - round[b];
+        if (ret == 0) {
+          ret = curve[a] < curve[b] ? -1 : (curve[a] > curve[b] ? 1 : 0);
+        }
+        return ret;
+      }
+    });
+    List<Pt> ret = new ArrayList<Pt>(n);
+    for (Integer i : order) {
+      ret.add(points.get(i));
+    }
+    return ret;
+  }
+
+  /**
+   * Distance along a Hilbert curve filling a HILBERT_SIDE x HILBERT_SIDE grid to the cell (x, y).
+   */
+  private static long hilbertIndex(int x, int y) {
+    long ret = 0;
+    for (int s = HILBERT_SIDE / 2; s > 0; s /= 2) {
+      int rx = (x & s) > 0 ? 1 : 0;
+      int ry = (y & s) > 0 ? 1 : 0;
+      ret += (long) s * s * ((3 * rx) ^ ry);
+      if (ry == 0) { // rotate the quadrant so the curve stays continuous
+        if (rx == 1) {
+          x = HILBERT_SIDE - 1 - x;
+          y = HILBERT_SIDE - 1 - y;
+        }
+        int tmp = x;
+        x = y;
+        y = tmp;
+      }
+    }
+    return ret;
   }
 
   public void setSequenceMatters(boolean v) {
@@ -164,55 +252,175 @@ public class Mesh {
   }
 
   /**
-   * Classify each triangle as Where.Inside or Where.Outside.
+   * Sets the tracer told about this mesh's work (see MeshTracer). Null means MeshTracer.NONE.
+   */
+  public void setTracer(MeshTracer tracer) {
+    this.tracer = tracer == null ? MeshTracer.NONE : tracer;
+    this.tracer.attached(this);
+  }
+
+  public MeshTracer getTracer() {
+    return tracer;
+  }
+
+  /**
+   * Classify each triangle as Where.Inside or Where.Outside. A triangle is Outside if it can be
+   * reached from a triangle touching the root points without crossing a boundary edge. The first
+   * call floods the whole mesh. Later calls only look near the boundary edges made since the last
+   * one (see reclassify()). Triangles made in between start with the label of the triangle they
+   * replaced.
    */
   public void classifyTriangles() {
-    bug("classifying triangles on mesh that is " + (dirty ? "dirty" : "clean"));
     if (dirty) {
-      Stack<Triangle> infinite = new Stack<Triangle>();
-      for (Triangle t : triangles) {
-        t.setLocation(Where.Unknown);
-        if (t.involvesPoints(rootPoints)) {
-          infinite.push(t);
-        }
+      if (classified) {
+        reclassify();
+      } else {
+        classifyAll();
       }
-      bug("Initialized all triangles to Unknown. I have " + infinite.size()
-          + " infinite triangles.");
-      classifyTriangles(infinite);
-      for (Triangle t : triangles) {
-        if (t.getMeshLocation() == Where.Unknown) {
-          t.setLocation(Where.Inside);
+      newBoundaries.clear();
+      classified = true;
+      dirty = false;
+    }
+  }
+
+  /**
+   * Labels every triangle, by flooding Outside from the infinite triangles. A triangle is labeled
+   * when it is pushed, so each is handled once.
+   */
+  private void classifyAll() {
+    List<Triangle> stack = new ArrayList<Triangle>();
+    for (Triangle t : triangles) {
+      t.setLocation(Where.Unknown);
+    }
+    for (Triangle t : triangles) {
+      if (t.involvesPoints(rootPoints)) {
+        t.setLocation(Where.Outside);
+        stack.add(t);
+      }
+    }
+    while (!stack.isEmpty()) {
+      Triangle t = stack.remove(stack.size() - 1);
+      tracer.triangleClassified(this, t, Where.Outside);
+      HalfEdge edge = t.getEdge();
+      for (int i = 0; i < 3; i++) {
+        if (!edge.isBoundary() && edge.getPair() != null) {
+          Triangle n = edge.getPair().getFace();
+          if (n.getMeshLocation() == Where.Unknown) {
+            n.setLocation(Where.Outside);
+            stack.add(n);
+          }
         }
+        edge = edge.getNext();
+      }
+    }
+    for (Triangle t : triangles) {
+      if (t.getMeshLocation() == Where.Unknown) {
+        t.setLocation(Where.Inside);
+        tracer.triangleClassified(this, t, Where.Inside);
       }
-      dirty = false;
     }
   }
 
-  private void classifyTriangles(Stack<Triangle> uncategorized) {
-    if (!uncategorized.isEmpty()) {
-      String sp = Debug.spaces(uncategorized.size() * 2);
-      Triangle classifyMe = uncategorized.pop();
-      classifyMe.setLocation(Where.Outside);
-      Set<Triangle> neighbors = classifyMe.getAdjacentTriangles();
-      bug(sp + classifyMe.id + " has " + neighbors.size() + " neighbors...");
-      for (Triangle n : neighbors) {
-        if (n.getMeshLocation() == Where.Unknown) {
-          HalfEdge common = classifyMe.getCommonEdge(n);
-          if (common != null) {
-            bug(sp + "common edge is non-null between " + classifyMe.id + " and " + n.id
-                + ". Is it a boundary? " + common.isBoundary());
-            if (!common.isBoundary()) {
-              uncategorized.push(n);
+  /**
+   * Updates labels after new boundary edges were made. Edges are only ever marked boundary, never
+   * unmarked, so regions can only be split. An Inside region stays Inside, and the only labels that
+   * can go wrong are in pieces cut off from the outside, each of which borders a new boundary edge.
+   * So this races one flood from each Outside triangle beside a new boundary edge, a triangle per
+   * turn, merging floods that meet. A group that reaches an infinite triangle stays Outside. A
+   * group that runs out of triangles without reaching one is a cut-off piece and becomes Inside.
+   * Exactly one piece still has the infinite triangles. So once only one group is undecided, it
+   * is that piece unless another group already reached them, and the race can stop. The work is
+   * about the size of the cut-off pieces, not of the mesh.
+   */
+  private void reclassify() {
+    List<Triangle> seeds = new ArrayList<Triangle>();
+    int base = floodMark;
+    for (HalfEdge edge : newBoundaries) {
+      if (edge.isBoundary() && edge.getPair() != null) {
+        for (Triangle t : new Triangle[] {
+            edge.getFace(), edge.getPair().getFace()
+        }) {
+          if (t.floodMark <= base && t.getMeshLocation() == Where.Outside && triangles.contains(t)) {
+            t.floodMark = base + 1 + seeds.size();
+            seeds.add(t);
+          }
+        }
+      }
+    }
+    int k = seeds.size();
+    floodMark += k;
+    List<List<Triangle>> floods = new ArrayList<List<Triangle>>(k); // each flood's queue
+    int[] heads = new int[k];
+    int[] group = new int[k]; // union-find parent
+    int[] open = new int[k]; // per group, member floods with triangles left to visit
+    boolean[] infinite = new boolean[k]; // per group
+    for (int f = 0; f < k; f++) {
+      List<Triangle> flood = new ArrayList<Triangle>();
+      flood.add(seeds.get(f));
+      floods.add(flood);
+      group[f] = f;
+      open[f] = 1;
+    }
+    int undecided = k;
+    boolean infiniteFound = false;
+    while (undecided > 1 || (undecided == 1 && infiniteFound)) {
+      for (int f = 0; f < k; f++) {
+        int g = findGroup(group, f);
+        List<Triangle> flood = floods.get(f);
+        if (infinite[g] || open[g] == 0 || heads[f] == flood.size()) {
+          continue;
+        }
+        Triangle t = flood.get(heads[f]++);
+        if (t.involvesPoints(rootPoints)) {
+          infinite[g] = true;
+          infiniteFound = true;
+          undecided--;
+        }
+        HalfEdge edge = t.getEdge();
+        for (int i = 0; i < 3 && !infinite[g]; i++) {
+          if (!edge.isBoundary() && edge.getPair() != null) {
+            Triangle n = edge.getPair().getFace();
+            if (n.floodMark > base) {
+              int other = findGroup(group, n.floodMark - base - 1);
+              if (other != g) { // two floods met, so they're in one region
+                group[other] = g;
+                open[g] += open[other];
+                infinite[g] = infinite[g] || infinite[other];
+                undecided--; // one fewer group, or g is decided now
+              }
+            } else {
+              n.floodMark = base + 1 + f;
+              flood.add(n);
             }
-          } else {
-            warn("Failed to find common edge between supposedly neighboring triangles");
+          }
+          edge = edge.getNext();
+        }
+        if (heads[f] == flood.size()) {
+          open[g]--;
+          if (open[g] == 0 && !infinite[g]) { // a whole region with no way out
+            for (int m = 0; m < k; m++) {
+              if (findGroup(group, m) == g) {
+                for (Triangle inside : floods.get(m)) {
+                  if (inside.getMeshLocation() != Where.Inside) {
+                    inside.setLocation(Where.Inside);
+                    tracer.triangleClassified(this, inside, Where.Inside);
+                  }
+                }
+              }
+            }
+            undecided--;
           }
         }
       }
     }
-    if (!uncategorized.isEmpty()) {
-      classifyTriangles(uncategorized);
+  }
+
+  private static int findGroup(int[] group, int f) {
+    while (group[f] != f) {
+      group[f] = group[group[f]];
+      f = group[f];
     }
+    return f;
   }
 
   public long getTime() {
@@ -244,7 +452,6 @@ public class Mesh {
           }
         }
       }
-      // snap(this, "fixMesh(): " + numRepaired + " repaired");
     } while (numRepaired > 0);
   }
 
@@ -257,6 +464,7 @@ public class Mesh {
   }
 
   public void computeInsideOutside() {
+    classified = false; // these labels don't come from the flood, so the next one starts over
     for (Triangle t : triangles) {
       boolean inside = isPointInRegion(t.getCentroid(), allPoints);
       if (inside) {
@@ -306,34 +514,24 @@ public class Mesh {
   }
 
   public boolean addPoint(Pt newVert) {
-    // snap(this, "addPoint(" + newVert.getID() + "), before");
     boolean ret = false;
-    // if sequence matters, find intersection points and insert them as well.
-    boolean insertedIntersectionPoint = false;
+    // if sequence matters, first add the points where the new segment crosses existing edges,
+    // nearest first, so the stroke can be kept as edges.
     if (sequenceMatters && allPoints.size() > 1) {
-      Pt currentEndPoint = allPoints.get(allPoints.size() - 1);
-      Line seg = new Line(currentEndPoint, newVert);
-      SortedSet<Pt> ix = getIntersections(seg);
-      // bug("Found " + ix.size() + " intersections.");
-      if (ix.size() > 0) {
-        Pt pt = ix.first();
-        // bug("inserting point: " + pt + " (id: " + pt.getID() + ")");
-        addPointNow(pt, false);
-        addPoint(newVert);
-        insertedIntersectionPoint = true;
-        // bug("done inserting point: " + pt + " (id: " + pt.getID() + ")");
+      Pt pt = getFirstIntersection(new Line(allPoints.get(allPoints.size() - 1), newVert));
+      while (pt != null && addPointNow(pt, false)) {
+        pt = getFirstIntersection(new Line(pt, newVert));
       }
     }
-    if (!insertedIntersectionPoint) {
-      addPointNow(newVert, false);
-    }
-    snap(this, "addPoint(" + newVert.getID() + "), after");
+    addPointNow(newVert, false);
+    tracer.pointAdded(this, newVert);
     return ret;
   }
 
   private boolean addPointNow(Pt newVert, boolean showDebug) {
     boolean ret = false;
-    if (!allPoints.contains(newVert)) {
+    // same test as allPoints.contains(newVert), which compares coordinates, without the scan
+    if (vertexLocations.add(new Point2D.Double(newVert.getX(), newVert.getY()))) {
       allPoints.add(newVert);
       dirty = true;
       TriangleWhere tw = findTriangle(newVert, showDebug);
@@ -359,43 +557,109 @@ public class Mesh {
     return ret;
   }
 
-  private void accumulateIntersection(Line seg, HalfEdge he, Set<Pt> accumulator) {
-    if (he.getPair() != null && he.getPoint().getID() < he.getPair().getPoint().getID()) {
-      Line other = new Line(he.getPoint(), he.getPair().getPoint());
-      IntersectionData id = Functions.getIntersectionData(seg, other);
-      if (id.intersectsStrictlyInsideSegments()) {
-        // bug("segments intersect: " + Debug.num(seg) + " and " + Debug.num(other) + " at "
-        // + Debug.num(id.getIntersection()) + " with params: " + id.getLineOneParam() + " and "
-        // + id.getLineTwoParam());
-        accumulator.add(id.getIntersection());
+  /**
+   * Finds where seg first strictly crosses a mesh edge, going from its start, or returns null if it
+   * crosses none. Rather than testing every edge in the mesh, this starts at the triangle holding
+   * seg's start and spreads only into neighbors that seg touches, so the work is proportional to the
+   * number of triangles the segment passes through. If seg's start can't be located this falls
+   * back to scanForIntersection().
+   */
+  Pt getFirstIntersection(Line seg) {
+    Pt ret = null;
+    double retDist = Double.MAX_VALUE;
+    Pt p = seg.getStart();
+    Pt q = seg.getEnd();
+    TriangleWhere start = findTriangle(p, false);
+    if (start != null) {
+      Set<Triangle> seen = new HashSet<Triangle>();
+      Stack<Triangle> corridor = new Stack<Triangle>();
+      seen.add(start.triangle);
+      corridor.push(start.triangle);
+      while (!corridor.isEmpty()) {
+        HalfEdge edge = corridor.pop().getEdge();
+        for (int i = 0; i < 3; i++) {
+          HalfEdge pair = edge.getPair();
+          if (pair != null) {
+            Pt a = edge.getPoint();
+            Pt b = pair.getPoint();
+            if (orient(p, q, a) * orient(p, q, b) <= 0) { // not both on one side, so maybe crossing
+              IntersectionData id = Functions.getIntersectionData(seg, new Line(a, b));
+              if (id.intersectsStrictlyInsideSegments()) {
+                double dist = p.distance(id.getIntersection());
+                if (dist < retDist) {
+                  ret = id.getIntersection();
+                  retDist = dist;
+                }
+              }
+            }
+            Triangle next = pair.getFace();
+            if (!seen.contains(next) && touches(p, q, next)) {
+              seen.add(next);
+              corridor.push(next);
+            }
+          }
+          edge = edge.getNext();
+        }
       }
+    } else {
+      ret = scanForIntersection(seg);
     }
+    return ret;
   }
 
-  private SortedSet<Pt> getIntersections(final Line seg) {
-    SortedSet<Pt> ret = new TreeSet<Pt>(new Comparator<Pt>() {
-      public int compare(Pt o1, Pt o2) {
-        int ret = 0;
-        double d0 = seg.getP1().distance(o1);
-        double d1 = seg.getP1().distance(o2);
-        if (d0 < d1) {
-          ret = -1;
-        } else if (d0 > d1) {
-          ret = 1;
-        }
-        return ret;
-      }
-    });
+  /**
+   * Same answer as getFirstIntersection(), found by testing every edge in the mesh.
+   */
+  Pt scanForIntersection(Line seg) {
+    Pt ret = null;
+    double retDist = Double.MAX_VALUE;
     for (Triangle t : triangles) {
       HalfEdge he = t.getEdge();
-      accumulateIntersection(seg, he, ret);
-      accumulateIntersection(seg, he.getNext(), ret);
-      accumulateIntersection(seg, he.getNext().getNext(), ret);
+      for (int i = 0; i < 3; i++) {
+        if (he.getPair() != null && he.getPoint().getID() < he.getPair().getPoint().getID()) {
+          Line other = new Line(he.getPoint(), he.getPair().getPoint());
+          IntersectionData id = Functions.getIntersectionData(seg, other);
+          if (id.intersectsStrictlyInsideSegments()
+              && seg.getStart().distance(id.getIntersection()) < retDist) {
+            ret = id.getIntersection();
+            retDist = seg.getStart().distance(ret);
+          }
+        }
+        he = he.getNext();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * True if segment pq meets triangle t, allowing a tiny margin so a segment passing exactly
+   * through a vertex or along an edge reaches the triangles on both sides. This is a separating
+   * axis test: they miss only if t lies wholly on one side of pq's line, or p and q both lie
+   * outside the same edge of t.
+   */
+  private static boolean touches(Pt p, Pt q, Triangle t) {
+    HalfEdge edge = t.getEdge();
+    Pt v0 = edge.getPoint();
+    Pt v1 = edge.getNext().getPoint();
+    Pt v2 = edge.getNext().getNext().getPoint();
+    double tol = SEG_TOL * p.distance(q);
+    double s0 = orient(p, q, v0);
+    double s1 = orient(p, q, v1);
+    double s2 = orient(p, q, v2);
+    boolean ret = !(s0 > tol && s1 > tol && s2 > tol) && !(s0 < -tol && s1 < -tol && s2 < -tol);
+    double sign = Math.signum(orient(v0, v1, v2));
+    for (int i = 0; i < 3 && ret; i++) {
+      Pt from = edge.getNext().getNext().getPoint();
+      Pt to = edge.getPoint();
+      double edgeTol = SEG_TOL * from.distance(to);
+      ret = !(sign * orient(from, to, p) < -edgeTol && sign * orient(from, to, q) < -edgeTol);
+      edge = edge.getNext();
     }
     return ret;
   }
 
   private void addPointOnEdge(HalfEdge splitMe, Pt newVert) {
+    tracer.vertexInserted(this, newVert, Where.Boundary);
     // bug("addPointOnEdge() with edge: " + splitMe.id + ", vertex: " + newVert.getID());
     HalfEdge a, b, c, d, e, f, g, h, i, j, k, l, m, n;
     Triangle u, v, w, x, y, z;
@@ -439,14 +703,16 @@ public class Mesh {
     l.setPair(m);
     m.setNext(h);
     n.setNext(d);
+    newVert.setAttribute(HALF_EDGE, g);
+    replaceHalfEdge(b, f);
+    replaceHalfEdge(e, a);
     triangles.remove(x);
     triangles.remove(w);
-    Set<Triangle> newTriangles = new HashSet<Triangle>();
-    newTriangles.add(u);
-    newTriangles.add(v);
-    newTriangles.add(y);
-    newTriangles.add(z);
-    triangles.addAll(newTriangles);
+    Triangle[] newTriangles = new Triangle[] { // in a fixed order, so repairs are repeatable
+        u, v, y, z
+    };
+    triangles.addAll(Arrays.asList(newTriangles));
+    lastTriangle = u;
     maybeSetBoundaryEdges(g, i, k, m);
     retainBoundaryEdges(splitMe, k, l, n, m);
     for (Triangle t : newTriangles) {
@@ -454,13 +720,14 @@ public class Mesh {
         repair(newVert, t);
       }
     }
-    // snap(this, "addPointOnEdge(): " + allPoints.size() + " points. edge: " + splitMe.id
-    // + ", vertex: " + newVert.getID());
   }
 
   private void retainBoundaryEdges(HalfEdge oldEdge, HalfEdge... newEdges) {
     for (HalfEdge e : newEdges) {
       e.setBoundary(e.isBoundary() || oldEdge.isBoundary());
+      if (e.isBoundary()) {
+        newBoundaries.add(e);
+      }
     }
   }
 
@@ -490,6 +757,7 @@ public class Mesh {
   }
 
   private void addPointInside(Triangle splitMe, Pt newVert) {
+    tracer.vertexInserted(this, newVert, Where.Inside);
     HalfEdge e1, e2, e3;
     HalfEdge n1, n2, n3, n1p, n2p, n3p;
     Triangle t1, t2, t3;
@@ -525,6 +793,7 @@ public class Mesh {
     triangles.add(t1);
     triangles.add(t2);
     triangles.add(t3);
+    lastTriangle = t1;
 
     maybeSetBoundaryEdges(n1, n2, n3);
     if (!isDelaunay(newVert, t1)) {
@@ -538,9 +807,21 @@ public class Mesh {
     }
   }
 
+  /**
+   * A point remembers one half-edge that ends at it (see he()). When that edge is thrown away, hand
+   * the job to a live edge ending at the same point. Otherwise the point would keep the dead edge,
+   * its dead triangle and everything they link to from being collected.
+   */
+  private static void replaceHalfEdge(HalfEdge dead, HalfEdge live) {
+    if (he(dead.getPoint()) == dead) {
+      dead.getPoint().setAttribute(HALF_EDGE, live);
+    }
+  }
+
   private void markBoundary(HalfEdge edge) {
     edge.setBoundary(true);
     edge.getPair().setBoundary(true);
+    newBoundaries.add(edge);
   }
 
   private void repair(Pt vert, Triangle t) {
@@ -591,6 +872,7 @@ public class Mesh {
     if (b.isBoundary() || f.isBoundary()) {
       warn("Flipping boundary! You should not do this!");
     }
+    tracer.edgeFlipped(this, vert, t);
 
     y = new Triangle(a);
     z = new Triangle(c);
@@ -607,10 +889,13 @@ public class Mesh {
     d.setFace(y);
     e.setNext(c);
     e.setFace(z);
+    replaceHalfEdge(b, e);
+    replaceHalfEdge(f, a);
     triangles.remove(w);
     triangles.remove(x);
     triangles.add(y);
     triangles.add(z);
+    lastTriangle = y;
 
     for (Pt pt : y.getPoints()) {
       if (triangles.contains(y) && !isDelaunay(pt, y)) {
@@ -657,7 +942,82 @@ public class Mesh {
     return cursor;
   }
 
+  /**
+   * Finds the triangle containing the given point, and whether the point is inside it, on one of
+   * its edges, or at one of its vertices. This walks across the mesh from the most recently made
+   * triangle toward the point, which is fast when points arrive in stroke order, and falls back to
+   * checking every triangle if the walk can't get there.
+   */
   public TriangleWhere findTriangle(Pt pt, boolean showDebug) {
+    TriangleWhere ret = walkToTriangle(pt, showDebug);
+    if (ret == null) {
+      ret = scanForTriangle(pt, showDebug);
+    }
+    if (ret == null) {
+      warn("Warning: can't find triangle for point: " + pt);
+    } else {
+      lastTriangle = ret.triangle;
+    }
+    return ret;
+  }
+
+  /**
+   * Visibility walk: from the current triangle, cross any edge that has the point strictly on its
+   * far side, until no edge does. The edges are tried in rotating order so the walk can't circle
+   * forever in a mesh that isn't Delaunay. Returns null if it leaves the mesh or takes too long.
+   */
+  TriangleWhere walkToTriangle(Pt pt, boolean showDebug) {
+    TriangleWhere ret = null;
+    Triangle t = lastTriangle;
+    if (t == null || !triangles.contains(t)) {
+      t = triangles.isEmpty() ? null : triangles.iterator().next();
+    }
+    int maxSteps = triangles.size() + 3;
+    for (int step = 0; t != null && step < maxSteps; step++) {
+      HalfEdge edge = t.getEdge();
+      for (int i = step % 3; i > 0; i--) {
+        edge = edge.getNext();
+      }
+      double orientation = orient(edge.getNext().getNext().getPoint(), edge.getPoint(), edge
+          .getNext().getPoint());
+      HalfEdge crossing = null;
+      for (int i = 0; i < 3 && crossing == null && orientation != 0; i++) {
+        Pt from = edge.getNext().getNext().getPoint();
+        Pt to = edge.getPoint();
+        double side = orient(from, to, pt);
+        if (side * orientation < 0 && Math.abs(side) > WALK_TOL * from.distanceSq(to)) {
+          crossing = edge;
+        }
+        edge = edge.getNext();
+      }
+      if (orientation == 0) {
+        t = null; // degenerate triangle, can't tell which way to go
+      } else if (crossing == null) {
+        Where where = t.whereIsPoint(pt, showDebug);
+        if (where != Where.Outside) {
+          ret = new TriangleWhere();
+          ret.triangle = t;
+          ret.where = where;
+        }
+        t = null;
+      } else {
+        t = crossing.getPair() == null ? null : crossing.getPair().getFace();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Twice the signed area of triangle abc: positive if counterclockwise (in a y-up frame).
+   */
+  private static double orient(Pt a, Pt b, Pt c) {
+    return (b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x);
+  }
+
+  /**
+   * Asks every triangle where the point is.
+   */
+  TriangleWhere scanForTriangle(Pt pt, boolean showDebug) {
     TriangleWhere ret = null;
     for (Triangle t : triangles) {
       Where where = t.whereIsPoint(pt, showDebug);
@@ -671,9 +1031,6 @@ public class Mesh {
           break;
       }
     }
-    if (ret == null) {
-      warn("Warning: can't find triangle for point: " + pt);
-    }
     return ret;
   }
 
@@ -782,32 +1139,66 @@ public class Mesh {
     return triangles;
   }
 
+  /**
+   * True unless the point opposite pt across t's far edge lies inside the circle through pt and
+   * the two ends of that edge. This works on the half-edges directly and makes the same
+   * computation as Triangle.getQuadrangle(), Functions.getCircleCenter() and CircleArc.contains(),
+   * without building any of them, since it runs several times per inserted point.
+   */
   public boolean isDelaunay(Pt pt, Triangle t) {
     boolean ret = true;
-    List<Pt> quad = t.getQuadrangle(pt);
-    if (quad != null && quad.size() == 4 && noColinear(quad)) {
-      CircleArc circ = new CircleArc(quad.get(0), quad.get(1), quad.get(3));
-      ret = !circ.contains(quad.get(2));
+    if (t.hasVertex(pt)) {
+      HalfEdge cursor = t.getEdge();
+      while (cursor.getPoint() != pt) {
+        cursor = cursor.getNext();
+      }
+      HalfEdge opposite = cursor.getNext().getNext().getPair();
+      if (opposite != null) {
+        Pt q0 = pt;
+        Pt q1 = opposite.getPoint();
+        Pt q2 = opposite.getNext().getPoint();
+        Pt q3 = opposite.getNext().getNext().getPoint();
+        if (!isCollinear(q0, q1, q2) && !isCollinear(q1, q2, q3) && !isCollinear(q2, q3, q0)
+            && !isCollinear(q3, q0, q1)) {
+          ret = !inCircle(q0, q1, q3, q2);
+        }
+      }
     }
     return ret;
   }
 
-  private boolean noColinear(List<Pt> quad) {
-    boolean ret = true;
-    if (quad.size() == 4) {
-      for (int i = 0; i < 4; i++) {
-        Line a = new Line(quad.get(i), quad.get((i + 1) % 4));
-        Line b = new Line(quad.get((i + 1) % 4), quad.get((i + 2) % 4));
-        IntersectionData ix = Functions.getIntersectionData(a, b);
-        if (ix.isCollinear()) {
-          ret = false;
-          break;
-        }
-      }
+  /**
+   * True if d is inside the circle through a, b and c (by more than Functions.EQ_TOL).
+   */
+  private static boolean inCircle(Pt a, Pt b, Pt c, Pt d) {
+    boolean ret = false;
+    double A = b.x - a.x;
+    double B = b.y - a.y;
+    double C = c.x - a.x;
+    double D = c.y - a.y;
+    double E = A * (a.x + b.x) + B * (a.y + b.y);
+    double F = C * (a.x + c.x) + D * (a.y + c.y);
+    double G = 2 * (A * (c.y - b.y) - B * (c.x - b.x));
+    if (G != 0.0) {
+      double px = (D * E - B * F) / G;
+      double py = (A * F - C * E) / G;
+      double radius = Point2D.distance(b.x, b.y, px, py);
+      double dist = Point2D.distance(px, py, d.x, d.y);
+      ret = Functions.lt(dist, radius, Functions.EQ_TOL);
     }
     return ret;
   }
 
+  /**
+   * True if segments ab and bc are collinear, by the same exact test IntersectionData uses, but
+   * without making Lines.
+   */
+  private static boolean isCollinear(Pt a, Pt b, Pt c) {
+    double denominator = (b.x - a.x) * (c.y - b.y) - (b.y - a.y) * (c.x - b.x);
+    double numR = (a.y - b.y) * (c.x - b.x) - (a.x - b.x) * (c.y - b.y);
+    return denominator == 0.0 && numR == 0.0;
+  }
+
   public Set<Triangle> getInsideTriangles() {
     Set<Triangle> inside = new HashSet<Triangle>();
     for (Triangle t : triangles) {
@@ -0,0 +1,204 @@
+package org.six11.util.mesh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * A MeshTracer that records what a mesh does as a compact list of operations, each an op code and
+ * a point: the root points, the points given to addPoint(), the vertices that went in, and the
+ * flips. It can be written out, read back and replayed on a new mesh. Replaying records a new log,
+ * and firstDifference() says where the two part ways, which is how you'd find the step where a
+ * change in the meshing code changed the result.
+ *
+ * Attach it with Mesh.setTracer() before adding points. Points already in the mesh are logged as
+ * if they had been added in order, which may not give the same triangles.
+ */
+public class MeshLog extends MeshTracerAdapter {
+
+  public static final byte ROOT = 0;
+  public static final byte ADD = 1;
+  public static final byte ADD_SEQUENCED = 2; // addPoint() with sequenceMatters set
+  public static final byte INSIDE = 3;
+  public static final byte ON_EDGE = 4;
+  public static final byte FLIP = 5;
+
+  private static final int MAGIC = 0x4d4c6f67; // "MLog"
+  private static final int VERSION = 1;
+
+  private byte[] ops;
+  private double[] xy;
+  private int size;
+
+  public MeshLog() {
+    this(new byte[64], new double[128], 0);
+  }
+
+  private MeshLog(byte[] ops, double[] xy, int size) {
+    this.ops = ops;
+    this.xy = xy;
+    this.size = size;
+  }
+
+  public void attached(Mesh mesh) {
+    for (Pt pt : mesh.getRootPoints()) {
+      record(ROOT, pt);
+    }
+    for (Pt pt : mesh.getPoints()) {
+      record(mesh.sequenceMatters ? ADD_SEQUENCED : ADD, pt);
+    }
+  }
+
+  public void pointAdded(Mesh mesh, Pt pt) {
+    record(mesh.sequenceMatters ? ADD_SEQUENCED : ADD, pt);
+  }
+
+  public void vertexInserted(Mesh mesh, Pt vertex, Where where) {
+    record(where == Where.Inside ? INSIDE : ON_EDGE, vertex);
+  }
+
+  public void edgeFlipped(Mesh mesh, Pt vertex, Triangle t) {
+    record(FLIP, vertex);
+  }
+
+  private void record(byte op, Pt pt) {
+    if (size == ops.length) {
+      ops = Arrays.copyOf(ops, size * 2);
+      xy = Arrays.copyOf(xy, size * 4);
+    }
+    ops[size] = op;
+    xy[2 * size] = pt.getX();
+    xy[2 * size + 1] = pt.getY();
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public byte getOp(int i) {
+    return ops[i];
+  }
+
+  public double getX(int i) {
+    return xy[2 * i];
+  }
+
+  public double getY(int i) {
+    return xy[2 * i + 1];
+  }
+
+  /**
+   * The number of recorded operations with the given op code.
+   */
+  public int count(byte op) {
+    int ret = 0;
+    for (int i = 0; i < size; i++) {
+      if (ops[i] == op) {
+        ret++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * The index of the first operation that differs from the other log, or -1 if they are the same.
+   * If one log is a prefix of the other, this is the shorter one's size.
+   */
+  public int firstDifference(MeshLog other) {
+    int ret = -1;
+    int n = Math.min(size, other.size);
+    for (int i = 0; i < n && ret < 0; i++) {
+      if (ops[i] != other.ops[i] || xy[2 * i] != other.xy[2 * i]
+          || xy[2 * i + 1] != other.xy[2 * i + 1]) {
+        ret = i;
+      }
+    }
+    if (ret < 0 && size != other.size) {
+      ret = n;
+    }
+    return ret;
+  }
+
+  /**
+   * Builds a new mesh on the recorded root and adds the recorded points in order, with a new
+   * MeshLog as its tracer.
+   */
+  public Mesh replay() {
+    Pt[] root = new Pt[3];
+    int numRoot = 0;
+    for (int i = 0; i < size && numRoot < 3; i++) {
+      if (ops[i] == ROOT) {
+        root[numRoot++] = new Pt(getX(i), getY(i));
+      }
+    }
+    if (numRoot < 3) {
+      throw new IllegalStateException("The log has " + numRoot + " root points, not 3.");
+    }
+    Mesh ret = new Mesh(root[0], root[1], root[2]);
+    ret.setTracer(new MeshLog());
+    for (int i = 0; i < size; i++) {
+      if (ops[i] == ADD || ops[i] == ADD_SEQUENCED) {
+        ret.setSequenceMatters(ops[i] == ADD_SEQUENCED);
+        ret.addPoint(new Pt(getX(i), getY(i)));
+      }
+    }
+    return ret;
+  }
+
+  public void write(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(size);
+    out.write(ops, 0, size);
+    for (int i = 0; i < 2 * size; i++) {
+      out.writeDouble(xy[i]);
+    }
+    out.flush();
+  }
+
+  public static MeshLog read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a mesh log.");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unknown mesh log version " + version);
+    }
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Corrupt mesh log: size " + size);
+    }
+    byte[] ops = new byte[Math.max(size, 1)];
+    in.readFully(ops, 0, size);
+    for (int i = 0; i < size; i++) {
+      if (ops[i] < ROOT || ops[i] > FLIP) {
+        throw new IOException("Corrupt mesh log: op code " + ops[i] + " at " + i);
+      }
+    }
+    double[] xy = new double[2 * ops.length];
+    for (int i = 0; i < 2 * size; i++) {
+      xy[i] = in.readDouble();
+    }
+    return new MeshLog(ops, xy, size);
+  }
+
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 17 * size);
+    try {
+      write(new DataOutputStream(bytes));
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex); // can't happen writing to memory
+    }
+    return bytes.toByteArray();
+  }
+
+  public static MeshLog fromBytes(byte[] data) throws IOException {
+    return read(new DataInputStream(new ByteArrayInputStream(data)));
+  }
+}
@@ -0,0 +1,42 @@
+package org.six11.util.mesh;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Interface worn by classes that want to watch a Mesh work, for debugging or recording. Give one
+ * to Mesh.setTracer(). A mesh calls these from its innermost loops, so implementations should be
+ * quick, and any message text should be built here rather than by the mesh. The default is NONE,
+ * which does nothing. Extend MeshTracerAdapter to hear about only some events.
+ */
+public interface MeshTracer {
+
+  public static final MeshTracer NONE = new MeshTracerAdapter();
+
+  /**
+   * The tracer was given to the mesh. The mesh's root points are already in place.
+   */
+  public void attached(Mesh mesh);
+
+  /**
+   * Mesh.addPoint() has finished adding pt, along with any points it added where the stroke
+   * crossed existing edges.
+   */
+  public void pointAdded(Mesh mesh, Pt pt);
+
+  /**
+   * A vertex was put in the mesh: Where.Inside if it split a triangle, Where.Boundary if it split
+   * an edge. This includes points the mesh makes itself, such as stroke crossings.
+   */
+  public void vertexInserted(Mesh mesh, Pt vertex, Where where);
+
+  /**
+   * The edge of t opposite vertex is about to be flipped.
+   */
+  public void edgeFlipped(Mesh mesh, Pt vertex, Triangle t);
+
+  /**
+   * classifyTriangles() decided where t is. After the first classification only triangles whose
+   * label changes are reported; new triangles take the label of the one they replaced.
+   */
+  public void triangleClassified(Mesh mesh, Triangle t, Where where);
+}
@@ -0,0 +1,24 @@
+package org.six11.util.mesh;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * A MeshTracer that ignores everything. Extend it and override the events you care about.
+ */
+public class MeshTracerAdapter implements MeshTracer {
+
+  public void attached(Mesh mesh) {
+  }
+
+  public void pointAdded(Mesh mesh, Pt pt) {
+  }
+
+  public void vertexInserted(Mesh mesh, Pt vertex, Where where) {
+  }
+
+  public void edgeFlipped(Mesh mesh, Pt vertex, Triangle t) {
+  }
+
+  public void triangleClassified(Mesh mesh, Triangle t, Where where) {
+  }
+}
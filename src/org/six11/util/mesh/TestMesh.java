@@ -0,0 +1,252 @@
+package org.six11.util.mesh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.six11.util.pen.Line;
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks mesh building and point location.
+ */
+public class TestMesh extends TestCase {
+
+  private static Mesh makeCloud(int n, long seed) {
+    Random rand = new Random(seed);
+    Mesh mesh = new Mesh();
+    for (int i = 0; i < n; i++) {
+      mesh.addPoint(new Pt(rand.nextDouble() * 1000, rand.nextDouble() * 1000));
+    }
+    return mesh;
+  }
+
+  public void testWalkMatchesScan() {
+    Mesh mesh = makeCloud(2000, 1);
+    Random rand = new Random(2);
+    for (int i = 0; i < 500; i++) {
+      Pt query = new Pt(rand.nextDouble() * 1200 - 100, rand.nextDouble() * 1200 - 100);
+      Mesh.TriangleWhere walked = mesh.walkToTriangle(query, false);
+      Mesh.TriangleWhere scanned = mesh.scanForTriangle(query, false);
+      assertNotNull(walked);
+      assertEquals(scanned.where, walked.where);
+      if (scanned.where == Where.Inside) {
+        assertSame(scanned.triangle, walked.triangle);
+      } else { // on an edge, so either triangle beside it will do
+        assertTrue(scanned.triangle == walked.triangle
+            || scanned.triangle.getAdjacentTriangles().contains(walked.triangle));
+      }
+    }
+    Pt vertex = mesh.getPoints().get(100);
+    assertEquals(Where.Coincidental, mesh.findTriangle(vertex, false).where);
+  }
+
+  public void testBoundary() {
+    Mesh mesh = new Mesh();
+    Pt a = new Pt(0, 0);
+    Pt b = new Pt(100, 0);
+    mesh.addPoint(a);
+    mesh.addPoint(b);
+    mesh.addPoint(new Pt(50, 80));
+    Mesh.TriangleWhere tw = mesh.findTriangle(new Pt(50, 0), false);
+    assertEquals(Where.Boundary, tw.where);
+    assertTrue(tw.triangle.hasVertex(a) && tw.triangle.hasVertex(b));
+  }
+
+  public void testLargeCloud() {
+    int n = 20000;
+    Mesh mesh = makeCloud(n, 3);
+    assertEquals(n, mesh.getPoints().size());
+    assertEquals(2 * n + 1, mesh.size()); // every point is strictly inside the root triangle
+    mesh.addPoint(new Pt(mesh.getPoints().get(5).getX(), mesh.getPoints().get(5).getY()));
+    assertEquals(n, mesh.getPoints().size());
+  }
+
+  public void testSegmentWalkMatchesScan() {
+    Random rand = new Random(4);
+    Mesh mesh = new Mesh();
+    mesh.setSequenceMatters(true);
+    Pt last = null;
+    int crossings = 0;
+    for (int i = 0; i < 600; i++) {
+      // a wandering stroke that keeps crossing itself
+      Pt next = new Pt(500 + 300 * Math.cos(i * 0.37) + rand.nextDouble() * 40, 500 + 300
+          * Math.sin(i * 0.23) + rand.nextDouble() * 40);
+      if (i > 1) {
+        Line seg = new Line(last, next);
+        Pt walked = mesh.getFirstIntersection(seg);
+        Pt scanned = mesh.scanForIntersection(seg);
+        if (scanned == null) {
+          assertNull(walked);
+        } else {
+          assertNotNull(walked);
+          assertEquals(0, scanned.distance(walked), 1e-9);
+          crossings++;
+        }
+      }
+      mesh.addPoint(next);
+      last = mesh.getPoints().get(mesh.getPoints().size() - 1);
+    }
+    assertTrue(crossings > 100);
+  }
+
+  public void testBulkLoad() {
+    Random rand = new Random(5);
+    List<Pt> points = new ArrayList<Pt>();
+    for (int i = 0; i < 200; i++) {
+      points.add(new Pt(rand.nextDouble() * 1000, rand.nextDouble() * 1000));
+    }
+    points.add(points.get(17)); // the same point twice is only meshed once
+    List<Pt> order = Mesh.getBulkOrder(points);
+    assertEquals(points.size(), order.size());
+    assertTrue(order.containsAll(points));
+
+    Mesh mesh = new Mesh(points, false, false);
+    assertEquals(points.subList(0, 200), mesh.getPoints()); // given order, not insertion order
+    assertEquals(2 * 200 + 1, mesh.size());
+    for (Triangle t : mesh.getTriangles()) {
+      for (Pt pt : t.getPoints()) {
+        assertTrue(mesh.isDelaunay(pt, t));
+      }
+    }
+  }
+
+  public void testCollinearBulkLoad() {
+    List<Pt> points = new ArrayList<Pt>();
+    for (int i = 0; i < 50; i++) {
+      points.add(new Pt(i * 10, 5));
+    }
+    Mesh mesh = new Mesh(points, false, false);
+    assertEquals(50, mesh.getPoints().size());
+    assertEquals(2 * 50 + 1, mesh.size());
+    assertTrue(mesh.getFiniteTriangles().isEmpty());
+  }
+
+  public void testRecordAndReplay() throws IOException {
+    MeshLog log = new MeshLog();
+    Mesh mesh = new Mesh();
+    mesh.setSequenceMatters(true);
+    mesh.setTracer(log);
+    for (int i = 0; i < 300; i++) { // a self-crossing stroke, so crossing points are made too
+      mesh.addPoint(new Pt(500 + 300 * Math.cos(i * 0.37), 500 + 300 * Math.sin(i * 0.23)));
+    }
+    assertEquals(3, log.count(MeshLog.ROOT));
+    assertEquals(300, log.count(MeshLog.ADD_SEQUENCED));
+    // repair() also splits edges where a flip would cross the stroke; those aren't in getPoints()
+    assertTrue(log.count(MeshLog.INSIDE) + log.count(MeshLog.ON_EDGE) >= mesh.getPoints().size());
+    assertTrue(mesh.getPoints().size() > 300);
+    assertTrue(log.count(MeshLog.FLIP) > 0);
+
+    MeshLog copy = MeshLog.fromBytes(log.toBytes());
+    assertEquals(-1, copy.firstDifference(log));
+    Mesh replayed = copy.replay();
+    assertEquals(-1, ((MeshLog) replayed.getTracer()).firstDifference(log));
+    assertEquals(mesh.size(), replayed.size());
+
+    final Set<Triangle> classified = new HashSet<Triangle>();
+    replayed.setTracer(new MeshTracerAdapter() {
+      public void triangleClassified(Mesh m, Triangle t, Where where) {
+        classified.add(t);
+      }
+    });
+    replayed.classifyTriangles();
+    assertEquals(replayed.getTriangles(), classified);
+  }
+
+  public void testRecordBulkLoad() {
+    Random rand = new Random(6);
+    List<Pt> points = new ArrayList<Pt>();
+    for (int i = 0; i < 200; i++) {
+      points.add(new Pt(rand.nextDouble() * 100, rand.nextDouble() * 100));
+    }
+    MeshLog log = new MeshLog();
+    Mesh mesh = new Mesh(points, false, false, log);
+    assertEquals(200, log.count(MeshLog.ADD));
+    assertEquals(-1, ((MeshLog) log.replay().getTracer()).firstDifference(log));
+    assertEquals(2 * 200 + 1, mesh.size());
+  }
+
+  /**
+   * Labels by flooding from the infinite triangles, done the slow, obvious way.
+   */
+  private static Map<Triangle, Where> referenceLabels(Mesh mesh) {
+    Map<Triangle, Where> ret = new IdentityHashMap<Triangle, Where>();
+    List<Triangle> stack = new ArrayList<Triangle>();
+    for (Triangle t : mesh.getTriangles()) {
+      if (t.involvesPoints(mesh.getRootPoints())) {
+        ret.put(t, Where.Outside);
+        stack.add(t);
+      }
+    }
+    while (!stack.isEmpty()) {
+      Triangle t = stack.remove(stack.size() - 1);
+      for (Triangle n : t.getAdjacentTriangles()) {
+        if (!ret.containsKey(n) && !t.getCommonEdge(n).isBoundary()) {
+          ret.put(n, Where.Outside);
+          stack.add(n);
+        }
+      }
+    }
+    for (Triangle t : mesh.getTriangles()) {
+      if (!ret.containsKey(t)) {
+        ret.put(t, Where.Inside);
+      }
+    }
+    return ret;
+  }
+
+  public void testIncrementalClassification() {
+    Mesh mesh = new Mesh();
+    mesh.setSequenceMatters(true);
+    int inside = 0;
+    for (int i = 0; i < 400; i++) { // crosses itself often, closing off many regions
+      mesh.addPoint(new Pt(500 + 300 * Math.cos(i * 0.37), 500 + 300 * Math.sin(i * 0.23)));
+      mesh.classifyTriangles();
+      Map<Triangle, Where> expected = referenceLabels(mesh);
+      for (Triangle t : mesh.getTriangles()) {
+        assertEquals(expected.get(t), t.getMeshLocation());
+      }
+      inside = mesh.getInsideTriangles().size();
+    }
+    assertTrue(inside > 100);
+  }
+
+  public void testClosedSquare() {
+    List<Pt> square = new ArrayList<Pt>();
+    for (int i = 0; i < 40; i++) { // around a 100 x 100 square
+      int side = i / 10;
+      double d = (i % 10) * 10;
+      double[][] corners = new double[][] {
+          {
+              d, 0
+          }, {
+              100, d
+          }, {
+              100 - d, 100
+          }, {
+              0, 100 - d
+          }
+      };
+      square.add(new Pt(corners[side][0], corners[side][1]));
+    }
+    square.add(new Pt(5, -10)); // closes the loop by crossing the first edge
+    Mesh mesh = new Mesh(square, true, false);
+    Map<Triangle, Where> expected = referenceLabels(mesh);
+    for (Triangle t : mesh.getTriangles()) {
+      assertEquals(expected.get(t), t.getMeshLocation());
+      Pt c = t.getCentroid();
+      if (c.x > 10 && c.x < 90 && c.y > 10 && c.y < 90) {
+        assertEquals(Where.Inside, t.getMeshLocation());
+      } else if (c.x < 0 || c.x > 100 || c.y < 0 || c.y > 100) {
+        assertEquals(Where.Outside, t.getMeshLocation());
+      }
+    }
+  }
+}
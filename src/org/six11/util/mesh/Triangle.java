@@ -28,6 +28,7 @@ public class Triangle {
   private Pt cachedCentroid;
   private static int ID_COUNTER = 0;
   Where meshLocation = Where.Unknown;
+  int floodMark; // which of Mesh.reclassify()'s floods has seen this triangle
 
   /**
    * @param vertA
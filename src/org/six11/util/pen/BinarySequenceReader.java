@@ -0,0 +1,230 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.six11.util.pen.BinarySequenceWriter.Coordinates;
+
+/**
+ * Reads files written by BinarySequenceWriter. The file is memory-mapped, and opening it only
+ * walks the stroke headers to find where each stroke starts. Strokes are decoded when you ask for
+ * them. read(int, PackedSequence) decodes straight into primitive arrays without making any Pt
+ * objects. getSequence(int) builds a regular Sequence. readEach(Handler) streams every stroke in
+ * order.
+ *
+ * Files larger than a single mapping (maxRegionBytes, 1GB) are mapped in several regions. A
+ * stroke never straddles two regions.
+ *
+ * A reader is not thread-safe. Close it when you are done so the mapping can be released.
+ *
+ * @author Gabe Johnson <johnsogg@cmu.edu>
+ */
+public class BinarySequenceReader implements Closeable {
+
+  /**
+   * The most bytes mapped in one region. Package-private so tests can make it small.
+   */
+  static int maxRegionBytes = 1 << 30;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final Coordinates coords;
+  private final double scale;
+
+  private final List<MappedByteBuffer> regions;
+  private int[] strokeRegion; // which region each stroke lives in
+  private int[] strokeOffset; // where the stroke's header starts within its region
+  private int count;
+
+  public BinarySequenceReader(File f) throws IOException {
+    file = new RandomAccessFile(f, "r");
+    channel = file.getChannel();
+    regions = new ArrayList<MappedByteBuffer>();
+    strokeRegion = new int[64];
+    strokeOffset = new int[64];
+    try {
+      long fileSize = channel.size();
+      if (fileSize < BinarySequenceWriter.HEADER_BYTES) {
+        throw new IOException("Not a binary sequence file (too short): " + f);
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          BinarySequenceWriter.HEADER_BYTES);
+      if (header.getInt() != BinarySequenceWriter.MAGIC) {
+        throw new IOException("Not a binary sequence file (bad magic number): " + f);
+      }
+      short version = header.getShort();
+      if (version != BinarySequenceWriter.VERSION) {
+        throw new IOException("Unsupported binary sequence file version " + version + ": " + f);
+      }
+      short encoding = header.getShort();
+      if (encoding < 0 || encoding >= Coordinates.values().length) {
+        throw new IOException("Unknown coordinate encoding " + encoding + ": " + f);
+      }
+      coords = Coordinates.values()[encoding];
+      scale = Double.longBitsToDouble(header.getLong());
+      index(fileSize);
+    } catch (IOException ex) {
+      file.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Maps the file region by region, noting where each stroke starts.
+   */
+  private void index(long fileSize) throws IOException {
+    long start = BinarySequenceWriter.HEADER_BYTES;
+    while (start < fileSize) {
+      int regionSize = (int) Math.min(maxRegionBytes, fileSize - start);
+      MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, regionSize);
+      int regionIdx = regions.size();
+      regions.add(region);
+      int pos = 0;
+      while (pos + 8 <= regionSize) {
+        int payload = region.getInt(pos + 4);
+        if (payload < 0) {
+          throw new IOException("Corrupt stroke header at byte " + (start + pos));
+        }
+        if ((long) pos + 8 + payload > regionSize) {
+          break;
+        }
+        addStroke(regionIdx, pos);
+        pos += 8 + payload;
+      }
+      if (pos == 0) {
+        throw new IOException("Stroke at byte " + start + " is truncated or larger than "
+            + maxRegionBytes + " bytes");
+      }
+      start += pos;
+    }
+  }
+
+  private void addStroke(int region, int offset) {
+    if (count == strokeRegion.length) {
+      strokeRegion = Arrays.copyOf(strokeRegion, count * 2);
+      strokeOffset = Arrays.copyOf(strokeOffset, count * 2);
+    }
+    strokeRegion[count] = region;
+    strokeOffset[count] = offset;
+    count++;
+  }
+
+  /**
+   * The number of strokes in the file.
+   */
+  public int size() {
+    return count;
+  }
+
+  public Coordinates getCoordinates() {
+    return coords;
+  }
+
+  public double getScale() {
+    return scale;
+  }
+
+  /**
+   * The number of points in the given stroke. This doesn't decode anything.
+   */
+  public int getPointCount(int stroke) {
+    return regions.get(strokeRegion[stroke]).getInt(strokeOffset[stroke]);
+  }
+
+  /**
+   * Decodes the given stroke into dest, replacing whatever it had. Returns dest.
+   */
+  public PackedSequence read(int stroke, PackedSequence dest) {
+    ByteBuffer buf = regions.get(strokeRegion[stroke]);
+    int pos = strokeOffset[stroke];
+    int n = buf.getInt(pos);
+    pos += 8;
+    dest.clear();
+    dest.ensureCapacity(n);
+    dest.setSize(n); // the arrays are filled in place below
+    double[] xs = dest.getXs();
+    double[] ys = dest.getYs();
+    long[] ts = dest.getTimes();
+    if (coords == Coordinates.FLOAT) {
+      for (int i = 0; i < n; i++) {
+        xs[i] = buf.getFloat(pos);
+        pos += 4;
+      }
+      for (int i = 0; i < n; i++) {
+        ys[i] = buf.getFloat(pos);
+        pos += 4;
+      }
+    } else {
+      pos = getQuantized(buf, pos, xs, n);
+      pos = getQuantized(buf, pos, ys, n);
+    }
+    if (n > 0) {
+      long t = buf.getLong(pos);
+      pos += 8;
+      ts[0] = t;
+      for (int i = 1; i < n; i++) {
+        long z = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = buf.get(pos++);
+          z |= (long) (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        t += (z >>> 1) ^ -(z & 1);
+        ts[i] = t;
+      }
+    }
+    return dest;
+  }
+
+  private int getQuantized(ByteBuffer buf, int pos, double[] vals, int n) {
+    long q = 0;
+    for (int i = 0; i < n; i++) {
+      long z = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buf.get(pos++);
+        z |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      q += (z >>> 1) ^ -(z & 1);
+      vals[i] = q / scale;
+    }
+    return pos;
+  }
+
+  /**
+   * Decodes the given stroke into a new Sequence.
+   */
+  public Sequence getSequence(int stroke) {
+    return read(stroke, new PackedSequence(getPointCount(stroke))).toSequence();
+  }
+
+  /**
+   * Hands every stroke to the handler in file order, one at a time. Only one Sequence is alive at
+   * once unless the handler keeps them.
+   */
+  public void readEach(SequenceIO.Handler handler) throws IOException {
+    PackedSequence scratch = new PackedSequence();
+    for (int i = 0; i < count; i++) {
+      handler.handle(read(i, scratch).toSequence());
+    }
+  }
+
+  public void close() throws IOException {
+    regions.clear();
+    file.close();
+  }
+}
@@ -0,0 +1,205 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes sequences in the binary stroke format, one at a time, so you never need the whole archive
+ * in memory. Read the result with BinarySequenceReader.
+ *
+ * The format is big-endian throughout:
+ *
+ * <pre>
+ * header:  int magic ('S' 'Q' 'B' 'N'), short version, short coordinate encoding,
+ *          double quantization scale (unused for FLOAT)
+ * stroke:  int point count n, int payload length in bytes, then the payload:
+ *          coordinates   FLOAT: n floats of x, then n floats of y
+ *                        QUANTIZED: n zigzag varints of x, then n of y. Each is the difference
+ *                        from the previous point of round(value * scale); the first is relative
+ *                        to zero.
+ *          long time of the first point
+ *          n - 1 zigzag varints, each the time difference from the previous point
+ * </pre>
+ *
+ * The payload length lets a reader skip strokes without decoding them.
+ *
+ * @author Gabe Johnson <johnsogg@cmu.edu>
+ */
+public class BinarySequenceWriter implements Closeable {
+
+  public static final int MAGIC = 0x5351424E; // "SQBN"
+  public static final short VERSION = 1;
+  public static final int HEADER_BYTES = 16;
+  public static final double DEFAULT_SCALE = 100.0;
+
+  /**
+   * How coordinates are stored. FLOAT keeps about seven significant digits in four bytes.
+   * QUANTIZED rounds to 1/scale and usually takes one or two bytes per value for pen input.
+   */
+  public static enum Coordinates {
+    FLOAT, QUANTIZED
+  }
+
+  private final OutputStream out;
+  private final Coordinates coords;
+  private final double scale;
+  private byte[] buf = new byte[256];
+  private double[] scratchX = new double[0];
+  private double[] scratchY = new double[0];
+  private long[] scratchT = new long[0];
+  private int len;
+  private int count;
+
+  /**
+   * Makes a writer that stores FLOAT coordinates.
+   */
+  public BinarySequenceWriter(OutputStream out) throws IOException {
+    this(out, Coordinates.FLOAT, DEFAULT_SCALE);
+  }
+
+  /**
+   * @param scale
+   *          for QUANTIZED coordinates, the number of steps per unit. A scale of 100 keeps
+   *          coordinates to the nearest 0.01.
+   */
+  public BinarySequenceWriter(OutputStream out, Coordinates coords, double scale)
+      throws IOException {
+    if (coords == Coordinates.QUANTIZED && !(scale > 0)) {
+      throw new IllegalArgumentException("Quantization scale must be positive: " + scale);
+    }
+    this.out = new BufferedOutputStream(out, 1 << 16);
+    this.coords = coords;
+    this.scale = scale;
+    len = 0;
+    putInt(MAGIC);
+    putShort(VERSION);
+    putShort((short) coords.ordinal());
+    putLong(Double.doubleToLongBits(scale));
+    this.out.write(buf, 0, len);
+  }
+
+  public void write(Sequence seq) throws IOException {
+    int n = seq.size();
+    if (scratchX.length < n) {
+      scratchX = new double[n];
+      scratchY = new double[n];
+      scratchT = new long[n];
+    }
+    for (int i = 0; i < n; i++) {
+      Pt pt = seq.get(i);
+      scratchX[i] = pt.getX();
+      scratchY[i] = pt.getY();
+      scratchT[i] = pt.getTime();
+    }
+    write(scratchX, scratchY, scratchT, n);
+  }
+
+  public void write(PackedSequence seq) throws IOException {
+    write(seq.getXs(), seq.getYs(), seq.getTimes(), seq.size());
+  }
+
+  /**
+   * Writes one stroke made of the first n entries of the given arrays.
+   */
+  public void write(double[] xs, double[] ys, long[] ts, int n) throws IOException {
+    len = 0;
+    putInt(n);
+    putInt(0); // payload length, filled in by finishStroke
+    if (coords == Coordinates.FLOAT) {
+      for (int i = 0; i < n; i++) {
+        putInt(Float.floatToIntBits((float) xs[i]));
+      }
+      for (int i = 0; i < n; i++) {
+        putInt(Float.floatToIntBits((float) ys[i]));
+      }
+    } else {
+      putQuantized(xs, n);
+      putQuantized(ys, n);
+    }
+    if (n > 0) {
+      putLong(ts[0]);
+      for (int i = 1; i < n; i++) {
+        putVarLong(ts[i] - ts[i - 1]);
+      }
+    }
+    finishStroke();
+  }
+
+  /**
+   * The number of sequences written so far.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private void finishStroke() throws IOException {
+    int payload = len - 8;
+    int save = len;
+    len = 4;
+    putInt(payload);
+    len = save;
+    out.write(buf, 0, len);
+    count++;
+  }
+
+  private void putQuantized(double[] vals, int n) {
+    long prev = 0;
+    for (int i = 0; i < n; i++) {
+      long q = Math.round(vals[i] * scale);
+      putVarLong(q - prev);
+      prev = q;
+    }
+  }
+
+  private void ensure(int more) {
+    if (len + more > buf.length) {
+      byte[] bigger = new byte[Math.max(len + more, buf.length * 2)];
+      System.arraycopy(buf, 0, bigger, 0, len);
+      buf = bigger;
+    }
+  }
+
+  private void putShort(short v) {
+    ensure(2);
+    buf[len++] = (byte) (v >>> 8);
+    buf[len++] = (byte) v;
+  }
+
+  private void putInt(int v) {
+    ensure(4);
+    buf[len++] = (byte) (v >>> 24);
+    buf[len++] = (byte) (v >>> 16);
+    buf[len++] = (byte) (v >>> 8);
+    buf[len++] = (byte) v;
+  }
+
+  private void putLong(long v) {
+    putInt((int) (v >>> 32));
+    putInt((int) v);
+  }
+
+  /**
+   * Writes a zigzag-encoded varint: small magnitudes of either sign take few bytes.
+   */
+  private void putVarLong(long v) {
+    ensure(10);
+    long z = (v << 1) ^ (v >> 63);
+    while ((z & ~0x7FL) != 0) {
+      buf[len++] = (byte) ((z & 0x7F) | 0x80);
+      z >>>= 7;
+    }
+    buf[len++] = (byte) z;
+  }
+}
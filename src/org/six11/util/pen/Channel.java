@@ -0,0 +1,70 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An interned key for a per-point double attribute that a Sequence stores in a primitive column
+ * rather than in each Pt's attribute map. There is exactly one Channel instance per name, so you
+ * can compare them with ==. Get one with Channel.get(name), or use one of the built-in constants.
+ *
+ * The name is the same string that the legacy Pt.getDouble(String) API uses, so a Sequence can
+ * mirror channel values onto its points when old code still wants them there.
+ **/
+public final class Channel {
+
+  private static final Map<String, Channel> registry = new HashMap<String, Channel>();
+  private static int nextOrdinal = 0;
+
+  public static final Channel ANGLE = get("angle");
+  public static final Channel CURVATURE = get("curvature");
+  public static final Channel SPEED = get("speed");
+  public static final Channel CACHED_DIST = get("cachedDist");
+  public static final Channel DIST_TO_NEXT = get("dist_to_next");
+  public static final Channel CURVILINEAR_DISTANCE = get("curvilinear-distance");
+
+  private final String name;
+  private final int ordinal;
+
+  private Channel(String name, int ordinal) {
+    this.name = name;
+    this.ordinal = ordinal;
+  }
+
+  /**
+   * Returns the one and only channel with the given name, making it if necessary.
+   */
+  public static synchronized Channel get(String name) {
+    Channel ret = registry.get(name);
+    if (ret == null) {
+      ret = new Channel(name, nextOrdinal++);
+      registry.put(name, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * The number of channels that have been interned so far. Every channel's ordinal is less than
+   * this.
+   */
+  static synchronized int count() {
+    return nextOrdinal;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * A small dense integer unique to this channel, suitable for indexing arrays.
+   */
+  public int ordinal() {
+    return ordinal;
+  }
+
+  public String toString() {
+    return name;
+  }
+}
@@ -39,6 +39,14 @@ public class Entropy {
     return instance;
   }
 
+  /**
+   * Creates a new Entropy with the given seed that is not the shared singleton. Use this when
+   * several threads each need their own repeatable source.
+   */
+  public static Entropy getSeededEntropy(long seed) {
+    return new Entropy(new Random(seed));
+  }
+
   /**
    * Sets the seed for this Entropy singleton. If the supplied value
    * is negative, it effectively means there is no seed, and future
@@ -67,6 +75,10 @@ public class Entropy {
       random = new Random(System.currentTimeMillis());
     }
   }
+
+  private Entropy(Random random) {
+    this.random = random;
+  }
   
   public boolean getBoolean() {
     return random.nextBoolean();
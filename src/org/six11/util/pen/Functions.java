@@ -693,11 +693,11 @@ public abstract class Functions {
     double y = r.getY();
     double w = r.getWidth();
     double h = r.getHeight();
-    corners.add(new Pt(x, y));
-    corners.add(new Pt(x + w, y));
-    corners.add(new Pt(x + w, y + h));
-    corners.add(new Pt(x, y + h));
-    corners.add(new Pt(x, y));
+    corners.add(Pt.anon(x, y));
+    corners.add(Pt.anon(x + w, y));
+    corners.add(Pt.anon(x + w, y + h));
+    corners.add(Pt.anon(x, y + h));
+    corners.add(Pt.anon(x, y));
     int retIdx = 0;
     for (int i = 0; i < corners.size() - 1; i++) {
       Line side = new Line(corners.get(i), corners.get(i + 1));
@@ -765,39 +765,17 @@ public abstract class Functions {
    */
   public static Sequence getCurvilinearNormalizedSequence(Sequence seq, int start, int end,
       double threshold) {
+    if (threshold <= 0) {
+      throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+    }
     Sequence ret = new Sequence();
-    double patchDist = 0;
-    Pt prev = seq.get(start).copyXYT();
-    ret.add(prev);
-    int seqPointer = start + 1;
-    if (seqPointer < seq.size()) {
-
-      Pt next = seq.get(seqPointer);
-      while (seqPointer <= end) {
-
-        double dist = prev.distance(next);
-        if (dist + patchDist > threshold) {
-          // patch point between prev and next. update patchDist and prev.
-          double remainder = threshold - patchDist;
-          double frac = remainder / dist;
-          double dx = frac * (next.getX() - prev.getX());
-          double dy = frac * (next.getY() - prev.getY());
-          long dt = (long) (frac * (double) (next.getTime() - prev.getTime()));
-          Pt patchPt = new Pt(prev.getX() + dx, prev.getY() + dy, prev.getTime() + dt);
-          ret.add(patchPt);
-          prev = patchPt;
-          patchDist = 0;
-        } else {
-          // no patch point. update patchDist, prev and next, and seqPointer.
-          patchDist = patchDist + dist;
-          prev = next;
-          seqPointer++;
-          if (seqPointer <= end) {
-            next = seq.get(seqPointer);
-          } else {
-            break;
-          }
-        }
+    ret.add(seq.get(start).copyXYT());
+    if (start + 1 < seq.size()) {
+      // each patch point is a binary search into the sequence's arc length cache.
+      double base = seq.getArcLength(start);
+      double total = seq.getArcLength(end) - base;
+      for (int k = 1; k * threshold < total; k++) {
+        ret.add(seq.getPointAtArcLength(base + k * threshold));
       }
       ret.add(seq.get(end).copyXYT());
     }
@@ -815,29 +793,37 @@ public abstract class Functions {
     return normalizedSequence;
   }
 
+  /**
+   * Steps from each sample towards the next input point in straight hops of length d, so the
+   * returned points are d apart in a Euclidean way. A hop starts from the last sample rather than
+   * the last input point, which cuts corners, so unlike getCurvilinearNormalizedSequence the samples
+   * are not evenly spaced along the path and can't be found from arc lengths.
+   */
   public static List<Pt> getNormalizedSequence(List<Pt> points, double d) {
 
     List<Pt> ret = new ArrayList<Pt>();
 
-    Vec bigVec;
-    Vec smallVec;
-    Pt prev = points.get(0);
+    Pt first = points.get(0);
+    double prevX = first.getX();
+    double prevY = first.getY();
+    long prevT = first.getTime();
     for (Pt n : points) {
-      if (n.equals(points.get(0))) {
+      if (n.equals(first)) {
         ret.add(n.copy());
       }
-      bigVec = new Vec(prev, n);
-      while (bigVec.mag() > d) {
-        smallVec = bigVec.getVectorOfMagnitude(d);
-        Pt addMe = smallVec.add(prev);
-        // interpolate the timestamp. Points are prev < addMe < n
-        long diff = n.getTime() - prev.getTime();
-        double magFraction = smallVec.mag() / bigVec.mag();
-        long timeGuess = prev.getTime() + (long) ((double) diff * magFraction);
-        addMe.setTime(timeGuess);
-        ret.add(addMe);
-        prev = addMe;
-        bigVec = new Vec(prev, n);
+      double dx = n.getX() - prevX;
+      double dy = n.getY() - prevY;
+      double mag = Math.sqrt(dx * dx + dy * dy);
+      while (mag > d) {
+        double frac = d / mag;
+        prevX += dx * frac;
+        prevY += dy * frac;
+        // interpolate the timestamp. Points are prev < sample < n
+        prevT += (long) ((double) (n.getTime() - prevT) * frac);
+        ret.add(new Pt(prevX, prevY, prevT));
+        dx = n.getX() - prevX;
+        dy = n.getY() - prevY;
+        mag = Math.sqrt(dx * dx + dy * dy);
       }
     }
     ret.add(points.get(points.size() - 1).copy());
@@ -1052,8 +1038,17 @@ public abstract class Functions {
     }
   }
 
+  /**
+   * Calculates curvature for each point and stores it in the sequence's CURVATURE channel.
+   */
   public static void calculateCurvature(Sequence seq) {
-    calculateCurvature(seq.getPoints());
+    int n = seq.size();
+    for (int i = 1; i < n - 1; i++) {
+      seq.setDouble(Channel.CURVATURE, i, getCurvature(seq.get(i - 1), seq.get(i), seq.get(i + 1)));
+    }
+    // the first and last points have zero curvature
+    seq.setDouble(Channel.CURVATURE, 0, 0.0);
+    seq.setDouble(Channel.CURVATURE, n - 1, 0.0);
   }
 
   public static void calculateCurvature(List<Pt> points) {
@@ -1480,25 +1475,25 @@ public abstract class Functions {
     // being on the sequence, a == b. In the event of extrapolation, b
     // < 0.
 
-    int a = knownIndex;
-    int b = a + direction;
-    double d = knownDistance;
-    Pt ret = null;
-    while (true) {
-      if (b < 0 || b >= seq.size()) {
+    // The sequence's arc length cache lets me find a and b with a binary search rather than by
+    // walking the sequence.
+
+    double knownArc = seq.getArcLength(knownIndex);
+    double offset = desiredDistance - knownDistance;
+    int a;
+    int b;
+    if (direction > 0) {
+      b = seq.getIndexAfterArcLength(knownArc + offset);
+      a = b - 1;
+      if (b >= seq.size()) {
         b = -1;
-        break;
-      }
-      Pt ptA = seq.get(a);
-      Pt ptB = seq.get(b);
-      double segDist = ptA.distance(ptB);
-      if (segDist + d > desiredDistance) {
-        break; // found it!
       }
-      d += segDist;
-      a = b;
-      b += direction;
+    } else {
+      b = seq.getIndexBeforeArcLength(knownArc - offset);
+      a = b + 1;
     }
+    double d = knownDistance + Math.abs(seq.getArcLength(a) - knownArc);
+    Pt ret = null;
 
     if (b >= 0) {
       // if b is non-negative, then a and b are indexes of points that
@@ -1558,55 +1553,54 @@ public abstract class Functions {
   }
 
   public static Pt getCurvilinearWindow(Sequence seq, int idx, double dist, int dir) {
-    double d = 0; // distance travelled so far
     Pt ret = null;
-    for (int i = idx; i > 1 && i < seq.size() - 1; i = i + dir) {
-      Pt a = seq.get(i);
-      Pt b = seq.get(i + dir);
-      double patchDist = a.distance(b);
-      if (patchDist + d > dist) {
-        // interpolate and set ret[1]
-        double remaining = dist - d;
-        double fraction = remaining / patchDist;
-        double dx = b.x - a.x;
-        double dy = b.y - a.y;
-        double x = a.x + (fraction * dx);
-        double y = a.y + (fraction * dy);
-        ret = new Pt(x, y);
-        break;
+    // Segments are only walked while the starting index is strictly between 1 and size()-1, so in
+    // the negative direction the segment between points 1 and 0 is never used.
+    if (idx > 1 && idx < seq.size() - 1) {
+      double here = seq.getArcLength(idx);
+      int a;
+      int b;
+      if (dir > 0) {
+        b = seq.getIndexAfterArcLength(here + dist);
+        a = b - 1;
+        if (b >= seq.size()) {
+          b = -1;
+        }
       } else {
-        d = d + patchDist;
+        b = seq.getIndexBeforeArcLength(here - dist);
+        a = b + 1;
+        if (b < 1) {
+          b = -1;
+        }
+      }
+      if (b >= 0) {
+        Pt ptA = seq.get(a);
+        Pt ptB = seq.get(b);
+        double fraction = (dist - Math.abs(seq.getArcLength(a) - here)) / ptA.distance(ptB);
+        ret = new Pt(ptA.x + fraction * (ptB.x - ptA.x), ptA.y + fraction * (ptB.y - ptA.y));
       }
     }
     return ret;
   }
 
+  /**
+   * Returns the point (with interpolated time) that is targetDist along the sequence from the
+   * point at 'start' in the given direction, or null if the sequence isn't that long.
+   */
   public static Pt getCurvilinearNeighbor(Sequence seq, int start, double targetDist, int dir) {
     Pt ret = null;
-    Pt prev = null;
-    double soFar = 0;
-    for (int i = start; i >= 0 && i < seq.size(); i += dir) {
-      Pt pt = seq.get(i);
-      if (prev != null) {
-        double dist = prev.distance(pt);
-        if (soFar + dist > targetDist) {
-          double remaining = targetDist - soFar;
-          double fraction = remaining / dist;
-          double dx = pt.x - prev.x;
-          double dy = pt.y - prev.y;
-          long dt = pt.getTime() - prev.getTime();
-          double x = prev.x + fraction * dx;
-          double y = prev.y + fraction * dy;
-          long t = prev.getTime() + (long) (fraction * (double) dt);
-          ret = new Pt(x, y, t);
-          break;
-        } else {
-          soFar = soFar + dist;
-        }
+    double here = seq.getArcLength(start);
+    if (dir > 0) {
+      int b = seq.getIndexAfterArcLength(here + targetDist);
+      if (b < seq.size()) {
+        ret = seq.interpolate(b - 1, b, here + targetDist - seq.getArcLength(b - 1));
+      }
+    } else {
+      int b = seq.getIndexBeforeArcLength(here - targetDist);
+      if (b >= 0) {
+        ret = seq.interpolate(b + 1, b, seq.getArcLength(b + 1) - (here - targetDist));
       }
-      prev = pt;
     }
-
     return ret;
   }
 
@@ -1746,7 +1740,7 @@ public abstract class Functions {
         if (isLeft) {
           ret = true;
         } else {
-          Line horizon = new Line(pt, new Pt(pt.getX() + 1.0, pt.getY()));
+          Line horizon = new Line(pt, Pt.anon(pt.getX() + 1.0, pt.getY()));
           Pt xsec = Functions.getIntersectionPoint(horizon, line);
           if (xsec != null && xsec.getX() > pt.getX()) {
             ret = true;
@@ -1958,16 +1952,29 @@ public abstract class Functions {
   }
 
   public static double getEllipseError(RotatedEllipse ellie, List<Pt> points) {
-    double ret = 0;
-    List<Pt> ellipseSurface = ellie.initArc();
+    return getNearestVertexError(points, ellie.initArc());
+  }
+
+  /**
+   * Root of the summed squared distances from each point to its nearest surface vertex, divided by
+   * (points.size() - 2).
+   */
+  private static double getNearestVertexError(List<Pt> points, List<Pt> surface) {
+    int n = points.size();
+    int m = surface.size();
+    double[] px = new double[n];
+    double[] py = new double[n];
+    double[] sx = new double[m];
+    double[] sy = new double[m];
+    copyXY(points, 0, n, px, py);
+    copyXY(surface, 0, m, sx, sy);
+    double[] dist = new double[n];
+    getNearestVertexDistances(px, py, 0, n, sx, sy, 0, m, dist, 0);
     double errorSum = 0;
-    for (Pt pt : points) {
-      Pt nearest = Functions.getNearestPointOnSequence(pt, ellipseSurface);
-      double error = nearest.distance(pt);
-      errorSum = errorSum + (error * error);
+    for (int i = 0; i < n; i++) {
+      errorSum = errorSum + (dist[i] * dist[i]);
     }
-    ret = (sqrt(errorSum) / (points.size() - 2));
-    return ret;
+    return (sqrt(errorSum) / (n - 2));
   }
 
   /**
@@ -1976,16 +1983,8 @@ public abstract class Functions {
    */
   public static double getEllipseError(RotatedEllipse ellie, Sequence target) {
     //    int numPoints = (int) Math.ceil(target.length());
-    double ret = 0;
     List<Pt> ellipseSurface = ellie.initArc();//ellie.getRestrictedArcPath(numPoints);
-    double errorSum = 0;
-    for (Pt pt : target) {
-      Pt nearest = Functions.getNearestPointOnSequence(pt, ellipseSurface);
-      double error = nearest.distance(pt);
-      errorSum = errorSum + (error * error);
-    }
-    ret = (sqrt(errorSum) / (target.size() - 2));
-    return ret;
+    return getNearestVertexError(target.getPoints(), ellipseSurface);
   }
 
   public static double getEllipseError(List<Pt> points) {
@@ -2283,4 +2282,219 @@ public abstract class Functions {
     return ret;
   }
 
+  // ---------------------------------------------------------------------------------------------
+  // Bulk kernels. These do the same math as the Pt/Line versions above, but over a range of
+  // coordinates held in parallel double arrays, and without allocating anything. The loops are
+  // kept plain (no virtual calls, no objects) so the JIT can unroll and vectorize them. Use
+  // copyXY() to get arrays out of a point list, or PackedSequence.getXs()/getYs() if you already
+  // have packed data.
+  // ---------------------------------------------------------------------------------------------
+
+  /**
+   * Copies the x and y coordinates of points [start, start + len) into xs[0..len) and ys[0..len).
+   */
+  public static void copyXY(List<Pt> points, int start, int len, double[] xs, double[] ys) {
+    for (int i = 0; i < len; i++) {
+      Pt pt = points.get(start + i);
+      xs[i] = pt.getX();
+      ys[i] = pt.getY();
+    }
+  }
+
+  /**
+   * Writes the distance between each point in [off, off + len) and the infinite line through (ax,
+   * ay) and (bx, by) into out[outOff..outOff + len). Same as getDistanceBetweenPointAndLine.
+   */
+  public static void getLineDistances(double[] xs, double[] ys, int off, int len, double ax,
+      double ay, double bx, double by, double[] out, int outOff) {
+    double lx = bx - ax;
+    double ly = by - ay;
+    double lenSq = lx * lx + ly * ly;
+    for (int i = 0; i < len; i++) {
+      double px = xs[off + i] - ax;
+      double py = ys[off + i] - ay;
+      double dot = px * lx + py * ly;
+      double d = px * px + py * py - dot * dot / lenSq;
+      out[outOff + i] = sqrt(d < 0 ? 0 : d);
+    }
+  }
+
+  /**
+   * Writes the distance between each point in [off, off + len) and the segment from (ax, ay) to
+   * (bx, by) into out[outOff..outOff + len). Same as getDistanceBetweenPointAndSegment, except that
+   * a zero-length segment is treated as a point.
+   */
+  public static void getSegmentDistances(double[] xs, double[] ys, int off, int len, double ax,
+      double ay, double bx, double by, double[] out, int outOff) {
+    double lx = bx - ax;
+    double ly = by - ay;
+    double lenSq = lx * lx + ly * ly;
+    double inv = lenSq == 0 ? 0 : 1 / lenSq;
+    for (int i = 0; i < len; i++) {
+      double px = xs[off + i] - ax;
+      double py = ys[off + i] - ay;
+      double r = (px * lx + py * ly) * inv;
+      r = r < 0 ? 0 : (r > 1 ? 1 : r);
+      double dx = px - r * lx;
+      double dy = py - r * ly;
+      out[outOff + i] = sqrt(dx * dx + dy * dy);
+    }
+  }
+
+  /**
+   * Returns the sum of squared distances between the points in [off, off + len) and the infinite
+   * line through (ax, ay) and (bx, by).
+   */
+  public static double getLineDistanceSquaredSum(double[] xs, double[] ys, int off, int len,
+      double ax, double ay, double bx, double by) {
+    double lx = bx - ax;
+    double ly = by - ay;
+    double lenSq = lx * lx + ly * ly;
+    double sum = 0;
+    for (int i = 0; i < len; i++) {
+      double px = xs[off + i] - ax;
+      double py = ys[off + i] - ay;
+      double dot = px * lx + py * ly;
+      double d = px * px + py * py - dot * dot / lenSq;
+      sum += d < 0 ? 0 : d;
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the largest distance between a point in [off, off + len) and the infinite line through
+   * (ax, ay) and (bx, by), or zero if len is zero.
+   */
+  public static double getMaxLineDistance(double[] xs, double[] ys, int off, int len, double ax,
+      double ay, double bx, double by) {
+    double lx = bx - ax;
+    double ly = by - ay;
+    double lenSq = lx * lx + ly * ly;
+    double max = 0;
+    for (int i = 0; i < len; i++) {
+      double px = xs[off + i] - ax;
+      double py = ys[off + i] - ay;
+      double dot = px * lx + py * ly;
+      double d = px * px + py * py - dot * dot / lenSq;
+      max = max(max, d);
+    }
+    return sqrt(max);
+  }
+
+  /**
+   * Array version of getLineError(Line, List, int, int): the line runs from point startIdx to point
+   * endIdxInclusive, and the error is the root of the summed squared distances divided by the
+   * number of segments.
+   */
+  public static double getLineError(double[] xs, double[] ys, int startIdx, int endIdxInclusive) {
+    double errorSum = getLineDistanceSquaredSum(xs, ys, startIdx, endIdxInclusive - startIdx + 1,
+        xs[startIdx], ys[startIdx], xs[endIdxInclusive], ys[endIdxInclusive]);
+    return sqrt(errorSum) / (endIdxInclusive - startIdx);
+  }
+
+  /**
+   * Writes the signed curvature of each point in [off, off + len) into out[outOff..outOff + len),
+   * using the same three-point measure as getCurvature(a, b, c). The first and last points get
+   * zero, as in calculateCurvature.
+   */
+  public static void calculateCurvature(double[] xs, double[] ys, int off, int len, double[] out,
+      int outOff) {
+    for (int i = 1; i < len - 1; i++) {
+      out[outOff + i] = getCurvature(xs[off + i - 1], ys[off + i - 1], xs[off + i], ys[off + i],
+          xs[off + i + 1], ys[off + i + 1]);
+    }
+    if (len > 0) {
+      out[outOff] = 0.0;
+      out[outOff + len - 1] = 0.0;
+    }
+  }
+
+  /**
+   * Coordinate version of getCurvature(Pt, Pt, Pt).
+   */
+  public static double getCurvature(double ax, double ay, double bx, double by, double cx,
+      double cy) {
+    double A = bx - ax;
+    double B = by - ay;
+    double C = cx - ax;
+    double D = cy - ay;
+    double G = 2 * (A * (cy - by) - B * (cx - bx));
+    double ret = 0.0;
+    if (G != 0.0) {
+      double E = A * (ax + bx) + B * (ay + by);
+      double F = C * (ax + cx) + D * (ay + cy);
+      double dx = (D * E - B * F) / G - bx;
+      double dy = (A * F - C * E) / G - by;
+      ret = 1 / sqrt(dx * dx + dy * dy);
+    }
+    // same sign convention as getAngleBetween(ab, ac).
+    if (atan2(D, C) - atan2(B, A) < 0) {
+      ret = -ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Writes, for each query point in [qOff, qOff + qLen), the distance to the nearest vertex in [vOff,
+   * vOff + vLen) into out[outOff..outOff + qLen). This is what getNearestPointOnSequence computes
+   * one point at a time.
+   */
+  public static void getNearestVertexDistances(double[] qx, double[] qy, int qOff, int qLen,
+      double[] vx, double[] vy, int vOff, int vLen, double[] out, int outOff) {
+    for (int i = 0; i < qLen; i++) {
+      double x = qx[qOff + i];
+      double y = qy[qOff + i];
+      double best = Double.MAX_VALUE;
+      for (int j = vOff; j < vOff + vLen; j++) {
+        double dx = vx[j] - x;
+        double dy = vy[j] - y;
+        best = min(best, dx * dx + dy * dy);
+      }
+      out[outOff + i] = sqrt(best);
+    }
+  }
+
+  /**
+   * Returns the crossing number of the query point against the polygon whose vertices are [off,
+   * off + len), closing the polygon from the last vertex back to the first. Odd means inside. Same
+   * rule as getCrossingNumber(Pt, List).
+   */
+  public static int getCrossingNumber(double x, double y, double[] xs, double[] ys, int off,
+      int len) {
+    int ret = 0;
+    int end = off + len;
+    for (int i = off; i < end; i++) {
+      int j = i + 1 < end ? i + 1 : off;
+      if (j == off && len <= 2) {
+        break;
+      }
+      double ay = ys[i];
+      double by = ys[j];
+      if ((y <= ay && y > by) || (y >= ay && y < by)) {
+        double ax = xs[i];
+        double bx = xs[j];
+        if (x < ax && x < bx) {
+          ret++;
+        } else if (x <= ax || x <= bx) {
+          double xsec = ax + (y - ay) * (bx - ax) / (by - ay);
+          if (xsec > x) {
+            ret++;
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Computes the crossing number of every query point in [qOff, qOff + qLen) against the polygon
+   * [off, off + len), writing the results into out[outOff..outOff + qLen).
+   */
+  public static void getCrossingNumbers(double[] qx, double[] qy, int qOff, int qLen,
+      double[] xs, double[] ys, int off, int len, int[] out, int outOff) {
+    for (int i = 0; i < qLen; i++) {
+      out[outOff + i] = getCrossingNumber(qx[qOff + i], qy[qOff + i], xs, ys, off, len);
+    }
+  }
+
 }
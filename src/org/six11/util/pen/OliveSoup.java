@@ -32,6 +32,9 @@ public class OliveSoup {
   private MouseThing mouseThing;
   private Map<Sequence, DrawingBuffer> seqToDrawBuf;
 
+  // spatial index of the finished sequences, for hover/selection/snapping queries
+  private SegmentIndex segmentIndex;
+
   // The currentSeq and last index are for managing the currently-in-progress ink stroke
   private GeneralPath gp;
   private boolean gpVisible;
@@ -66,6 +69,7 @@ public class OliveSoup {
     allSoupListeners = new HashMap<String, List<OliveSoupListener>>();
     soupData = new HashMap<String, List<Object>>();
     seqToDrawBuf = new HashMap<Sequence, DrawingBuffer>();
+    segmentIndex = new SegmentIndex();
   }
 
   public void addSoupListener(String type, OliveSoupListener lis) {
@@ -271,7 +275,7 @@ public class OliveSoup {
     // Avoid adding duplicate points to the end of the sequence.
     Pt pt = new Pt(x, y, t);
     if (seq.size() == 0 || !seq.getLast().isSameLocation(pt)) {
-      seq.add(pt);
+      seq.add(pt); // listeners that want running features call seq.getStrokeFeatures()
       SequenceEvent sev = new SequenceEvent(this, seq, SequenceEvent.Type.PROGRESS);
       fireSequenceEvent(sev);
       drawSequence();
@@ -315,6 +319,7 @@ public class OliveSoup {
       drawingBuffers.add(buf);
       combinedBuffers = null;
       pastSequences.add(s);
+      segmentIndex.add(s);
     }
 
     if (s != null) {
@@ -327,6 +332,7 @@ public class OliveSoup {
     if (s != null) {
       drawingBuffers.remove(s);
       pastSequences.remove(s);
+      segmentIndex.remove(s);
       combinedBuffers = null;
     }
   }
@@ -338,6 +344,9 @@ public class OliveSoup {
     }
     removeFinishedSequence(s);
 
+    if (s != null) {
+      s.invalidateArcLength(); // its points were probably moved in place
+    }
     if (s != null && s.size() > 1) {
       DrawingBuffer buf = new DrawingBuffer();
       seqToDrawBuf.put(s, buf);
@@ -361,9 +370,18 @@ public class OliveSoup {
       drawingBuffers.add(buf);
       combinedBuffers = null;
       pastSequences.add(s);
+      segmentIndex.add(s);
     }
   }
 
+  /**
+   * Returns the spatial index of finished sequences. It is kept up to date as sequences are added,
+   * removed, and updated, so use it rather than scanning getSequences() for nearness queries.
+   */
+  public SegmentIndex getSegmentIndex() {
+    return segmentIndex;
+  }
+
   public DrawingBuffer getDrawingBufferForSequence(Sequence s) {
     return seqToDrawBuf.get(s);
   }
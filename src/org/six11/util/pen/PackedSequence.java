@@ -0,0 +1,450 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import java.awt.geom.Rectangle2D;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact alternative to Sequence that stores point data in parallel primitive arrays rather
+ * than as a list of Pt objects. The x, y, and time values live in growable double[] and long[]
+ * arrays. Per-point double attributes (curvature, speed, etc) live in 'channels', which are
+ * double[] columns that are only created the first time somebody writes to them. Unset channel
+ * values are NaN.
+ *
+ * When you need to hand the data to code that wants Pt objects (Functions, Segment,
+ * DrawingBufferRoutines, ...) use getPt(int), asList(), or asSequence(). These return view points
+ * that read and write through to the arrays, so no coordinate data is copied. Views are created
+ * lazily and cached, so asking for the same index twice gives you the same object.
+ *
+ * To get a fully independent Sequence, use toSequence().
+ **/
+public class PackedSequence {
+
+  private static final int DEFAULT_CAPACITY = 64;
+
+  protected double[] xs;
+  protected double[] ys;
+  protected long[] times;
+  protected int size;
+  protected Map<String, double[]> channels;
+  protected PackedPt[] views;
+
+  public PackedSequence() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public PackedSequence(int initialCapacity) {
+    int cap = Math.max(1, initialCapacity);
+    xs = new double[cap];
+    ys = new double[cap];
+    times = new long[cap];
+    size = 0;
+    channels = new HashMap<String, double[]>();
+  }
+
+  /**
+   * Make a packed sequence with a copy of the given sequence's points. Any double-valued point
+   * attributes named in channelNames are copied into channels of the same name. Points that do not
+   * have a given attribute get NaN in that channel.
+   */
+  public PackedSequence(Sequence seq, String... channelNames) {
+    this(seq.size());
+    for (Pt pt : seq) {
+      add(pt.getX(), pt.getY(), pt.getTime());
+    }
+    for (String name : channelNames) {
+      double[] col = getChannel(name);
+      for (int i = 0; i < size; i++) {
+        Pt pt = seq.get(i);
+        if (pt.hasAttribute(name)) {
+          col[i] = pt.getDouble(name);
+        }
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Appends a point and returns its index.
+   */
+  public int add(double x, double y, long time) {
+    ensureCapacity(size + 1);
+    xs[size] = x;
+    ys[size] = y;
+    times[size] = time;
+    return size++;
+  }
+
+  public int add(Pt pt) {
+    return add(pt.getX(), pt.getY(), pt.getTime());
+  }
+
+  public double getX(int idx) {
+    checkIndex(idx);
+    return xs[idx];
+  }
+
+  public double getY(int idx) {
+    checkIndex(idx);
+    return ys[idx];
+  }
+
+  public long getTime(int idx) {
+    checkIndex(idx);
+    return times[idx];
+  }
+
+  public void setLocation(int idx, double x, double y) {
+    checkIndex(idx);
+    xs[idx] = x;
+    ys[idx] = y;
+    if (views != null && views[idx] != null) {
+      views[idx].syncLocation(x, y);
+    }
+  }
+
+  public void setTime(int idx, long time) {
+    checkIndex(idx);
+    times[idx] = time;
+  }
+
+  /**
+   * Removes all points but keeps the allocated arrays, so this can be reused for another stroke
+   * without reallocating. Channels are kept but their contents are reset to NaN. Any outstanding
+   * views become invalid.
+   */
+  public void clear() {
+    size = 0;
+    for (double[] col : channels.values()) {
+      Arrays.fill(col, Double.NaN);
+    }
+    views = null;
+  }
+
+  public void ensureCapacity(int minCapacity) {
+    if (minCapacity > xs.length) {
+      int cap = Math.max(minCapacity, xs.length + (xs.length >> 1) + 1);
+      xs = Arrays.copyOf(xs, cap);
+      ys = Arrays.copyOf(ys, cap);
+      times = Arrays.copyOf(times, cap);
+      for (Map.Entry<String, double[]> e : channels.entrySet()) {
+        e.setValue(grow(e.getValue(), cap));
+      }
+      if (views != null) {
+        views = Arrays.copyOf(views, cap);
+      }
+    }
+  }
+
+  /**
+   * Sets the number of points, for readers that fill the backing arrays in place rather than
+   * calling add() for each point. The first n entries of the arrays must already hold the points,
+   * so n can't be more than the capacity. Shrinking resets the dropped channel values to NaN.
+   */
+  void setSize(int n) {
+    if (n < 0 || n > xs.length) {
+      throw new IllegalArgumentException("Size " + n + " is outside the capacity " + xs.length);
+    }
+    for (int i = n; i < size; i++) {
+      for (double[] col : channels.values()) {
+        col[i] = Double.NaN;
+      }
+    }
+    size = n;
+  }
+
+  /**
+   * Shrinks the backing arrays so they are exactly as long as the number of points.
+   */
+  public void trimToSize() {
+    if (xs.length > size) {
+      int cap = Math.max(1, size);
+      xs = Arrays.copyOf(xs, cap);
+      ys = Arrays.copyOf(ys, cap);
+      times = Arrays.copyOf(times, cap);
+      for (Map.Entry<String, double[]> e : channels.entrySet()) {
+        e.setValue(Arrays.copyOf(e.getValue(), cap));
+      }
+      if (views != null) {
+        views = Arrays.copyOf(views, cap);
+      }
+    }
+  }
+
+  private static double[] grow(double[] col, int cap) {
+    int oldLen = col.length;
+    double[] ret = Arrays.copyOf(col, cap);
+    Arrays.fill(ret, oldLen, cap, Double.NaN);
+    return ret;
+  }
+
+  private void checkIndex(int idx) {
+    if (idx < 0 || idx >= size) {
+      throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + size);
+    }
+  }
+
+  /**
+   * Returns the backing x array. It is likely longer than size(), so only look at the first size()
+   * elements. The array is replaced when the sequence grows, so don't hold on to it across calls
+   * to add().
+   */
+  public double[] getXs() {
+    return xs;
+  }
+
+  /**
+   * Returns the backing y array. See getXs() for caveats.
+   */
+  public double[] getYs() {
+    return ys;
+  }
+
+  /**
+   * Returns the backing time array. See getXs() for caveats.
+   */
+  public long[] getTimes() {
+    return times;
+  }
+
+  public boolean hasChannel(String name) {
+    return channels.containsKey(name);
+  }
+
+  public Set<String> getChannelNames() {
+    return channels.keySet();
+  }
+
+  /**
+   * Returns the backing array for the named channel, creating it (filled with NaN) if it doesn't
+   * exist yet. See getXs() for caveats.
+   */
+  public double[] getChannel(String name) {
+    double[] ret = channels.get(name);
+    if (ret == null) {
+      ret = new double[xs.length];
+      Arrays.fill(ret, Double.NaN);
+      channels.put(name, ret);
+    }
+    return ret;
+  }
+
+  public void removeChannel(String name) {
+    channels.remove(name);
+  }
+
+  public double getDouble(String name, int idx) {
+    checkIndex(idx);
+    double[] col = channels.get(name);
+    return col == null ? Double.NaN : col[idx];
+  }
+
+  public void setDouble(String name, int idx, double value) {
+    checkIndex(idx);
+    getChannel(name)[idx] = value;
+  }
+
+  public boolean hasDouble(String name, int idx) {
+    return !Double.isNaN(getDouble(name, idx));
+  }
+
+  /**
+   * Returns the arc length of the entire sequence.
+   */
+  public double length() {
+    return getPathLength(0, size - 1);
+  }
+
+  /**
+   * Returns the arc length between the given indices, assuming straight lines between successive
+   * points.
+   */
+  public double getPathLength(int idxStartInclusive, int idxEndInclusive) {
+    double ret = 0;
+    for (int i = idxStartInclusive; i < idxEndInclusive; i++) {
+      double dx = xs[i + 1] - xs[i];
+      double dy = ys[i + 1] - ys[i];
+      ret += Math.sqrt(dx * dx + dy * dy);
+    }
+    return ret;
+  }
+
+  public Rectangle2D getBounds2D() {
+    Rectangle2D ret = null;
+    if (size > 0) {
+      double minX = xs[0], maxX = xs[0], minY = ys[0], maxY = ys[0];
+      for (int i = 1; i < size; i++) {
+        minX = Math.min(minX, xs[i]);
+        maxX = Math.max(maxX, xs[i]);
+        minY = Math.min(minY, ys[i]);
+        maxY = Math.max(maxY, ys[i]);
+      }
+      ret = new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+    }
+    return ret;
+  }
+
+  /**
+   * Returns a Pt that is a view onto the given index. Changing its location or time (or any double
+   * attribute) writes through to this packed sequence. Other attribute types are stored on the view
+   * itself as usual.
+   */
+  public Pt getPt(int idx) {
+    checkIndex(idx);
+    if (views == null) {
+      views = new PackedPt[xs.length];
+    }
+    if (views[idx] == null) {
+      views[idx] = new PackedPt(idx);
+    }
+    return views[idx];
+  }
+
+  /**
+   * Copies the given index into an existing Pt. This is useful in tight loops where you just need a
+   * scratch point and don't want to allocate anything.
+   */
+  public Pt load(int idx, Pt dest) {
+    checkIndex(idx);
+    dest.setLocation(xs[idx], ys[idx]);
+    dest.setTime(times[idx]);
+    return dest;
+  }
+
+  /**
+   * Returns a fixed-size List view of this sequence whose elements are the view points returned by
+   * getPt(int).
+   */
+  public List<Pt> asList() {
+    return new AbstractList<Pt>() {
+      public Pt get(int idx) {
+        return getPt(idx);
+      }
+
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Returns a Sequence whose points are views onto this packed sequence. Moving those points moves
+   * the packed data, but adding or removing points in the returned Sequence does not.
+   */
+  public Sequence asSequence() {
+    Sequence ret = new Sequence();
+    for (int i = 0; i < size; i++) {
+      ret.add(getPt(i));
+    }
+    return ret;
+  }
+
+  /**
+   * Returns a brand new Sequence that shares nothing with this packed sequence. Each channel that
+   * has a value for a point is copied into that point's double attribute of the same name.
+   */
+  public Sequence toSequence() {
+    Sequence ret = new Sequence();
+    for (int i = 0; i < size; i++) {
+      Pt pt = new Pt(xs[i], ys[i], times[i]);
+      for (Map.Entry<String, double[]> e : channels.entrySet()) {
+        double v = e.getValue()[i];
+        if (!Double.isNaN(v)) {
+          pt.setDouble(e.getKey(), v);
+        }
+      }
+      ret.add(pt);
+    }
+    return ret;
+  }
+
+  /**
+   * A Pt that reads and writes location, time, and double attributes through to a PackedSequence.
+   * The inherited x and y fields are kept in sync since lots of code reads them directly. Views are
+   * anonymous (NO_ID), so making them doesn't use up point ids; each view is only equal to itself.
+   */
+  private class PackedPt extends Pt {
+    private static final long serialVersionUID = 1L;
+
+    private final int idx;
+
+    PackedPt(int idx) {
+      super(NO_ID, xs[idx], ys[idx], times[idx]);
+      this.idx = idx;
+    }
+
+    void syncLocation(double x, double y) {
+      this.x = x;
+      this.y = y;
+    }
+
+    public void setLocation(double x, double y) {
+      super.setLocation(x, y);
+      xs[idx] = x;
+      ys[idx] = y;
+    }
+
+    public long getTime() {
+      return times[idx];
+    }
+
+    public void setTime(long time) {
+      super.setTime(time);
+      times[idx] = time;
+    }
+
+    public void setDouble(String name, double value) {
+      getChannel(name)[idx] = value;
+    }
+
+    public double getDouble(String name) {
+      double[] col = channels.get(name);
+      if (col != null && !java.lang.Double.isNaN(col[idx])) {
+        return col[idx];
+      }
+      return super.getDouble(name);
+    }
+
+    public double getDouble(String name, double defaultValue) {
+      double[] col = channels.get(name);
+      if (col != null && !java.lang.Double.isNaN(col[idx])) {
+        return col[idx];
+      }
+      return super.getDouble(name, defaultValue);
+    }
+
+    public boolean hasAttribute(String name) {
+      double[] col = channels.get(name);
+      return (col != null && !java.lang.Double.isNaN(col[idx])) || super.hasAttribute(name);
+    }
+
+    public Object getAttribute(String name) {
+      double[] col = channels.get(name);
+      if (col != null && !java.lang.Double.isNaN(col[idx])) {
+        return col[idx];
+      }
+      return super.getAttribute(name);
+    }
+
+    public void removeAttribute(String name) {
+      double[] col = channels.get(name);
+      if (col != null) {
+        col[idx] = java.lang.Double.NaN;
+      }
+      super.removeAttribute(name);
+    }
+  }
+}
@@ -10,17 +10,30 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Comparator;
 
+import org.six11.util.thread.IdAllocator;
+
 /**
  * My own special point object that does magic tricks, especially when paired with other Pt objects
  * in a Sequence. It helps me do calculations and provides a cleaner syntax than it's parent class.
  * I mean, seriously, I got sick of doing Point2D pt = new Point2D.Double(x, y) -- it's so ugly next
  * to Pt pt = new Pt(x, y);
  * 
- * I can also write on points because of the attributes map.
+ * I can also write on points because of the attributes map. The map is only created the first time
+ * something is written to it, so plain points are cheap. For per-point numbers that are computed
+ * over a whole stroke (curvature, speed, ...) see Sequence's Channel API.
+ * 
+ * Every point gets a unique id from a thread-friendly allocator. Throwaway geometry that will never
+ * be compared by id can skip that by using Pt.anon(x, y), which makes a point with id NO_ID. Such
+ * points are only equal to themselves.
  **/
 public class Pt extends Point2D.Double implements Comparable<Pt> {
 
-  public static int ID_COUNTER = 0;
+  /**
+   * The id given to anonymous points. See anon(double, double).
+   */
+  public static final int NO_ID = -1;
+
+  private static final IdAllocator IDS = new IdAllocator(1);
 
   protected long time;
   protected Map<String, Object> attribs;
@@ -51,16 +64,37 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
   }
 
   public Pt(double x, double y, long time) {
-    this(++ID_COUNTER, x, y, time);
-    this.time = time;
+    this(IDS.nextId(), x, y, time, false);
   }
 
+  /**
+   * Make a point with a specific id, e.g. when reading it back from a file. The id will not be
+   * handed out to any point made later. Use NO_ID to make an anonymous point.
+   */
   public Pt(int id, double x, double y, long time) {
+    this(id, x, y, time, true);
+  }
+
+  private Pt(int id, double x, double y, long time, boolean explicitId) {
     super(x, y);
     this.id = id;
     this.time = time;
-    attribs = new HashMap<String, Object>();
-    ID_COUNTER = Math.max(id, ID_COUNTER);
+    if (explicitId && id != NO_ID) {
+      IDS.reserveThrough(id);
+    }
+  }
+
+  /**
+   * Makes a point with no id. This is for temporary geometry that is computed, used, and dropped,
+   * so it doesn't need to take a number from the id allocator. Anonymous points are only equal to
+   * themselves.
+   */
+  public static Pt anon(double x, double y) {
+    return new Pt(NO_ID, x, y, 0L, false);
+  }
+
+  public boolean isAnonymous() {
+    return id == NO_ID;
   }
 
   public Pt(Point2D source, long time) {
@@ -199,14 +233,14 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
     // boolean advanced = basic ? getAttribs().equals(other.getAttribs()) : false;
     //
     // return basic && advanced;
-    return this.id == other.id;
+    return (id == NO_ID || other.id == NO_ID) ? this == other : this.id == other.id;
   }
 
   public int hashCode() {
 //    // this is totally a guess
 //    int hash = super.hashCode() ^ ((Long) time).hashCode() ^ getAttribs().hashCode();
 //    return hash;
-    return ((Integer) id).hashCode();
+    return id == NO_ID ? System.identityHashCode(this) : id;
   }
 
   public Pt copyXYT() {
@@ -224,7 +258,7 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
     return twin;
   }
 
-  public final void setTime(long time) {
+  public void setTime(long time) {
     this.time = time;
   }
 
@@ -241,12 +275,12 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
   }
 
   public boolean getBoolean(String name) {
-    return (getAttribs().containsKey(name) && (Boolean) getAttribute(name));
+    return (hasAttribute(name) && (Boolean) getAttribute(name));
   }
 
   public boolean getBoolean(String name, boolean defaultValue) {
     boolean ret = defaultValue;
-    if (getAttribs().containsKey(name)) {
+    if (hasAttribute(name)) {
       ret = (Boolean) getAttribute(name);
     }
     return ret;
@@ -264,15 +298,17 @@ public class Pt extends Point2D.Double implements Comparable<Pt> {
   }
 
   public boolean hasAttribute(String name) {
-    return getAttribs().containsKey(name);
+    return attribs != null && attribs.containsKey(name);
   }
 
   public Object getAttribute(String name) {
-    return getAttribs().get(name);
+    return attribs == null ? null : attribs.get(name);
   }
 
   public void removeAttribute(String name) {
-    getAttribs().remove(name);
+    if (attribs != null) {
+      attribs.remove(name);
+    }
   }
 
   public Vec getVec(String name) {
@@ -0,0 +1,353 @@
+// $Id$
+
+package org.six11.util.pen;
+
+/**
+ * Resamples strokes into primitive x, y, and time arrays. A Resampler keeps its input and output
+ * buffers between calls, so once it has seen a stroke as big as the ones you are feeding it,
+ * resampling allocates nothing. That makes it suitable for recognizers that resample every
+ * incoming stroke. You can also hand it your own output buffers with setBuffers(); they are only
+ * replaced if they are too small.
+ *
+ * There are four modes:
+ *
+ * <ul>
+ * <li>resampleBySpacing: points every 'spacing' units along the path, starting at the first point,
+ * plus the last point. This matches Functions.getCurvilinearNormalizedSequence.</li>
+ * <li>resampleByCount: exactly n points evenly spaced along the path, including both endpoints.</li>
+ * <li>resampleByTime: points every 'dt' milliseconds, starting at the first point's time, plus the
+ * last point. Positions are interpolated in time, so the input should be nondecreasing in time.</li>
+ * <li>resampleByChord: straight hops of 'step' units from each sample towards the next input point,
+ * plus the first and last points. This matches Functions.getNormalizedSequence(List, double).</li>
+ * </ul>
+ *
+ * Results are read with size(), getXs(), getYs(), and getTimes(). Only the first size() entries of
+ * those arrays mean anything. Resampler instances are not thread-safe; use one per thread.
+ *
+ * @author Gabe Johnson <johnsogg@cmu.edu>
+ */
+public class Resampler {
+
+  // input scratch space, used when the source is a Sequence
+  private double[] inX = new double[0];
+  private double[] inY = new double[0];
+  private long[] inT = new long[0];
+
+  private double[] outX;
+  private double[] outY;
+  private long[] outT;
+  private int size;
+
+  private final Walker walker = new Walker();
+
+  public Resampler() {
+    this(64);
+  }
+
+  public Resampler(int initialCapacity) {
+    int cap = Math.max(2, initialCapacity);
+    setBuffers(new double[cap], new double[cap], new long[cap]);
+  }
+
+  /**
+   * Use the given arrays for output. They are used as long as they are big enough; if a result
+   * needs more room, bigger arrays replace them, so always read results through getXs() etc.
+   */
+  public void setBuffers(double[] xs, double[] ys, long[] times) {
+    outX = xs;
+    outY = ys;
+    outT = times;
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public double[] getXs() {
+    return outX;
+  }
+
+  public double[] getYs() {
+    return outY;
+  }
+
+  public long[] getTimes() {
+    return outT;
+  }
+
+  public int resampleBySpacing(Sequence seq, double spacing) {
+    int n = load(seq);
+    return resampleBySpacing(inX, inY, inT, 0, n, spacing);
+  }
+
+  public int resampleBySpacing(PackedSequence seq, double spacing) {
+    return resampleBySpacing(seq.getXs(), seq.getYs(), seq.getTimes(), 0, seq.size(), spacing);
+  }
+
+  /**
+   * Resamples points [off, off + len) of the given arrays so the results are 'spacing' units apart
+   * along the path. The first point is always included, even if the path has no length, and so is
+   * the last (even if it is closer than 'spacing' to the previous sample). A single input point
+   * comes out once. Returns the number of output points.
+   */
+  public int resampleBySpacing(double[] xs, double[] ys, long[] ts, int off, int len,
+      double spacing) {
+    if (spacing <= 0) {
+      throw new IllegalArgumentException("Spacing must be positive: " + spacing);
+    }
+    size = 0;
+    if (len > 0) {
+      double total = pathLength(xs, ys, off, len);
+      ensureCapacity((int) Math.min(Integer.MAX_VALUE - 8, Math.ceil(total / spacing) + 2));
+      emit(xs[off], ys[off], ts[off]); // even if the path has no length
+      Walker w = walker.start(xs, ys, ts, off, len);
+      for (int k = 1; k * spacing < total; k++) {
+        w.emitAt(k * spacing);
+      }
+      if (len > 1) {
+        emit(xs[off + len - 1], ys[off + len - 1], ts[off + len - 1]);
+      }
+    }
+    return size;
+  }
+
+  public int resampleByCount(Sequence seq, int count) {
+    int n = load(seq);
+    return resampleByCount(inX, inY, inT, 0, n, count);
+  }
+
+  public int resampleByCount(PackedSequence seq, int count) {
+    return resampleByCount(seq.getXs(), seq.getYs(), seq.getTimes(), 0, seq.size(), count);
+  }
+
+  /**
+   * Resamples points [off, off + len) of the given arrays to exactly 'count' points that are evenly
+   * spaced along the path. The first and last outputs are the first and last inputs. Returns the
+   * number of output points, which is 'count' unless the input is empty.
+   */
+  public int resampleByCount(double[] xs, double[] ys, long[] ts, int off, int len, int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Count must be at least one: " + count);
+    }
+    size = 0;
+    if (len > 0) {
+      ensureCapacity(count);
+      if (count == 1) {
+        emit(xs[off], ys[off], ts[off]);
+      } else {
+        double total = pathLength(xs, ys, off, len);
+        Walker w = walker.start(xs, ys, ts, off, len);
+        for (int k = 0; k < count - 1; k++) {
+          w.emitAt(total * k / (count - 1));
+        }
+        emit(xs[off + len - 1], ys[off + len - 1], ts[off + len - 1]);
+      }
+    }
+    return size;
+  }
+
+  public int resampleByTime(Sequence seq, long dt) {
+    int n = load(seq);
+    return resampleByTime(inX, inY, inT, 0, n, dt);
+  }
+
+  public int resampleByTime(PackedSequence seq, long dt) {
+    return resampleByTime(seq.getXs(), seq.getYs(), seq.getTimes(), 0, seq.size(), dt);
+  }
+
+  /**
+   * Resamples points [off, off + len) of the given arrays at times t0, t0 + dt, t0 + 2dt, ... (where
+   * t0 is the first point's time) for as long as that is before the last point's time, and then
+   * adds the last point. Returns the number of output points.
+   */
+  public int resampleByTime(double[] xs, double[] ys, long[] ts, int off, int len, long dt) {
+    if (dt <= 0) {
+      throw new IllegalArgumentException("Time step must be positive: " + dt);
+    }
+    size = 0;
+    if (len > 0) {
+      long t0 = ts[off];
+      long tEnd = ts[off + len - 1];
+      ensureCapacity((int) Math.min(Integer.MAX_VALUE - 8, Math.max(0, (tEnd - t0) / dt) + 2));
+      int seg = off; // the segment [seg, seg + 1] being looked at
+      for (long t = t0; t < tEnd; t += dt) {
+        while (seg + 1 < off + len - 1 && ts[seg + 1] <= t) {
+          seg++;
+        }
+        long span = ts[seg + 1] - ts[seg];
+        double frac = span <= 0 ? 0 : (double) (t - ts[seg]) / span;
+        frac = Math.max(0, Math.min(1, frac));
+        emit(xs[seg] + frac * (xs[seg + 1] - xs[seg]), ys[seg] + frac * (ys[seg + 1] - ys[seg]), t);
+      }
+      emit(xs[off + len - 1], ys[off + len - 1], tEnd);
+    }
+    return size;
+  }
+
+  public int resampleByChord(Sequence seq, double step) {
+    int n = load(seq);
+    return resampleByChord(inX, inY, inT, 0, n, step);
+  }
+
+  public int resampleByChord(PackedSequence seq, double step) {
+    return resampleByChord(seq.getXs(), seq.getYs(), seq.getTimes(), 0, seq.size(), step);
+  }
+
+  /**
+   * Resamples points [off, off + len) of the given arrays by hopping 'step' units in a straight
+   * line from the last sample towards each input point in turn, for as long as that point is more
+   * than 'step' away. The samples are 'step' apart in a Euclidean way, but cut corners, so they
+   * are not evenly spaced along the path. The first and last points are always included. Returns
+   * the number of output points.
+   */
+  public int resampleByChord(double[] xs, double[] ys, long[] ts, int off, int len, double step) {
+    if (step <= 0) {
+      throw new IllegalArgumentException("Step must be positive: " + step);
+    }
+    size = 0;
+    if (len > 0) {
+      double total = pathLength(xs, ys, off, len);
+      ensureCapacity((int) Math.min(Integer.MAX_VALUE - 8, Math.ceil(total / step) + 2));
+      double px = xs[off];
+      double py = ys[off];
+      long pt = ts[off];
+      emit(px, py, pt);
+      for (int i = off + 1; i < off + len; i++) {
+        double dx = xs[i] - px;
+        double dy = ys[i] - py;
+        double mag = Math.sqrt(dx * dx + dy * dy);
+        while (mag > step) {
+          double frac = step / mag;
+          px += dx * frac;
+          py += dy * frac;
+          pt += (long) ((double) (ts[i] - pt) * frac);
+          emit(px, py, pt);
+          dx = xs[i] - px;
+          dy = ys[i] - py;
+          mag = Math.sqrt(dx * dx + dy * dy);
+        }
+      }
+      emit(xs[off + len - 1], ys[off + len - 1], ts[off + len - 1]);
+    }
+    return size;
+  }
+
+  /**
+   * Copies the current result into the given packed sequence, replacing whatever it had.
+   */
+  public void writeTo(PackedSequence dest) {
+    dest.clear();
+    dest.ensureCapacity(size);
+    for (int i = 0; i < size; i++) {
+      dest.add(outX[i], outY[i], outT[i]);
+    }
+  }
+
+  /**
+   * Makes a new Sequence from the current result. This allocates, obviously.
+   */
+  public Sequence toSequence() {
+    Sequence ret = new Sequence();
+    for (int i = 0; i < size; i++) {
+      ret.add(new Pt(outX[i], outY[i], outT[i]));
+    }
+    return ret;
+  }
+
+  /**
+   * Walks forward along a polyline, emitting interpolated points at increasing path distances.
+   */
+  private class Walker {
+    double[] xs, ys;
+    long[] ts;
+    int last;
+    int seg; // current segment is [seg, seg + 1]
+    double segStart; // path distance at point seg
+    double segLen;
+
+    Walker start(double[] xs, double[] ys, long[] ts, int off, int len) {
+      this.xs = xs;
+      this.ys = ys;
+      this.ts = ts;
+      this.last = off + len - 1;
+      this.seg = off;
+      this.segStart = 0;
+      this.segLen = seg < last ? dist(seg) : 0;
+      return this;
+    }
+
+    private double dist(int i) {
+      double dx = xs[i + 1] - xs[i];
+      double dy = ys[i + 1] - ys[i];
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    void emitAt(double d) {
+      while (seg + 1 < last && segStart + segLen <= d) {
+        segStart += segLen;
+        seg++;
+        segLen = dist(seg);
+      }
+      if (seg >= last) {
+        emit(xs[last], ys[last], ts[last]);
+      } else {
+        double frac = segLen == 0 ? 0 : Math.min(1, (d - segStart) / segLen);
+        emit(xs[seg] + frac * (xs[seg + 1] - xs[seg]), ys[seg] + frac * (ys[seg + 1] - ys[seg]),
+            ts[seg] + (long) (frac * (double) (ts[seg + 1] - ts[seg])));
+      }
+    }
+  }
+
+  private void emit(double x, double y, long t) {
+    if (size == outX.length) {
+      ensureCapacity(size + 1);
+    }
+    outX[size] = x;
+    outY[size] = y;
+    outT[size] = t;
+    size++;
+  }
+
+  private void ensureCapacity(int n) {
+    if (outX.length < n || outY.length < n || outT.length < n) {
+      int cap = Math.max(n, outX.length + (outX.length >> 1) + 1);
+      double[] nx = new double[cap];
+      double[] ny = new double[cap];
+      long[] nt = new long[cap];
+      System.arraycopy(outX, 0, nx, 0, size);
+      System.arraycopy(outY, 0, ny, 0, size);
+      System.arraycopy(outT, 0, nt, 0, size);
+      outX = nx;
+      outY = ny;
+      outT = nt;
+    }
+  }
+
+  private int load(Sequence seq) {
+    int n = seq.size();
+    if (inX.length < n) {
+      int cap = Math.max(n, inX.length + (inX.length >> 1) + 1);
+      inX = new double[cap];
+      inY = new double[cap];
+      inT = new long[cap];
+    }
+    for (int i = 0; i < n; i++) {
+      Pt pt = seq.get(i);
+      inX[i] = pt.getX();
+      inY[i] = pt.getY();
+      inT[i] = pt.getTime();
+    }
+    return n;
+  }
+
+  private static double pathLength(double[] xs, double[] ys, int off, int len) {
+    double ret = 0;
+    for (int i = off; i < off + len - 1; i++) {
+      double dx = xs[i + 1] - xs[i];
+      double dy = ys[i + 1] - ys[i];
+      ret += Math.sqrt(dx * dx + dy * dy);
+    }
+    return ret;
+  }
+}
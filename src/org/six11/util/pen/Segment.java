@@ -12,7 +12,6 @@ import org.six11.util.gui.shape.ShapeFactory;
 import org.six11.util.pen.CardinalSpline;
 import org.six11.util.pen.CircleArc;
 import org.six11.util.pen.Functions;
-import org.six11.util.pen.Line;
 import org.six11.util.pen.Pt;
 import org.six11.util.pen.Sequence;
 
@@ -32,6 +31,11 @@ public class Segment implements Comparable<Segment> {
   Sequence seq;
   CircleArc bestCircle;
 
+  // coordinates of seq[idxStart..idxEnd], so the line error kernels can run over primitive
+  // arrays. Sequence index i is at xs[i - idxStart].
+  private double[] xs, ys;
+  private double[] distScratch; // for getMostDistant
+
   SortedSet<Pt> splineControlPoints;
   List<Pt> splinePoints;
 
@@ -47,6 +51,10 @@ public class Segment implements Comparable<Segment> {
     this.seq = seq;
     this.idxStart = seq.indexOf(start);
     this.idxEnd = seq.indexOf(end);
+    int len = Math.max(0, idxEnd - idxStart + 1);
+    this.xs = new double[len];
+    this.ys = new double[len];
+    Functions.copyXY(seq.getPoints(), idxStart, len, xs, ys);
     this.errorLine = lineOK ? calculateLineError() * lineMult : Double.POSITIVE_INFINITY;
     this.errorCircle = arcOK ? calculateCircleError() * arcMult : Double.POSITIVE_INFINITY;
     this.errorSpline = splineOK ? calculateSplineError(splineErrorThresh) * splineMult
@@ -87,11 +95,17 @@ public class Segment implements Comparable<Segment> {
   private int getMostDistant(int a, int b) {
     int ret = a;
     double farthest = 0;
-    Line line = new Line(seq.get(a), seq.get(b));
+    if (distScratch == null) {
+      distScratch = new double[xs.length];
+    }
+    double[] dist = distScratch;
+    int ia = a - idxStart;
+    int ib = b - idxStart;
+    Functions.getLineDistances(xs, ys, ia, b - a + 1, xs[ia], ys[ia], xs[ib], ys[ib], dist, 0);
     for (int i = a; i <= b; i++) {
       Pt pt = seq.get(i);
       if (!splineControlPoints.contains(pt)) {
-        double v = Functions.getDistanceBetweenPointAndLine(pt, line);
+        double v = dist[i - a];
         if (farthest < v) {
           ret = i;
           farthest = v;
@@ -153,7 +167,8 @@ public class Segment implements Comparable<Segment> {
    * Return the curvilinear distance of this segment.
    */
   double length() {
-    return end.getDouble("curvilinear-distance") - start.getDouble("curvilinear-distance");
+    return seq.getDouble(Channel.CURVILINEAR_DISTANCE, idxEnd)
+        - seq.getDouble(Channel.CURVILINEAR_DISTANCE, idxStart);
   }
 
   /**
@@ -202,23 +217,17 @@ public class Segment implements Comparable<Segment> {
    * between them.
    */
   private double calculateLineError(int a, int b) {
-    Line line = new Line(seq.get(a), seq.get(b));
-    double ret = 0;
-    for (int i = a; i <= b; i++) {
-      double dist = Functions.getDistanceBetweenPointAndLine(seq.get(i), line);
-      ret += dist * dist;
-    }
+    int ia = a - idxStart;
+    int ib = b - idxStart;
+    double ret = Functions.getLineDistanceSquaredSum(xs, ys, ia, b - a + 1, xs[ia], ys[ia],
+        xs[ib], ys[ib]);
     return ret / (b - a);
   }
 
   private double calculateMaxLineError(int a, int b) {
-    Line line = new Line(seq.get(a), seq.get(b));
-    double ret = 0;
-    for (int i = a; i <= b; i++) {
-      double dist = Functions.getDistanceBetweenPointAndLine(seq.get(i), line);
-      ret = Math.max(ret, dist);
-    }
-    return ret;
+    int ia = a - idxStart;
+    int ib = b - idxStart;
+    return Functions.getMaxLineDistance(xs, ys, ia, b - a + 1, xs[ia], ys[ia], xs[ib], ys[ib]);
   }
 
   private double calculateCircleError() {
@@ -0,0 +1,400 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid of the line segments that make up many Sequences, for answering nearest-segment
+ * and within-radius questions without looking at every point of every stroke. Each segment (point i
+ * to point i+1) is put in every cell its bounding box touches. A single-point sequence is stored
+ * as a degenerate segment.
+ *
+ * Sequences are indexed by identity. If you move the points of a sequence that is in the index,
+ * call update(seq) afterwards.
+ *
+ * This is not thread-safe, not even for concurrent queries.
+ *
+ * @author Gabe Johnson <johnsogg@cmu.edu>
+ */
+public class SegmentIndex {
+
+  public static final double DEFAULT_CELL_SIZE = 32.0;
+
+  private final double cellSize;
+  private final Map<Long, List<Entry>> cells;
+  private final Map<Sequence, List<Entry>> bySequence;
+  private int minCX, minCY, maxCX, maxCY;
+  private int segmentCount;
+  private int queryStamp;
+
+  public SegmentIndex() {
+    this(DEFAULT_CELL_SIZE);
+  }
+
+  public SegmentIndex(double cellSize) {
+    this.cellSize = cellSize;
+    this.cells = new HashMap<Long, List<Entry>>();
+    this.bySequence = new HashMap<Sequence, List<Entry>>();
+    resetExtent();
+  }
+
+  /**
+   * The result of a query: a segment of some sequence, the nearest point on it, and the distance.
+   */
+  public static class Hit implements Comparable<Hit> {
+    private final Sequence seq;
+    private final int idx;
+    private final double t;
+    private final double x, y;
+    private final double dist;
+
+    Hit(Sequence seq, int idx, double t, double x, double y, double dist) {
+      this.seq = seq;
+      this.idx = idx;
+      this.t = t;
+      this.x = x;
+      this.y = y;
+      this.dist = dist;
+    }
+
+    public Sequence getSequence() {
+      return seq;
+    }
+
+    /**
+     * The index of the segment's first point.
+     */
+    public int getIndex() {
+      return idx;
+    }
+
+    /**
+     * Where the nearest point is along the segment, from 0 (at getIndex()) to 1 (at getIndex() + 1).
+     */
+    public double getParam() {
+      return t;
+    }
+
+    public double getDistance() {
+      return dist;
+    }
+
+    /**
+     * Returns the nearest point. If it is one of the sequence's own points you get that point,
+     * otherwise you get a new interpolated point.
+     */
+    public Pt getPoint() {
+      Pt ret;
+      if (t <= 0 || idx + 1 >= seq.size()) {
+        ret = seq.get(idx);
+      } else if (t >= 1) {
+        ret = seq.get(idx + 1);
+      } else {
+        Pt a = seq.get(idx);
+        Pt b = seq.get(idx + 1);
+        ret = new Pt(x, y, a.getTime() + (long) (t * (b.getTime() - a.getTime())));
+      }
+      return ret;
+    }
+
+    public int compareTo(Hit other) {
+      return Double.compare(dist, other.dist);
+    }
+  }
+
+  private static class Entry {
+    final Sequence seq;
+    final int idx;
+    final int loX, hiX, loY, hiY; // the cells it was put in, which stay put if the points move
+    int stamp;
+
+    Entry(Sequence seq, int idx, int loX, int hiX, int loY, int hiY) {
+      this.seq = seq;
+      this.idx = idx;
+      this.loX = loX;
+      this.hiX = hiX;
+      this.loY = loY;
+      this.hiY = hiY;
+    }
+  }
+
+  public double getCellSize() {
+    return cellSize;
+  }
+
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  public int getSequenceCount() {
+    return bySequence.size();
+  }
+
+  public boolean contains(Sequence seq) {
+    return bySequence.containsKey(seq);
+  }
+
+  /**
+   * Adds all the segments of the given sequence. If it is already in the index it is re-indexed.
+   */
+  public void add(Sequence seq) {
+    if (bySequence.containsKey(seq)) {
+      remove(seq);
+    }
+    List<Entry> entries = new ArrayList<Entry>();
+    int n = seq.size();
+    if (n == 1) {
+      entries.add(insert(seq, 0, seq.get(0), seq.get(0)));
+    }
+    for (int i = 0; i < n - 1; i++) {
+      entries.add(insert(seq, i, seq.get(i), seq.get(i + 1)));
+    }
+    bySequence.put(seq, entries);
+    segmentCount += entries.size();
+  }
+
+  /**
+   * Removes all the segments of the given sequence. Does nothing if it isn't in the index.
+   */
+  public void remove(Sequence seq) {
+    List<Entry> entries = bySequence.remove(seq);
+    if (entries != null) {
+      for (Entry e : entries) {
+        removeFromCells(e);
+      }
+      segmentCount -= entries.size();
+      if (bySequence.isEmpty()) {
+        cells.clear();
+        resetExtent();
+      }
+    }
+  }
+
+  /**
+   * Re-indexes a sequence whose points have changed. Each segment is removed from the cells it was
+   * put in, wherever its points are now.
+   */
+  public void update(Sequence seq) {
+    remove(seq);
+    add(seq);
+  }
+
+  public void clear() {
+    cells.clear();
+    bySequence.clear();
+    segmentCount = 0;
+    resetExtent();
+  }
+
+  /**
+   * Returns the segment nearest the given location, or null if there is none within maxDist. Use
+   * Double.MAX_VALUE if you don't care how far away it is.
+   */
+  public Hit getNearest(Pt where, double maxDist) {
+    List<Hit> ret = getNearest(where, 1, maxDist);
+    return ret.isEmpty() ? null : ret.get(0);
+  }
+
+  /**
+   * Returns up to k segments nearest the given location and within maxDist, nearest first.
+   */
+  public List<Hit> getNearest(Pt where, int k, double maxDist) {
+    List<Hit> best = new ArrayList<Hit>(k + 1);
+    if (segmentCount == 0 || k <= 0) {
+      return best;
+    }
+    double px = where.getX();
+    double py = where.getY();
+    int cx = cell(px);
+    int cy = cell(py);
+    int stamp = ++queryStamp;
+    int maxRing = Math.max(Math.max(Math.abs(cx - minCX), Math.abs(cx - maxCX)), Math.max(Math
+        .abs(cy - minCY), Math.abs(cy - maxCY)));
+    // rings closer than this don't contain any cells that have ever been used.
+    int firstRing = Math.max(0, Math.max(Math.max(minCX - cx, cx - maxCX), Math.max(minCY - cy, cy
+        - maxCY)));
+    for (int r = firstRing; r <= maxRing; r++) {
+      // everything in ring r and beyond is at least this far away.
+      double ringDist = (r - 1) * cellSize;
+      if (ringDist > maxDist || (best.size() == k && best.get(k - 1).dist <= ringDist)) {
+        break;
+      }
+      int loX = Math.max(cx - r, minCX);
+      int hiX = Math.min(cx + r, maxCX);
+      for (int i = loX; i <= hiX; i++) {
+        if (i == cx - r || i == cx + r) {
+          // left or right side of the ring: the whole column
+          int loY = Math.max(cy - r, minCY);
+          int hiY = Math.min(cy + r, maxCY);
+          for (int j = loY; j <= hiY; j++) {
+            scanCell(i, j, px, py, stamp, maxDist, best, k);
+          }
+        } else {
+          // top and bottom of the ring only
+          scanCell(i, cy - r, px, py, stamp, maxDist, best, k);
+          if (r > 0) {
+            scanCell(i, cy + r, px, py, stamp, maxDist, best, k);
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  private void scanCell(int i, int j, double px, double py, int stamp, double maxDist,
+      List<Hit> best, int k) {
+    List<Entry> bucket = cells.get(key(i, j));
+    if (bucket != null) {
+      for (Entry e : bucket) {
+        if (e.stamp != stamp) {
+          e.stamp = stamp;
+          Hit h = measure(e, px, py);
+          if (h.dist <= maxDist) {
+            offer(best, h, k);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns every segment that comes within the given radius of the location, nearest first.
+   */
+  public List<Hit> getWithin(Pt where, double radius) {
+    List<Hit> ret = new ArrayList<Hit>();
+    double px = where.getX();
+    double py = where.getY();
+    int stamp = ++queryStamp;
+    int loX = Math.max(cell(px - radius), minCX);
+    int hiX = Math.min(cell(px + radius), maxCX);
+    int loY = Math.max(cell(py - radius), minCY);
+    int hiY = Math.min(cell(py + radius), maxCY);
+    for (int i = loX; i <= hiX; i++) {
+      for (int j = loY; j <= hiY; j++) {
+        List<Entry> bucket = cells.get(key(i, j));
+        if (bucket != null) {
+          for (Entry e : bucket) {
+            if (e.stamp != stamp) {
+              e.stamp = stamp;
+              Hit h = measure(e, px, py);
+              if (h.dist <= radius) {
+                ret.add(h);
+              }
+            }
+          }
+        }
+      }
+    }
+    Collections.sort(ret);
+    return ret;
+  }
+
+  /**
+   * Returns the distinct sequences that come within the given radius of the location.
+   */
+  public List<Sequence> getSequencesWithin(Pt where, double radius) {
+    List<Sequence> ret = new ArrayList<Sequence>();
+    for (Hit h : getWithin(where, radius)) {
+      if (!ret.contains(h.seq)) {
+        ret.add(h.seq);
+      }
+    }
+    return ret;
+  }
+
+  private static void offer(List<Hit> best, Hit h, int k) {
+    if (best.size() < k || h.dist < best.get(best.size() - 1).dist) {
+      int pos = best.size();
+      while (pos > 0 && best.get(pos - 1).dist > h.dist) {
+        pos--;
+      }
+      best.add(pos, h);
+      if (best.size() > k) {
+        best.remove(best.size() - 1);
+      }
+    }
+  }
+
+  private static Hit measure(Entry e, double px, double py) {
+    Pt a = e.seq.get(e.idx);
+    double ax = a.getX();
+    double ay = a.getY();
+    double t = 0;
+    double nx = ax;
+    double ny = ay;
+    if (e.idx + 1 < e.seq.size()) {
+      Pt b = e.seq.get(e.idx + 1);
+      double dx = b.getX() - ax;
+      double dy = b.getY() - ay;
+      double lenSq = dx * dx + dy * dy;
+      if (lenSq > 0) {
+        t = ((px - ax) * dx + (py - ay) * dy) / lenSq;
+        t = Math.max(0, Math.min(1, t));
+        nx = ax + t * dx;
+        ny = ay + t * dy;
+      }
+    }
+    double ddx = px - nx;
+    double ddy = py - ny;
+    return new Hit(e.seq, e.idx, t, nx, ny, Math.sqrt(ddx * ddx + ddy * ddy));
+  }
+
+  private Entry insert(Sequence seq, int idx, Pt a, Pt b) {
+    int loX = cell(Math.min(a.getX(), b.getX()));
+    int hiX = cell(Math.max(a.getX(), b.getX()));
+    int loY = cell(Math.min(a.getY(), b.getY()));
+    int hiY = cell(Math.max(a.getY(), b.getY()));
+    Entry e = new Entry(seq, idx, loX, hiX, loY, hiY);
+    for (int i = loX; i <= hiX; i++) {
+      for (int j = loY; j <= hiY; j++) {
+        Long key = key(i, j);
+        List<Entry> bucket = cells.get(key);
+        if (bucket == null) {
+          bucket = new ArrayList<Entry>(4);
+          cells.put(key, bucket);
+        }
+        bucket.add(e);
+      }
+    }
+    minCX = Math.min(minCX, loX);
+    maxCX = Math.max(maxCX, hiX);
+    minCY = Math.min(minCY, loY);
+    maxCY = Math.max(maxCY, hiY);
+    return e;
+  }
+
+  /**
+   * Removes the entry from the cells it was put in, dropping cells that become empty.
+   */
+  private void removeFromCells(Entry e) {
+    for (int i = e.loX; i <= e.hiX; i++) {
+      for (int j = e.loY; j <= e.hiY; j++) {
+        Long key = key(i, j);
+        List<Entry> bucket = cells.get(key);
+        if (bucket != null && bucket.remove(e) && bucket.isEmpty()) {
+          cells.remove(key);
+        }
+      }
+    }
+  }
+
+  private void resetExtent() {
+    minCX = Integer.MAX_VALUE;
+    minCY = Integer.MAX_VALUE;
+    maxCX = Integer.MIN_VALUE;
+    maxCY = Integer.MIN_VALUE;
+  }
+
+  private int cell(double v) {
+    return (int) Math.floor(v / cellSize);
+  }
+
+  private static Long key(int cx, int cy) {
+    return (((long) cx) << 32) | (cy & 0xffffffffL);
+  }
+}
@@ -4,7 +4,9 @@ package org.six11.util.pen;
 
 import java.util.NoSuchElementException;
 import java.awt.geom.FlatteningPathIterator;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
@@ -13,13 +15,13 @@ import java.util.Set;
 import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 
-import org.six11.util.data.Statistics;
+import org.six11.util.thread.IdAllocator;
 
-import static org.six11.util.Debug.bug;
 import static org.six11.util.Debug.num;
 
 /**
@@ -30,15 +32,43 @@ import static org.six11.util.Debug.num;
  **/
 public class Sequence implements Shape, Iterable<Pt> {
 
-  private static int ID_COUNTER = 1;
+  private static final IdAllocator IDS = new IdAllocator(2);
   protected List<Pt> points;
   //  protected DrawFunction drawFunction;
   protected Map<String, Object> attributes;
-  Statistics statsX, statsY;
+  private boolean roughValid;
+  private double roughDX, roughDY;
   double roughDensity, roughArea;
 
   protected int id;
 
+  /**
+   * Per-point double columns, indexed first by Channel ordinal and then by point index. Both levels
+   * are created lazily. channelSize is the number of points the columns describe; if the point list
+   * is changed behind our back (e.g. via getPoints()) the columns are thrown away.
+   */
+  protected double[][] channels;
+  private int channelSize;
+
+  /**
+   * If true (the default), values written with setDouble(Channel, int, double) are also written to
+   * the point's attribute map so old code that calls Pt.getDouble(String) still works.
+   */
+  protected boolean writePointAttributes = true;
+
+  /**
+   * Running features, made the first time somebody asks for them. See getStrokeFeatures().
+   */
+  private StrokeFeatures features;
+
+  /**
+   * arcLength[i] is the path length from the first point to point i. Only the first arcLengthSize
+   * entries are valid; the rest are filled in on demand. Removing or replacing a point truncates
+   * the valid range, and appending points just leaves new entries to be filled in.
+   */
+  private double[] arcLength;
+  private int arcLengthSize;
+
   /**
    * True if this sequence represents the boundary of a 2D shape, false if it simply represents a
    * polyline.
@@ -47,15 +77,25 @@ public class Sequence implements Shape, Iterable<Pt> {
   private double statsNormFactor;
 
   public Sequence() {
-    this(++ID_COUNTER);
+    this(IDS.nextId(), false);
   }
 
+  /**
+   * Make a sequence with a specific id, e.g. when reading it back from a file. The id will not be
+   * handed out to any sequence made later.
+   */
   public Sequence(int id) {
+    this(id, true);
+  }
+
+  private Sequence(int id, boolean explicitId) {
     this.id = id;
     points = new ArrayList<Pt>();
     closedRegion = false;
     attributes = new HashMap<String, Object>();
-    ID_COUNTER = Math.max(ID_COUNTER, id);
+    if (explicitId) {
+      IDS.reserveThrough(id);
+    }
   }
 
   public Sequence(List<Pt> data) {
@@ -219,30 +259,130 @@ public class Sequence implements Shape, Iterable<Pt> {
    *          the negative (lesser index) direction, supply a non-positive number.
    */
   public Pt getInterpolatedPoint(int beginIdx, double curvilinearDistance, int dir) {
-    int incr = (dir > 0 ? 1 : -1);
-    Pt prev = null;
+    double target = getArcLength(beginIdx) + (dir > 0 ? curvilinearDistance : -curvilinearDistance);
     Pt ret = null;
-    for (int i = beginIdx; i >= 0 && i < size(); i += incr) {
-      if (prev != null) {
-        double chunkDist = getPathLength(Math.min(i, beginIdx), Math.max(i, beginIdx));
-        bug("From " + beginIdx + " to " + i + ": " + num(chunkDist) + " of "
-            + num(curvilinearDistance) + ". Too far? " + (chunkDist > curvilinearDistance));
-        if (chunkDist > curvilinearDistance) {
-          // now we know that we've gone prevDist units to prev, and it it is a little too far when
-          // going to the current point at i, so simply interpolate the difference.
-          double diff = chunkDist - curvilinearDistance;
-          Vec lastPart = new Vec(prev, get(i)).getVectorOfMagnitude(diff);
-          ret = lastPart.add(prev);
-          break;
-        }
+    if (target >= 0 && target < length()) {
+      ret = getPointAtArcLength(target);
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the path length from the first point to the point at idx. This uses a cached prefix sum
+   * of segment lengths, so after the first call it is O(1). See invalidateArcLength().
+   */
+  public double getArcLength(int idx) {
+    ensureArcLength();
+    if (idx < 0 || idx >= points.size()) {
+      throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + points.size());
+    }
+    return arcLength[idx];
+  }
+
+  /**
+   * Returns the smallest index whose arc length is strictly greater than dist, or size() if there
+   * isn't one. O(log n).
+   */
+  public int getIndexAfterArcLength(double dist) {
+    ensureArcLength();
+    int lo = 0;
+    int hi = points.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (arcLength[mid] > dist) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the largest index whose arc length is strictly less than dist, or -1 if there isn't
+   * one. O(log n).
+   */
+  public int getIndexBeforeArcLength(double dist) {
+    ensureArcLength();
+    int lo = -1;
+    int hi = points.size() - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >> 1;
+      if (arcLength[mid] < dist) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
       }
-      prev = get(i);
     }
-    //    bug("getInterpolatedPoint(" + beginIdx + ", " + num(curvilinearDistance) + ", " + dir
-    //        + ") returns " + num(ret));
+    return lo;
+  }
+
+  /**
+   * Returns an interpolated point (with interpolated time) that is the given path length from the
+   * first point. Values outside [0, length()] are clamped to the endpoints, in which case a copy of
+   * the endpoint is returned. O(log n).
+   */
+  public Pt getPointAtArcLength(double dist) {
+    Pt ret;
+    int b = getIndexAfterArcLength(dist);
+    if (b == 0) {
+      ret = getFirst().copyXYT();
+    } else if (b >= points.size()) {
+      ret = getLast().copyXYT();
+    } else {
+      ret = interpolate(b - 1, b, dist - arcLength[b - 1]);
+    }
     return ret;
   }
 
+  /**
+   * Returns a point between points a and b (which should be neighbors) that is 'along' units from a
+   * towards b. Time is interpolated too.
+   */
+  Pt interpolate(int a, int b, double along) {
+    Pt ptA = points.get(a);
+    Pt ptB = points.get(b);
+    double segLength = ptA.distance(ptB);
+    double frac = segLength == 0 ? 0 : along / segLength;
+    return new Pt(ptA.x + frac * (ptB.x - ptA.x), ptA.y + frac * (ptB.y - ptA.y), ptA.getTime()
+        + (long) (frac * (double) (ptB.getTime() - ptA.getTime())));
+  }
+
+  /**
+   * Throws away the cached arc lengths and running stroke features. The caches notice points being
+   * added, removed, and replaced, but if you move points that are already in the sequence you need
+   * to call this.
+   */
+  public void invalidateArcLength() {
+    arcLengthSize = 0;
+    if (features != null) {
+      features.reset();
+    }
+  }
+
+  private void ensureArcLength() {
+    int n = points.size();
+    if (arcLengthSize > n) {
+      arcLengthSize = 0; // the list was changed behind our back
+    }
+    if (arcLengthSize < n) {
+      if (arcLength == null || arcLength.length < n) {
+        double[] bigger = new double[Math.max(n, 16 + n + (n >> 1))];
+        if (arcLength != null) {
+          System.arraycopy(arcLength, 0, bigger, 0, arcLengthSize);
+        }
+        arcLength = bigger;
+      }
+      for (int i = Math.max(arcLengthSize, 1); i < n; i++) {
+        arcLength[i] = arcLength[i - 1] + points.get(i - 1).distance(points.get(i));
+      }
+      if (n > 0) {
+        arcLength[0] = 0;
+      }
+      arcLengthSize = n;
+    }
+  }
+
   /**
    * This has the same semantics of List.indexOf(pt). It returns -1 if the point is not present.
    */
@@ -264,10 +404,31 @@ public class Sequence implements Shape, Iterable<Pt> {
 
   public void add(Pt pt) {
     points.add(pt);
+    if (channels != null && validChannels(points.size() - 1)) {
+      for (int c = 0; c < channels.length; c++) {
+        if (channels[c] != null) {
+          channels[c] = growColumn(channels[c], points.size());
+          channels[c][points.size() - 1] = Double.NaN;
+        }
+      }
+      channelSize = points.size();
+    }
   }
 
   public void remove(int idx) {
     points.remove(idx);
+    arcLengthSize = Math.min(arcLengthSize, idx);
+    if (features != null) {
+      features.reset();
+    }
+    if (channels != null && validChannels(points.size() + 1)) {
+      for (double[] col : channels) {
+        if (col != null) {
+          System.arraycopy(col, idx + 1, col, idx, points.size() - idx);
+        }
+      }
+      channelSize = points.size();
+    }
   }
 
   public void removeLast() {
@@ -278,6 +439,19 @@ public class Sequence implements Shape, Iterable<Pt> {
     return points.size();
   }
 
+  /**
+   * Returns running path length, bounding box, curvature and speed for this sequence, brought up to
+   * date with any points added since the last call. While a stroke is being drawn this only costs
+   * a little work per new point. Removing or replacing points makes the next call start over.
+   */
+  public StrokeFeatures getStrokeFeatures() {
+    if (features == null) {
+      features = new StrokeFeatures(this);
+    }
+    features.update();
+    return features;
+  }
+
   /**
    * Returns the arc length of the entire sequence, assuming straight lines between each point pair.
    */
@@ -287,56 +461,47 @@ public class Sequence implements Shape, Iterable<Pt> {
 
   /**
    * Returns the arc length of the portion of the sequence beginning and ending at the given
-   * indices, assuming straight lines between each pair of successive points.
+   * indices, assuming straight lines between each pair of successive points. This reads the arc
+   * length cache, so if you move points that are already in the sequence (e.g. with Pt.move or
+   * Pt.setLocation) call invalidateArcLength() first or you will get the old lengths.
    */
   public double getPathLength(int idxStartInclusive, int idxEndInclusive) {
     double ret = 0;
-    if (hasAttribute("cachedPathLength")) {
-      bug("Using cached");
-      for (int i = idxStartInclusive; i < idxEndInclusive; i++) {
-        ret += get(i).getDouble("cachedDist");
-      }
-    } else {
-      ret = Functions.getPathLength(points, idxStartInclusive, idxEndInclusive);
+    if (idxEndInclusive > idxStartInclusive) {
+      ret = getArcLength(idxEndInclusive) - getArcLength(idxStartInclusive);
     }
     return ret;
   }
 
   /**
    * Calculates the distance between each point <code>i</code> and the next <code>i+1</code> and
-   * stores it in a <code>double</code> attribute keyed off the string "cachedDist" in point
-   * <code>i</code>. Call this once and subsequent calls to getPathLength(int, int) will be more
-   * efficient because it only needs to add these values. The last point's value is set to zero.
+   * stores it in the CACHED_DIST channel at index <code>i</code>. The last point's value is set to
+   * zero. getPathLength(int, int) no longer needs this (it always uses the arc length cache) but
+   * the channel is still there for code that reads it.
    */
   public void createPathLengthCache() {
     int n = size();
-    String k = "cachedDist";
     for (int i = 0; i < n - 1; i++) {
-      Pt here = get(i);
-      Pt there = get(i + 1);
-      double dist = here.distance(there);
-      here.setDouble(k, dist);
+      setDouble(Channel.CACHED_DIST, i, get(i).distance(get(i + 1)));
     }
-    getLast().setDouble(k, 0);
+    setDouble(Channel.CACHED_DIST, n - 1, 0);
     setAttribute("cachedPathLength", true);
   }
 
   /**
    * For each point in the sequence, calculate the curvilinear distance from the start point and
-   * stores it in each point's 'curvilinear-distance' property (double). This returns the total
-   * curvilinear length of the sequence.
+   * stores it in the CURVILINEAR_DISTANCE channel. This returns the total curvilinear length of the
+   * sequence.
    */
   public double calculateCurvilinearDistances() {
-    Pt prev = null;
     double sum = 0.0;
-    for (Pt pt : this) {
-      if (prev != null) {
-        sum += prev.distance(pt);
+    for (int i = 0; i < size(); i++) {
+      if (i > 0) {
+        sum += points.get(i - 1).distance(points.get(i));
       }
-      pt.setDouble("curvilinear-distance", sum);
-      prev = pt;
+      setDouble(Channel.CURVILINEAR_DISTANCE, i, sum);
     }
-    return getLast().getDouble("curvilinear-distance");
+    return sum;
   }
 
   /**
@@ -368,14 +533,15 @@ public class Sequence implements Shape, Iterable<Pt> {
   }
 
   /**
-   * Returns the sum of each point's "curvature" attribute. If this attribute is not set on all of
-   * the points on the line, you will get a bogus result.
+   * Returns the sum of each point's curvature channel value. If this is not set on all of the
+   * points on the line, you will get a bogus result.
    */
   public double getSignedCurvatureSum() {
     double ret = 0.0;
-    for (Pt pt : points) {
-      if (pt.hasAttribute("curvature")) {
-        ret += pt.getDouble("curvature");
+    for (int i = 0; i < size(); i++) {
+      double c = getDouble(Channel.CURVATURE, i);
+      if (!Double.isNaN(c)) {
+        ret += c;
       }
     }
     return ret;
@@ -406,7 +572,7 @@ public class Sequence implements Shape, Iterable<Pt> {
     } else if (windowSize > 1) {
       ret = getCurvature(idx, windowSize - 1);
     }
-    points.get(idx).setDouble("angle", ret);
+    setDouble(Channel.ANGLE, idx, ret);
 
     new RuntimeException(
         "getCurvature(int, int) is hosed --- need to compute curvature from angles.")
@@ -422,58 +588,51 @@ public class Sequence implements Shape, Iterable<Pt> {
    */
   public double calculateCurvatureEuclideanWindowSize(double windowEuclideanSize) {
     // double sum = 0.0;
-    List<Pt> front = new ArrayList<Pt>(); // place to cache the points at beginning
-    List<Pt> back = new ArrayList<Pt>(); // ... and the end. Need to assign angle value after.
+    List<Integer> front = new ArrayList<Integer>(); // place to cache the indices at beginning
+    List<Integer> back = new ArrayList<Integer>(); // ... and the end. Assign angle value after.
 
     double frontAngle = -1.0;
     double backAngle = -1.0;
     for (int i = 0; i < size(); i++) {
       getAngleEuclideanWindowSize(i, windowEuclideanSize);
-      if (!points.get(i).hasAttribute("angle")) {
+      if (!hasDouble(Channel.ANGLE, i)) {
         if (frontAngle >= 0.0) {
-          back.add(points.get(i));
+          back.add(i);
         } else {
-          front.add(points.get(i));
+          front.add(i);
         }
       } else {
         if (frontAngle < 0) {
-          frontAngle = points.get(i).getDouble("angle");
+          frontAngle = getDouble(Channel.ANGLE, i);
         } else {
-          backAngle = points.get(i).getDouble("angle");
+          backAngle = getDouble(Channel.ANGLE, i);
         }
       }
     }
 
     // assign the front and back angles.
-    for (Pt pt : front) {
-      pt.setDouble("angle", frontAngle);
+    for (int i : front) {
+      setDouble(Channel.ANGLE, i, frontAngle);
     }
-    for (Pt pt : back) {
-      pt.setDouble("angle", backAngle);
+    for (int i : back) {
+      setDouble(Channel.ANGLE, i, backAngle);
     }
 
     // Now that angle is set on every point, we can calculate curvature.
     double ret = 0.0;
+    double[] angles = getChannel(Channel.ANGLE);
     for (int i = 0; i < size(); i++) {
-      Pt pt = points.get(i);
-      if (i == 0) {
-        pt.setDouble("curvature", 0.0);
-      } else if (i == size() - 1) {
-        pt.setDouble("curvature", 0.0);
-      } else {
-        double prev = points.get(i - 1).getDouble("angle");
-        double next = points.get(i + 1).getDouble("angle");
-        double curvature = next - prev;
+      double curvature = 0.0;
+      if (i > 0 && i < size() - 1) {
+        curvature = angles[i + 1] - angles[i - 1];
         if (curvature < -Math.PI) {
           curvature = curvature + 2.0 * Math.PI;
         } else if (curvature > Math.PI) {
           curvature = curvature - 2.0 * Math.PI;
         }
-        pt.setDouble("curvature", curvature);
-        // bug(i + " curvature: " + Debug.num(next) + "-" + Debug.num(prev) + " = " +
-        // Debug.num(pt.getDouble("curvature")));
       }
-      ret += Math.abs(pt.getDouble("curvature"));
+      setDouble(Channel.CURVATURE, i, curvature);
+      ret += Math.abs(curvature);
     }
 
     return ret;
@@ -495,20 +654,21 @@ public class Sequence implements Shape, Iterable<Pt> {
       double dy = points.get(idx + k).y - points.get(idx - k).y;
       double numer = Math.atan2(dy, dx);
       ret = numer;
-      points.get(idx).setDouble("angle", ret);
+      setDouble(Channel.ANGLE, idx, ret);
     }
     return ret;
   }
 
   /**
-   * Returns the absolue value of each point's "curvature" attribute. See getSignedCurvatureSum().
+   * Returns the absolue value of each point's curvature channel value. See getSignedCurvatureSum().
    */
   @Deprecated
   public double getAbsoluteCurvatureSum() {
     double ret = 0.0;
-    for (Pt pt : points) {
-      if (pt.hasAttribute("curvature")) {
-        ret += Math.abs(pt.getDouble("curvature"));
+    for (int i = 0; i < size(); i++) {
+      double c = getDouble(Channel.CURVATURE, i);
+      if (!Double.isNaN(c)) {
+        ret += Math.abs(c);
       }
     }
     return ret;
@@ -529,7 +689,7 @@ public class Sequence implements Shape, Iterable<Pt> {
       double denom = points.get(idx + 1).time - points.get(idx - 1).time;
       ret = numer / denom;
     }
-    points.get(idx).setDouble("speed", ret);
+    setDouble(Channel.SPEED, idx, ret);
     return ret;
   }
 
@@ -538,9 +698,87 @@ public class Sequence implements Shape, Iterable<Pt> {
    * This is useful for detecting tight loops in the sequence without picking up self-intersections
    * that are far apart. If you are interested in finding all self intersection points, just supply
    * a negative number or Double.MAX_VALUE as your argument. A non-null (but possibly empty) list
-   * will be returned.
+   * will be returned. Each distinct location is only reported once.
+   * 
+   * See getSelfIntersections(double) if you need to know which segments cross.
    */
   public List<Pt> getSelfIntersectionPoints(double localDistance) {
+    List<Pt> ret = new ArrayList<Pt>();
+    Set<Point2D> seen = new HashSet<Point2D>();
+    for (SelfIntersection ix : getSelfIntersections(localDistance)) {
+      if (seen.add(new Point2D.Double(ix.getX(), ix.getY()))) {
+        ret.add(ix.getIntersection());
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Describes a place where a sequence crosses itself: the segment starting at index idxA crosses
+   * the later segment starting at index idxB.
+   */
+  public static class SelfIntersection {
+    private final int idxA, idxB;
+    private final double paramA, paramB;
+    private final double x, y;
+
+    SelfIntersection(int idxA, int idxB, double paramA, double paramB, double x, double y) {
+      this.idxA = idxA;
+      this.idxB = idxB;
+      this.paramA = paramA;
+      this.paramB = paramB;
+      this.x = x;
+      this.y = y;
+    }
+
+    /**
+     * The index of the first point of the earlier segment.
+     */
+    public int getIndexA() {
+      return idxA;
+    }
+
+    /**
+     * The index of the first point of the later segment.
+     */
+    public int getIndexB() {
+      return idxB;
+    }
+
+    /**
+     * Where the crossing is along segment A, from 0 (at point idxA) to 1 (at point idxA + 1).
+     */
+    public double getParamA() {
+      return paramA;
+    }
+
+    /**
+     * Where the crossing is along segment B, from 0 (at point idxB) to 1 (at point idxB + 1).
+     */
+    public double getParamB() {
+      return paramB;
+    }
+
+    public double getX() {
+      return x;
+    }
+
+    public double getY() {
+      return y;
+    }
+
+    public Pt getIntersection() {
+      return new Pt(x, y);
+    }
+  }
+
+  /**
+   * Finds the pairs of segments where the sequence crosses itself within a certain localized area,
+   * ordered by the first segment and then the second. Crossings are found for the same segment
+   * pairs as getSelfIntersectionPoints(double), but every crossing is reported even if several
+   * happen at the same place.
+   */
+  public List<SelfIntersection> getSelfIntersections(double localDistance) {
     // find the places that this sequence crosses itself without
     // traversing more than 'localDistance' pixels.
 
@@ -548,52 +786,220 @@ public class Sequence implements Shape, Iterable<Pt> {
     // *----*----*----*-----*----*-----*----*-----*
     // 1 2 3 4 5 6 7 8 9
     //
-    // Distance is calculated between the start points of the two line
-    // segments under consideration. Adjacent line segments are never
-    // compared. Say that points 1 and 5 are within localDistance, but
-    // points 1 and 6 are not. This means that segment a will be
-    // compared against c, d, and e.
+    // Distance is measured from the start of segment A: A's own length plus the lengths of the
+    // segments from the one after A's neighbor up to (but not including) segment B. Adjacent
+    // segments are never compared. Say that points 1 and 5 are within localDistance, but points 1
+    // and 6 are not. This means that segment a will be compared against c, d, and e.
+    //
+    // Rather than comparing every segment pair, the segments are bucketed into a uniform grid and
+    // segment A is only compared with segments in the cells its bounding box touches.
+
+    List<SelfIntersection> ret = new ArrayList<SelfIntersection>();
+    int n = points.size();
+    int lastA = n - 5;
+    int lastB = n - 3;
+    if (lastA < 0) {
+      return ret;
+    }
+    boolean unlimited = localDistance < 0;
 
     // Because it is likely that the segment distances involved will
     // be used frequently and will not change, I will cache it the
-    // first time using the attribute name "dist_to_next".
-
-    List<Pt> ret = new ArrayList<Pt>();
+    // first time in the DIST_TO_NEXT channel.
+    double[] xs = new double[n];
+    double[] ys = new double[n];
+    double[] prefix = new double[n]; // prefix[k] is the length of segments 0..k-1
+    for (int i = 0; i < n; i++) {
+      xs[i] = points.get(i).getX();
+      ys[i] = points.get(i).getY();
+      if (i > 0) {
+        prefix[i] = prefix[i - 1] + cacheSegmentData(i - 1);
+      }
+    }
 
-    double runDist;
-    Line lineA = new Line();
-    Line lineB = new Line();
-    for (int i = 0; i < (points.size() - 3); i++) {
-      lineA.push(points.get(i));
-      if (lineA.isValid()) {
-        runDist = cacheSegmentData(lineA);
-        lineB.clear();
-        for (int j = i + 1; j < (points.size() - 1); j++) {
-          lineB.push(points.get(j));
-          if (lineB.isValid()) {
-            runDist += cacheSegmentData(lineB);
-            if (!lineA.isAdjacentTo(lineB) && lineA.intersectsLine(lineB)) {
-              IntersectionData ix = new IntersectionData(lineA, lineB);
-              if (ix.intersectsInSegments() && (!ret.contains(ix.getIntersection()))) {
-                ret.add(ix.getIntersection());
+    SegmentGrid grid = null;
+    int[] stamps = null;
+    int[] candidates = new int[16];
+    for (int a = 0; a <= lastA; a++) {
+      double lenA = prefix[a + 1] - prefix[a];
+      if (!unlimited && lenA > localDistance) {
+        continue;
+      }
+      int maxB = lastB;
+      if (!unlimited) {
+        // largest b with lenA + prefix[b] - prefix[a + 2] <= localDistance
+        double limit = localDistance - lenA + prefix[a + 2];
+        int lo = a + 2;
+        int hi = lastB;
+        while (lo < hi) {
+          int mid = (lo + hi + 1) >>> 1;
+          if (prefix[mid] <= limit) {
+            lo = mid;
+          } else {
+            hi = mid - 1;
+          }
+        }
+        maxB = lo;
+      }
+      int count = 0;
+      if (maxB - (a + 2) < 32) {
+        // small window: just look at each segment in order
+        for (int b = a + 2; b <= maxB; b++) {
+          if (count == candidates.length) {
+            candidates = Arrays.copyOf(candidates, count * 2);
+          }
+          candidates[count++] = b;
+        }
+      } else {
+        if (grid == null) {
+          grid = new SegmentGrid(xs, ys, lastB + 1, prefix[lastB + 1] / (lastB + 1));
+          stamps = new int[lastB + 1];
+          Arrays.fill(stamps, -1);
+        }
+        int[] cellRange = grid.cellRange(Math.min(xs[a], xs[a + 1]), Math.min(ys[a], ys[a + 1]),
+            Math.max(xs[a], xs[a + 1]), Math.max(ys[a], ys[a + 1]));
+        for (int cx = cellRange[0]; cx <= cellRange[2]; cx++) {
+          for (int cy = cellRange[1]; cy <= cellRange[3]; cy++) {
+            int cell = grid.cellIndex(cx, cy);
+            for (int k = grid.cellStart[cell]; k < grid.cellStart[cell + 1]; k++) {
+              int b = grid.cellSegments[k];
+              if (b >= a + 2 && b <= maxB && stamps[b] != a) {
+                stamps[b] = a;
+                if (count == candidates.length) {
+                  candidates = Arrays.copyOf(candidates, count * 2);
+                }
+                candidates[count++] = b;
               }
             }
           }
-          if (runDist > localDistance) {
-            break;
-          }
+        }
+        Arrays.sort(candidates, 0, count);
+      }
+      for (int c = 0; c < count; c++) {
+        SelfIntersection ix = getCrossing(a, candidates[c], xs, ys);
+        if (ix != null) {
+          ret.add(ix);
         }
       }
     }
     return ret;
   }
 
-  private double cacheSegmentData(Line line) {
-    if (!line.getStart().hasAttribute("dist_to_next")) {
-      double dist = line.getLength();
-      line.getStart().setAttribute("dist_to_next", dist);
+  /**
+   * Returns the crossing of segments a and b, or null if they don't cross or share an endpoint.
+   * This uses the same tests as Line.intersectsLine() and IntersectionData.intersectsInSegments().
+   */
+  private SelfIntersection getCrossing(int a, int b, double[] xs, double[] ys) {
+    SelfIntersection ret = null;
+    Pt a0 = points.get(a);
+    Pt a1 = points.get(a + 1);
+    Pt b0 = points.get(b);
+    Pt b1 = points.get(b + 1);
+    boolean adjacent = a0.equals(b0) || a0.equals(b1) || a1.equals(b0) || a1.equals(b1);
+    if (!adjacent
+        && Line2D.linesIntersect(xs[a], ys[a], xs[a + 1], ys[a + 1], xs[b], ys[b], xs[b + 1],
+            ys[b + 1])) {
+      double numR = (ys[a] - ys[b]) * (xs[b + 1] - xs[b]) - (xs[a] - xs[b]) * (ys[b + 1] - ys[b]);
+      double numS = (ys[a] - ys[b]) * (xs[a + 1] - xs[a]) - (xs[a] - xs[b]) * (ys[a + 1] - ys[a]);
+      double denom = (xs[a + 1] - xs[a]) * (ys[b + 1] - ys[b]) - (ys[a + 1] - ys[a])
+          * (xs[b + 1] - xs[b]);
+      if (denom != 0.0) {
+        double r = numR / denom;
+        double s = numS / denom;
+        if (r >= 0.0 && r <= 1.0 && s >= 0.0 && s <= 1.0) {
+          ret = new SelfIntersection(a, b, r, s, xs[a] + r * (xs[a + 1] - xs[a]), ys[a] + r
+              * (ys[a + 1] - ys[a]));
+        }
+      }
     }
-    return (Double) line.getStart().getAttribute("dist_to_next");
+    return ret;
+  }
+
+  /**
+   * A uniform grid of the segments 0..numSegments-1 of a polyline, stored compactly: the segments
+   * in cell c are cellSegments[cellStart[c]] up to (not including) cellSegments[cellStart[c+1]].
+   */
+  private static class SegmentGrid {
+    final double minX, minY, cellSize;
+    final int cols, rows;
+    final int[] cellStart;
+    final int[] cellSegments;
+
+    SegmentGrid(double[] xs, double[] ys, int numSegments, double avgLength) {
+      double loX = Double.MAX_VALUE, loY = Double.MAX_VALUE;
+      double hiX = -Double.MAX_VALUE, hiY = -Double.MAX_VALUE;
+      for (int i = 0; i <= numSegments; i++) {
+        loX = Math.min(loX, xs[i]);
+        loY = Math.min(loY, ys[i]);
+        hiX = Math.max(hiX, xs[i]);
+        hiY = Math.max(hiY, ys[i]);
+      }
+      minX = loX;
+      minY = loY;
+      // aim for cells about one segment wide, but don't make more cells than segments.
+      double size = Math.max(avgLength, Functions.EQ_TOL);
+      double area = Math.max(hiX - loX, size) * Math.max(hiY - loY, size);
+      size = Math.max(size, Math.sqrt(area / numSegments));
+      cellSize = size;
+      cols = (int) ((hiX - loX) / size) + 1;
+      rows = (int) ((hiY - loY) / size) + 1;
+
+      // count, then fill (a counting sort by cell).
+      cellStart = new int[cols * rows + 1];
+      for (int i = 0; i < numSegments; i++) {
+        int[] r = range(xs, ys, i);
+        for (int cx = r[0]; cx <= r[2]; cx++) {
+          for (int cy = r[1]; cy <= r[3]; cy++) {
+            cellStart[cellIndex(cx, cy) + 1]++;
+          }
+        }
+      }
+      for (int c = 0; c < cols * rows; c++) {
+        cellStart[c + 1] += cellStart[c];
+      }
+      cellSegments = new int[cellStart[cols * rows]];
+      int[] fill = Arrays.copyOf(cellStart, cols * rows);
+      for (int i = 0; i < numSegments; i++) {
+        int[] r = range(xs, ys, i);
+        for (int cx = r[0]; cx <= r[2]; cx++) {
+          for (int cy = r[1]; cy <= r[3]; cy++) {
+            cellSegments[fill[cellIndex(cx, cy)]++] = i;
+          }
+        }
+      }
+    }
+
+    private int[] range(double[] xs, double[] ys, int i) {
+      return cellRange(Math.min(xs[i], xs[i + 1]), Math.min(ys[i], ys[i + 1]), Math.max(xs[i],
+          xs[i + 1]), Math.max(ys[i], ys[i + 1]));
+    }
+
+    int[] cellRange(double loX, double loY, double hiX, double hiY) {
+      return new int[] {
+          clamp((int) ((loX - minX) / cellSize), cols), clamp((int) ((loY - minY) / cellSize), rows),
+          clamp((int) ((hiX - minX) / cellSize), cols), clamp((int) ((hiY - minY) / cellSize), rows)
+      };
+    }
+
+    private static int clamp(int v, int n) {
+      return Math.max(0, Math.min(n - 1, v));
+    }
+
+    int cellIndex(int cx, int cy) {
+      return cy * cols + cx;
+    }
+  }
+
+  /**
+   * Returns the length of the segment starting at point idx, caching it in the DIST_TO_NEXT channel.
+   */
+  private double cacheSegmentData(int idx) {
+    double ret = getDouble(Channel.DIST_TO_NEXT, idx);
+    if (Double.isNaN(ret)) {
+      ret = points.get(idx).distance(points.get(idx + 1));
+      setCachedDouble(Channel.DIST_TO_NEXT, idx, ret);
+    }
+    return ret;
   }
 
   public List<Pt> getPoints() {
@@ -786,56 +1192,200 @@ public class Sequence implements Shape, Iterable<Pt> {
   }
 
   public double getRoughDensity(double normalizationFactor) {
-    if (statsNormFactor != normalizationFactor || statsX == null || statsY == null) {
+    if (statsNormFactor != normalizationFactor || !roughValid) {
       initRough(normalizationFactor);
     }
     return roughDensity;
   }
 
+  /**
+   * Per-thread resampler used by initRough, so computing rough stats doesn't build a throwaway
+   * Sequence every time.
+   */
+  private static final ThreadLocal<Resampler> roughResampler = new ThreadLocal<Resampler>() {
+    protected Resampler initialValue() {
+      return new Resampler();
+    }
+  };
+
   private void initRough(double normalizationFactor) {
     statsNormFactor = normalizationFactor;
-    statsX = new Statistics();
-    statsY = new Statistics();
-    // Note: there is a better way to do this. Normalizing the sequence is expensive. 
-    // We could use the line length when calculating density instead.
-    Sequence seq = Functions.getNormalizedSequence(this, 5.0 / statsNormFactor);
-    for (Pt pt : seq) {
-      statsX.addData(pt.getX());
-      statsY.addData(pt.getY());
-    }
-    double dx = (statsX.getMax() - statsX.getMin()) * normalizationFactor;
-    double dy = (statsY.getMax() - statsY.getMin()) * normalizationFactor;
-    double densityX = ((double) statsX.getN()) / dx;
-    double densityY = ((double) statsY.getN()) / dy;
+    Resampler r = roughResampler.get();
+    int n = size() > 0 ? r.resampleByChord(this, 5.0 / statsNormFactor) : 0;
+    double[] xs = r.getXs();
+    double[] ys = r.getYs();
+    double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+    double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      minX = Math.min(minX, xs[i]);
+      maxX = Math.max(maxX, xs[i]);
+      minY = Math.min(minY, ys[i]);
+      maxY = Math.max(maxY, ys[i]);
+    }
+    roughDX = n > 0 ? maxX - minX : 0;
+    roughDY = n > 0 ? maxY - minY : 0;
+    double dx = roughDX * normalizationFactor;
+    double dy = roughDY * normalizationFactor;
+    // Functions.getNormalizedSequence(Sequence, double), which this used to sample with, adds an
+    // extra copy of each endpoint. Count them too so density values stay the same.
+    int count = n > 0 ? n + 2 : 0;
+    double densityX = ((double) count) / dx;
+    double densityY = ((double) count) / dy;
     roughArea = dx * dy;
     roughDensity = densityX * densityY;
+    roughValid = true;
   }
 
   public double getRoughArea(double normalizationFactor) {
-    if (statsNormFactor != normalizationFactor || statsX == null || statsY == null) {
+    if (statsNormFactor != normalizationFactor || !roughValid) {
       initRough(normalizationFactor);
     }
     return roughArea;
   }
   
   public double getRoughDX(double normalizationFactor) {
-    if (statsNormFactor != normalizationFactor || statsX == null || statsY == null) {
+    if (statsNormFactor != normalizationFactor || !roughValid) {
       initRough(normalizationFactor);
     }
-    return (statsX.getMax() - statsX.getMin());
+    return roughDX;
   }
   
   public double getRoughDY(double normalizationFactor) {
-    if (statsNormFactor != normalizationFactor || statsX == null || statsY == null) {
+    if (statsNormFactor != normalizationFactor || !roughValid) {
       initRough(normalizationFactor);
     }
-    return (statsY.getMax() - statsY.getMin());
+    return roughDY;
   }
 
   public Pt replace(int i, Pt pt) {
-    Pt old = points.remove(i);
-    points.add(i, pt);
+    Pt old = points.set(i, pt);
+    arcLengthSize = Math.min(arcLengthSize, i);
+    if (features != null) {
+      features.reset();
+    }
+    if (channels != null && validChannels(points.size())) {
+      for (double[] col : channels) {
+        if (col != null) {
+          col[i] = Double.NaN;
+        }
+      }
+    }
     return old;
   }
 
+  /**
+   * Returns true if any existing channel columns still line up with 'expectedSize' points. If they
+   * don't (somebody changed the point list directly), all columns are discarded.
+   */
+  private boolean validChannels(int expectedSize) {
+    if (channelSize != expectedSize) {
+      channels = null;
+      channelSize = 0;
+    }
+    return channels != null;
+  }
+
+  private static double[] growColumn(double[] col, int minLength) {
+    double[] ret = col;
+    if (col.length < minLength) {
+      ret = Arrays.copyOf(col, Math.max(minLength, col.length + (col.length >> 1) + 1));
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the column for the given channel, creating it (filled with NaN) if needed. The array may
+   * be longer than size(). Writing to it directly bypasses the point attribute mirroring.
+   */
+  public double[] getChannel(Channel ch) {
+    validChannels(points.size());
+    int n = Math.max(Channel.count(), ch.ordinal() + 1);
+    if (channels == null) {
+      channels = new double[n][];
+      channelSize = points.size();
+    } else if (channels.length <= ch.ordinal()) {
+      channels = Arrays.copyOf(channels, n);
+    }
+    double[] col = channels[ch.ordinal()];
+    if (col == null) {
+      col = new double[Math.max(1, points.size())];
+      Arrays.fill(col, Double.NaN);
+      channels[ch.ordinal()] = col;
+    }
+    return col;
+  }
+
+  /**
+   * Returns true if this sequence has a column for the given channel.
+   */
+  public boolean hasChannel(Channel ch) {
+    return validChannels(points.size()) && ch.ordinal() < channels.length
+        && channels[ch.ordinal()] != null;
+  }
+
+  /**
+   * Throws away the column for the given channel. Point attributes are left alone.
+   */
+  public void clearChannel(Channel ch) {
+    if (hasChannel(ch)) {
+      channels[ch.ordinal()] = null;
+    }
+  }
+
+  /**
+   * Gets a channel value for the point at the given index. If the column has no value this falls
+   * back on the point's attribute of the same name, and returns NaN if that isn't there either.
+   */
+  public double getDouble(Channel ch, int idx) {
+    double ret = Double.NaN;
+    if (hasChannel(ch)) {
+      ret = channels[ch.ordinal()][idx];
+    }
+    if (Double.isNaN(ret)) {
+      ret = points.get(idx).getDouble(ch.getName(), Double.NaN);
+    }
+    return ret;
+  }
+
+  public double getDouble(Channel ch, int idx, double defaultValue) {
+    double ret = getDouble(ch, idx);
+    return Double.isNaN(ret) ? defaultValue : ret;
+  }
+
+  public boolean hasDouble(Channel ch, int idx) {
+    return !Double.isNaN(getDouble(ch, idx));
+  }
+
+  /**
+   * Sets a channel value for the point at the given index. See setWritePointAttributes.
+   */
+  public void setDouble(Channel ch, int idx, double value) {
+    getChannel(ch)[idx] = value;
+    if (writePointAttributes) {
+      points.get(idx).setDouble(ch.getName(), value);
+    }
+  }
+
+  /**
+   * Sets a channel value that is only used internally (cached segment lengths), so it is never
+   * mirrored onto the point.
+   */
+  void setCachedDouble(Channel ch, int idx, double value) {
+    getChannel(ch)[idx] = value;
+  }
+
+  /**
+   * Controls whether channel values are mirrored onto each Pt's attribute map. It is on by default
+   * so old code that reads channel data with Pt.getDouble(String) keeps working. Turn it off for
+   * hot paths where nobody does, so curvature, speed, etc. passes run without boxing or allocating
+   * attribute maps.
+   */
+  public void setWritePointAttributes(boolean v) {
+    writePointAttributes = v;
+  }
+
+  public boolean isWritePointAttributes() {
+    return writePointAttributes;
+  }
+
 }
@@ -1,6 +1,9 @@
 package org.six11.util.pen;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
@@ -19,6 +22,14 @@ public abstract class SequenceIO {
   public static String SEQ_START = "seq_start";
   public static String SEQ_END = "seq_end";
   public static String PT = "pt";
+
+  /**
+   * Receives sequences one at a time from readEach, so callers can process an archive without
+   * holding all of it in memory.
+   */
+  public static interface Handler {
+    public void handle(Sequence seq) throws IOException;
+  }
   
   public static void write(Sequence seq, Writer out) throws IOException {
     out.write(SEQ_START + "\n");
@@ -31,10 +42,12 @@ public abstract class SequenceIO {
   
   public static Sequence read(BufferedReader in) throws IOException {
     Sequence ret = null;
-    if (in.ready() && in.readLine().trim().equals(SEQ_START)) {
+    String first = in.ready() ? in.readLine() : null;
+    if (first != null && first.trim().equals(SEQ_START)) {
       ret = new Sequence();
-      while (in.ready()) {
-        String line = in.readLine().trim();
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
         if (line.equals(SEQ_END)) {
           break;
         } else if (line.startsWith(PT)) {
@@ -58,12 +71,50 @@ public abstract class SequenceIO {
   }
   
   public static List<Sequence> readAll(BufferedReader in) throws IOException {
-    List<Sequence> ret = new ArrayList<Sequence>();
+    final List<Sequence> ret = new ArrayList<Sequence>();
+    readEach(in, new Handler() {
+      public void handle(Sequence seq) {
+        ret.add(seq);
+      }
+    });
+    return ret;
+  }
+
+  /**
+   * Reads sequences one at a time and passes each to the handler. Returns how many were read.
+   */
+  public static int readEach(BufferedReader in, Handler handler) throws IOException {
+    int count = 0;
     Sequence next = null;
     while ((next = read(in)) != null) {
-      ret.add(next);
+      handler.handle(next);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Converts a text sequence file into the binary format (see BinarySequenceWriter), one sequence
+   * at a time. Returns the number of sequences converted.
+   */
+  public static int convertToBinary(File textFile, File binaryFile,
+      BinarySequenceWriter.Coordinates coords, double scale) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(textFile));
+    try {
+      final BinarySequenceWriter out = new BinarySequenceWriter(new FileOutputStream(binaryFile),
+          coords, scale);
+      try {
+        return readEach(in, new Handler() {
+          public void handle(Sequence seq) throws IOException {
+            out.write(seq);
+          }
+        });
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
     }
-    return ret;
   }
   
   public static void bug(String what) {
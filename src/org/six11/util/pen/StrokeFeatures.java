@@ -0,0 +1,233 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * Running features of a Sequence that is still being drawn. Each call to update() only looks at
+ * the points that were added since the last call, so keeping these up to date while the pen moves
+ * costs a constant amount of work per point rather than a pass over the whole stroke.
+ *
+ * Curvature uses the same three-point measure as Functions.calculateCurvature(Sequence), taken
+ * over points (i - window, i, i + window), and speed uses the same measure as
+ * Sequence.getSpeed(int), except that a point whose neighbors share a timestamp gets zero speed
+ * rather than infinity. Points too close to the ends for a full window get zero. Values for the
+ * last few points are provisional until enough later points arrive. Read them with
+ * getCurvature(int) and getSpeed(int). They are kept here rather than in the sequence's CURVATURE
+ * and SPEED channels, so they never replace values some other pass put there.
+ *
+ * Get one with Sequence.getStrokeFeatures(), which calls update() for you.
+ *
+ * @author Gabe Johnson <johnsogg@cmu.edu>
+ */
+public class StrokeFeatures {
+
+  private final Sequence seq;
+  private final int window;
+
+  private int processed;
+  private double pathLength;
+  private double minX, minY, maxX, maxY;
+  private double signedCurvatureSum;
+  private double absoluteCurvatureSum;
+  private double speedSum;
+
+  // per-point values; only the first 'processed' entries mean anything.
+  private double[] curvature = new double[16];
+  private double[] speed = new double[16];
+
+  public StrokeFeatures(Sequence seq) {
+    this(seq, 1);
+  }
+
+  /**
+   * @param window
+   *          how many points away from point i to look when computing its curvature. Must be at
+   *          least 1.
+   */
+  public StrokeFeatures(Sequence seq, int window) {
+    this.seq = seq;
+    this.window = Math.max(1, window);
+    reset();
+  }
+
+  /**
+   * Forgets everything. The next update() will start over from the first point.
+   */
+  public void reset() {
+    processed = 0;
+    pathLength = 0;
+    minX = Double.MAX_VALUE;
+    minY = Double.MAX_VALUE;
+    maxX = -Double.MAX_VALUE;
+    maxY = -Double.MAX_VALUE;
+    signedCurvatureSum = 0;
+    absoluteCurvatureSum = 0;
+    speedSum = 0;
+  }
+
+  /**
+   * Folds in any points that were appended since the last call. If the sequence got shorter this
+   * starts over.
+   */
+  public void update() {
+    int n = seq.size();
+    if (n < processed) {
+      reset();
+    }
+    if (curvature.length < n) {
+      int cap = Math.max(n, curvature.length + (curvature.length >> 1));
+      curvature = Arrays.copyOf(curvature, cap);
+      speed = Arrays.copyOf(speed, cap);
+    }
+    for (int i = processed; i < n; i++) {
+      append(i);
+    }
+    processed = n;
+  }
+
+  private void append(int i) {
+    Pt pt = seq.get(i);
+    minX = Math.min(minX, pt.getX());
+    minY = Math.min(minY, pt.getY());
+    maxX = Math.max(maxX, pt.getX());
+    maxY = Math.max(maxY, pt.getY());
+    curvature[i] = 0.0;
+    speed[i] = 0.0;
+    if (i > 0) {
+      Pt prev = seq.get(i - 1);
+      pathLength += prev.distance(pt);
+
+      // point i-1 now has a neighbor on both sides, so its speed is known.
+      if (i > 1) {
+        double numer = prev.distance(pt) + seq.get(i - 2).distance(prev);
+        double denom = pt.getTime() - seq.get(i - 2).getTime();
+        if (denom > 0) {
+          speed[i - 1] = numer / denom;
+          speedSum += speed[i - 1];
+        }
+      }
+    }
+    // point i - window now has a full window, so its curvature is known.
+    int mid = i - window;
+    if (mid - window >= 0) {
+      double c = Functions.getCurvature(seq.get(mid - window), seq.get(mid), pt);
+      curvature[mid] = c;
+      signedCurvatureSum += c;
+      absoluteCurvatureSum += Math.abs(c);
+    }
+  }
+
+  public Sequence getSequence() {
+    return seq;
+  }
+
+  public int getWindow() {
+    return window;
+  }
+
+  /**
+   * The number of points that have been folded in so far.
+   */
+  public int getPointCount() {
+    return processed;
+  }
+
+  /**
+   * The curvature at point i, which must be less than getPointCount().
+   */
+  public double getCurvature(int i) {
+    checkIndex(i);
+    return curvature[i];
+  }
+
+  /**
+   * The speed at point i, which must be less than getPointCount().
+   */
+  public double getSpeed(int i) {
+    checkIndex(i);
+    return speed[i];
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= processed) {
+      throw new IndexOutOfBoundsException("Index: " + i + ", Points: " + processed);
+    }
+  }
+
+  public double getPathLength() {
+    return pathLength;
+  }
+
+  /**
+   * Returns the bounding box of the points seen so far, or null if there aren't any.
+   */
+  public Rectangle2D getBounds() {
+    Rectangle2D ret = null;
+    if (processed > 0) {
+      ret = new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+    }
+    return ret;
+  }
+
+  public double getMinX() {
+    return minX;
+  }
+
+  public double getMinY() {
+    return minY;
+  }
+
+  public double getMaxX() {
+    return maxX;
+  }
+
+  public double getMaxY() {
+    return maxY;
+  }
+
+  /**
+   * The sum of the curvature values known so far. This matches Sequence.getSignedCurvatureSum()
+   * after Functions.calculateCurvature(Sequence) when the window is 1.
+   */
+  public double getSignedCurvatureSum() {
+    return signedCurvatureSum;
+  }
+
+  /**
+   * The sum of the absolute curvature values known so far.
+   */
+  public double getAbsoluteCurvatureSum() {
+    return absoluteCurvatureSum;
+  }
+
+  /**
+   * The sum of the per-point speeds known so far, as Sequence.calculateSpeed() would return.
+   */
+  public double getSpeedSum() {
+    return speedSum;
+  }
+
+  /**
+   * Path length divided by elapsed time, or zero if no time has passed.
+   */
+  public double getAverageSpeed() {
+    double ret = 0;
+    if (processed > 1) {
+      long dt = seq.get(processed - 1).getTime() - seq.getFirst().getTime();
+      if (dt > 0) {
+        ret = pathLength / dt;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * The speed at the most recent point that has a neighbor on both sides.
+   */
+  public double getLatestSpeed() {
+    return processed > 2 ? speed[processed - 2] : 0.0;
+  }
+}
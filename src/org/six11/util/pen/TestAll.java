@@ -13,6 +13,10 @@ public class TestAll {
     suite.addTest(new TestSuite(TestSequence.class));
     suite.addTest(new TestSuite(TestPt.class));
     suite.addTest(new TestSuite(TestFSM.class));
+    suite.addTest(new TestSuite(TestPackedSequence.class));
+    suite.addTest(new TestSuite(TestSegmentIndex.class));
+    suite.addTest(new TestSuite(TestFunction.class));
+    suite.addTest(new TestSuite(TestBinarySequenceIO.class));
     return suite;
   }
 }
@@ -0,0 +1,162 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.six11.util.pen.BinarySequenceWriter.Coordinates;
+
+/**
+ * Round trips for the binary sequence format and the streaming text reader.
+ **/
+public class TestBinarySequenceIO extends TestCase {
+
+  private List<Sequence> makeStrokes() {
+    Random rand = new Random(7);
+    List<Sequence> ret = new ArrayList<Sequence>();
+    long t = 1250000000000L;
+    for (int s = 0; s < 20; s++) {
+      Sequence seq = new Sequence();
+      double x = rand.nextDouble() * 500;
+      double y = rand.nextDouble() * 500;
+      int n = s == 3 ? 0 : 1 + rand.nextInt(200);
+      for (int i = 0; i < n; i++) {
+        x += rand.nextGaussian() * 3;
+        y += rand.nextGaussian() * 3;
+        t += rand.nextInt(20) - 2; // occasionally backwards
+        seq.add(new Pt(x, y, t));
+      }
+      ret.add(seq);
+    }
+    return ret;
+  }
+
+  private File write(List<Sequence> strokes, Coordinates coords) throws IOException {
+    File f = File.createTempFile("strokes", ".seqb");
+    f.deleteOnExit();
+    BinarySequenceWriter out = new BinarySequenceWriter(new FileOutputStream(f), coords, 100.0);
+    for (int i = 0; i < strokes.size(); i++) {
+      if (i % 2 == 0) {
+        out.write(strokes.get(i));
+      } else {
+        out.write(new PackedSequence(strokes.get(i)));
+      }
+    }
+    out.close();
+    assertEquals(strokes.size(), out.getCount());
+    return f;
+  }
+
+  private void assertSameStrokes(List<Sequence> expected, BinarySequenceReader in,
+      double tolerance) {
+    assertEquals(expected.size(), in.size());
+    PackedSequence scratch = new PackedSequence();
+    for (int s = 0; s < expected.size(); s++) {
+      Sequence seq = expected.get(s);
+      assertEquals(seq.size(), in.getPointCount(s));
+      in.read(s, scratch);
+      assertEquals(seq.size(), scratch.size());
+      for (int i = 0; i < seq.size(); i++) {
+        assertEquals(seq.get(i).getX(), scratch.getX(i), tolerance);
+        assertEquals(seq.get(i).getY(), scratch.getY(i), tolerance);
+        assertEquals(seq.get(i).getTime(), scratch.getTime(i));
+      }
+    }
+  }
+
+  public void testFloatRoundTrip() throws IOException {
+    List<Sequence> strokes = makeStrokes();
+    BinarySequenceReader in = new BinarySequenceReader(write(strokes, Coordinates.FLOAT));
+    assertSameStrokes(strokes, in, 0.001);
+    Sequence seq = in.getSequence(5);
+    assertEquals(strokes.get(5).size(), seq.size());
+    in.close();
+  }
+
+  public void testQuantizedRoundTrip() throws IOException {
+    List<Sequence> strokes = makeStrokes();
+    File f = write(strokes, Coordinates.QUANTIZED);
+    BinarySequenceReader in = new BinarySequenceReader(f);
+    assertEquals(Coordinates.QUANTIZED, in.getCoordinates());
+    assertSameStrokes(strokes, in, 0.005 + 0.0000001);
+    in.close();
+
+    // strokes must not straddle mapped regions.
+    int saved = BinarySequenceReader.maxRegionBytes;
+    try {
+      BinarySequenceReader.maxRegionBytes = 1500;
+      in = new BinarySequenceReader(f);
+      assertSameStrokes(strokes, in, 0.005 + 0.0000001);
+      in.close();
+    } finally {
+      BinarySequenceReader.maxRegionBytes = saved;
+    }
+  }
+
+  public void testConvertText() throws IOException {
+    List<Sequence> strokes = makeStrokes();
+    File text = File.createTempFile("strokes", ".txt");
+    text.deleteOnExit();
+    FileWriter w = new FileWriter(text);
+    SequenceIO.writeAll(strokes, w);
+    w.close();
+    File bin = File.createTempFile("strokes", ".seqb");
+    bin.deleteOnExit();
+    assertEquals(strokes.size(), SequenceIO.convertToBinary(text, bin, Coordinates.FLOAT, 0));
+
+    final List<Sequence> streamed = new ArrayList<Sequence>();
+    BinarySequenceReader in = new BinarySequenceReader(bin);
+    in.readEach(new SequenceIO.Handler() {
+      public void handle(Sequence seq) {
+        streamed.add(seq);
+      }
+    });
+    in.close();
+    assertEquals(strokes.size(), streamed.size());
+    assertEquals(strokes.get(7).getLast().getTime(), streamed.get(7).getLast().getTime());
+  }
+
+  public void testReadEachText() throws IOException {
+    List<Sequence> strokes = makeStrokes();
+    StringWriter w = new StringWriter();
+    SequenceIO.writeAll(strokes, w);
+    final int[] points = new int[1];
+    int n = SequenceIO.readEach(new BufferedReader(new StringReader(w.toString())),
+        new SequenceIO.Handler() {
+          public void handle(Sequence seq) {
+            points[0] += seq.size();
+          }
+        });
+    assertEquals(strokes.size(), n);
+    int expected = 0;
+    for (Sequence seq : strokes) {
+      expected += seq.size();
+    }
+    assertEquals(expected, points[0]);
+  }
+
+  public void testBadFile() throws IOException {
+    File f = File.createTempFile("strokes", ".txt");
+    f.deleteOnExit();
+    FileWriter w = new FileWriter(f);
+    w.write("seq_start\npt 1 2 3\nseq_end\n");
+    w.close();
+    try {
+      new BinarySequenceReader(f);
+      fail("Expected an IOException for a text file");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+}
@@ -2,6 +2,10 @@
 
 package org.six11.util.pen;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 import org.six11.util.Debug;
@@ -48,4 +52,78 @@ public class TestFunction extends TestCase {
     double a4 = Functions.getAngleBetween(v2, v1);
     assertEquals(-1.0 * a1, a4, 0.001);
   }
+
+  public void testBulkKernels() {
+    Random rand = new Random(11);
+    List<Pt> pts = new ArrayList<Pt>();
+    for (int i = 0; i < 50; i++) {
+      pts.add(new Pt(rand.nextDouble() * 100, rand.nextDouble() * 100));
+    }
+    double[] xs = new double[pts.size()];
+    double[] ys = new double[pts.size()];
+    Functions.copyXY(pts, 0, pts.size(), xs, ys);
+    Pt a = pts.get(3);
+    Pt b = pts.get(40);
+    Line line = new Line(a, b);
+
+    double[] out = new double[pts.size()];
+    Functions.getLineDistances(xs, ys, 0, xs.length, a.x, a.y, b.x, b.y, out, 0);
+    double[] segOut = new double[pts.size()];
+    Functions.getSegmentDistances(xs, ys, 0, xs.length, a.x, a.y, b.x, b.y, segOut, 0);
+    double sum = 0;
+    double max = 0;
+    for (int i = 0; i < pts.size(); i++) {
+      double d = Functions.getDistanceBetweenPointAndLine(pts.get(i), line);
+      assertEquals(d, out[i], 0.000001);
+      assertEquals(Functions.getDistanceBetweenPointAndSegment(pts.get(i), line), segOut[i],
+          0.000001);
+      if (i >= 3 && i <= 40) {
+        sum += d * d;
+        max = Math.max(max, d);
+      }
+    }
+    assertEquals(sum, Functions.getLineDistanceSquaredSum(xs, ys, 3, 38, a.x, a.y, b.x, b.y),
+        0.000001);
+    assertEquals(max, Functions.getMaxLineDistance(xs, ys, 3, 38, a.x, a.y, b.x, b.y), 0.000001);
+    assertEquals(Functions.getLineError(line, pts, 3, 40), Functions.getLineError(xs, ys, 3, 40),
+        0.000001);
+
+    double[] curv = new double[pts.size()];
+    Functions.calculateCurvature(xs, ys, 0, xs.length, curv, 0);
+    Functions.calculateCurvature(pts);
+    for (int i = 0; i < pts.size(); i++) {
+      assertEquals(pts.get(i).getDouble("curvature"), curv[i], 0.000001);
+    }
+
+    // crossing numbers for a concave polygon, checked against the Pt version.
+    List<Pt> poly = new ArrayList<Pt>();
+    poly.add(new Pt(0, 0));
+    poly.add(new Pt(50, 0));
+    poly.add(new Pt(50, 50));
+    poly.add(new Pt(25, 20));
+    poly.add(new Pt(0, 50));
+    double[] px = new double[poly.size()];
+    double[] py = new double[poly.size()];
+    Functions.copyXY(poly, 0, poly.size(), px, py);
+    double[] qx = new double[200];
+    double[] qy = new double[200];
+    for (int i = 0; i < qx.length; i++) {
+      qx[i] = rand.nextInt(70) - 10;
+      qy[i] = rand.nextInt(70) - 10;
+    }
+    int[] crossings = new int[qx.length];
+    Functions.getCrossingNumbers(qx, qy, 0, qx.length, px, py, 0, px.length, crossings, 0);
+    for (int i = 0; i < qx.length; i++) {
+      assertEquals(Functions.getCrossingNumber(new Pt(qx[i], qy[i]), poly), crossings[i]);
+    }
+    assertTrue(Functions.getCrossingNumber(10, 10, px, py, 0, px.length) % 2 == 1);
+    assertTrue(Functions.getCrossingNumber(25, 40, px, py, 0, px.length) % 2 == 0);
+
+    double[] near = new double[pts.size()];
+    Functions.getNearestVertexDistances(xs, ys, 0, xs.length, px, py, 0, px.length, near, 0);
+    for (int i = 0; i < pts.size(); i++) {
+      Pt nearest = Functions.getNearestPointOnSequence(pts.get(i), poly);
+      assertEquals(nearest.distance(pts.get(i)), near[i], 0.000001);
+    }
+  }
 }
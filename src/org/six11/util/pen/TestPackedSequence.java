@@ -0,0 +1,70 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ **/
+public class TestPackedSequence extends TestCase {
+
+  public void testAddAndGrow() {
+    PackedSequence ps = new PackedSequence(2);
+    for (int i = 0; i < 100; i++) {
+      ps.add(i, i * 2, i * 10L);
+    }
+    assertEquals(100, ps.size());
+    assertEquals(42.0, ps.getX(42));
+    assertEquals(84.0, ps.getY(42));
+    assertEquals(420L, ps.getTime(42));
+    try {
+      ps.getX(100);
+      fail("Should not be able to get to index 100");
+    } catch (IndexOutOfBoundsException ok) { /* expected */
+    }
+  }
+
+  public void testViewWritesThrough() {
+    PackedSequence ps = new PackedSequence();
+    ps.add(1, 2, 3L);
+    ps.add(4, 6, 5L);
+    Pt view = ps.getPt(1);
+    assertSame(view, ps.getPt(1));
+    assertTrue(view.isAnonymous());
+    view.move(1, 1);
+    assertEquals(5.0, ps.getX(1));
+    assertEquals(7.0, ps.getY(1));
+    ps.setLocation(1, 10, 20);
+    assertEquals(10.0, view.x);
+    assertEquals(20.0, view.getY());
+    view.setDouble("curvature", 0.5);
+    assertTrue(ps.hasChannel("curvature"));
+    assertEquals(0.5, ps.getDouble("curvature", 1));
+    assertFalse(ps.hasDouble("curvature", 0));
+    assertFalse(ps.getPt(0).hasAttribute("curvature"));
+    assertEquals(Math.sqrt(9 * 9 + 18 * 18), ps.length(), Functions.EQ_TOL);
+  }
+
+  public void testSequenceRoundTrip() {
+    Sequence seq = new Sequence();
+    for (int i = 0; i < 10; i++) {
+      Pt pt = new Pt(i, i * i, i);
+      pt.setDouble("speed", i / 2.0);
+      seq.add(pt);
+    }
+    PackedSequence ps = new PackedSequence(seq, "speed");
+    assertEquals(seq.size(), ps.size());
+    assertEquals(seq.length(), ps.length(), Functions.EQ_TOL);
+    Sequence back = ps.toSequence();
+    for (int i = 0; i < seq.size(); i++) {
+      assertEquals(seq.get(i).getX(), back.get(i).getX());
+      assertEquals(seq.get(i).getY(), back.get(i).getY());
+      assertEquals(seq.get(i).getTime(), back.get(i).getTime());
+      assertEquals(seq.get(i).getDouble("speed"), back.get(i).getDouble("speed"));
+    }
+    Sequence view = ps.asSequence();
+    assertEquals(seq.length(), view.length(), Functions.EQ_TOL);
+    assertEquals(seq.getBounds2D(), ps.getBounds2D());
+  }
+}
@@ -4,6 +4,8 @@ package org.six11.util.pen;
 
 import junit.framework.TestCase;
 import java.awt.Color;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * 
@@ -75,4 +77,43 @@ public class TestPt extends TestCase {
     assertEquals("another value", a.getString("name"));
   }
 
+
+  public void testIds() throws InterruptedException {
+    Pt a = new Pt(1, 2);
+    Pt b = new Pt(1, 2);
+    assertFalse(a.getID() == b.getID());
+    Pt c = new Pt(a.getID() + 5000, 1, 2, 0L);
+    Pt d = new Pt(1, 2);
+    assertTrue(d.getID() > c.getID());
+
+    Pt anonA = Pt.anon(3, 4);
+    Pt anonB = Pt.anon(3, 4);
+    assertTrue(anonA.isAnonymous());
+    assertEquals(Pt.NO_ID, anonA.getID());
+    assertTrue(anonA.equals(anonA));
+    assertFalse(anonA.equals(anonB));
+
+    // ids made on several threads at once never collide
+    final int perThread = 5000;
+    final int[][] ids = new int[4][perThread];
+    Thread[] threads = new Thread[ids.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int[] mine = ids[t];
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            mine[i] = new Pt(i, i).getID();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    Set<Integer> seen = new HashSet<Integer>();
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+      for (int id : ids[t]) {
+        assertTrue(seen.add(id));
+      }
+    }
+  }
 }
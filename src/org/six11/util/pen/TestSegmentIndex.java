@@ -0,0 +1,75 @@
+// $Id$
+
+package org.six11.util.pen;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ **/
+public class TestSegmentIndex extends TestCase {
+
+  public void testNearestMatchesLinearScan() {
+    Random rand = new Random(42);
+    SegmentIndex index = new SegmentIndex(20);
+    Sequence[] strokes = new Sequence[50];
+    for (int s = 0; s < strokes.length; s++) {
+      strokes[s] = new Sequence();
+      double x = rand.nextDouble() * 1000;
+      double y = rand.nextDouble() * 1000;
+      for (int i = 0; i < 30; i++) {
+        x += rand.nextGaussian() * 10;
+        y += rand.nextGaussian() * 10;
+        strokes[s].add(new Pt(x, y));
+      }
+      index.add(strokes[s]);
+    }
+    assertEquals(50 * 29, index.getSegmentCount());
+    for (int q = 0; q < 200; q++) {
+      Pt where = new Pt(rand.nextDouble() * 1200 - 100, rand.nextDouble() * 1200 - 100);
+      double expected = Double.MAX_VALUE;
+      for (Sequence seq : strokes) {
+        for (int i = 0; i < seq.size() - 1; i++) {
+          Line seg = new Line(seq.get(i), seq.get(i + 1));
+          expected = Math.min(expected, Functions.getDistanceBetweenPointAndSegment(where, seg));
+        }
+      }
+      SegmentIndex.Hit hit = index.getNearest(where, Double.MAX_VALUE);
+      assertEquals(expected, hit.getDistance(), 0.0001);
+      List<SegmentIndex.Hit> within = index.getWithin(where, expected + 15);
+      assertFalse(within.isEmpty());
+      assertEquals(expected, within.get(0).getDistance(), 0.0001);
+      List<SegmentIndex.Hit> three = index.getNearest(where, 3, Double.MAX_VALUE);
+      assertEquals(3, three.size());
+      assertTrue(three.get(0).getDistance() <= three.get(2).getDistance());
+    }
+  }
+
+  public void testRemoveAndUpdate() {
+    SegmentIndex index = new SegmentIndex(10);
+    Sequence a = new Sequence();
+    a.add(new Pt(0, 0));
+    a.add(new Pt(100, 0));
+    Sequence b = new Sequence();
+    b.add(new Pt(0, 50));
+    b.add(new Pt(100, 50));
+    index.add(a);
+    index.add(b);
+    assertSame(a, index.getNearest(new Pt(50, 10), 100).getSequence());
+    index.remove(a);
+    assertSame(b, index.getNearest(new Pt(50, 10), 100).getSequence());
+    assertNull(index.getNearest(new Pt(50, 10), 5));
+
+    // move b and re-index it
+    for (Pt pt : b) {
+      pt.move(0, 400);
+    }
+    index.update(b);
+    assertEquals(1, index.getSegmentCount());
+    assertEquals(10.0, index.getNearest(new Pt(50, 440), 100).getDistance(), 0.0001);
+    assertTrue(index.getWithin(new Pt(50, 50), 20).isEmpty());
+  }
+}
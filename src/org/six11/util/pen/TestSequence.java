@@ -2,6 +2,11 @@
 
 package org.six11.util.pen;
 
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import junit.framework.TestCase;
 
 import org.six11.util.Debug;
@@ -246,6 +251,311 @@ public class TestSequence extends TestCase {
     assertEquals(2.1621, seq.get(3).getDouble("mid"), 0.001);
   }
 
+  public void testChannels() {
+    Sequence seq = makeSequence();
+    assertFalse(seq.hasChannel(Channel.SPEED));
+    assertTrue(Double.isNaN(seq.getDouble(Channel.SPEED, 1)));
+    seq.setDouble(Channel.SPEED, 1, 2.5);
+    assertTrue(seq.hasChannel(Channel.SPEED));
+    assertEquals(2.5, seq.getDouble(Channel.SPEED, 1));
+    assertEquals(2.5, seq.get(1).getDouble("speed")); // mirrored by default
+    assertSame(Channel.SPEED, Channel.get("speed"));
+
+    // columns follow the points around when they are added and removed
+    seq.remove(0);
+    assertEquals(2.5, seq.getDouble(Channel.SPEED, 0));
+    seq.add(new Pt(4.0, 2.0));
+    assertFalse(seq.hasDouble(Channel.SPEED, 3));
+
+    seq.setWritePointAttributes(false);
+    seq.setDouble(Channel.SPEED, 2, 7.0);
+    assertEquals(7.0, seq.getDouble(Channel.SPEED, 2));
+    assertFalse(seq.get(2).hasAttribute("speed"));
+
+    // point attributes are still visible through the channel API
+    seq.get(3).setDouble("curvature", 0.3);
+    assertEquals(0.3, seq.getDouble(Channel.CURVATURE, 3));
+
+    // old code that reads curvature off the points still works
+    Sequence curvy = makeSequence();
+    Functions.calculateCurvature(curvy);
+    for (int i = 0; i < curvy.size(); i++) {
+      assertEquals(curvy.getDouble(Channel.CURVATURE, i), curvy.get(i).getDouble("curvature"));
+    }
+  }
+
+  public void testSelfIntersections() {
+    Random rand = new Random(7);
+    Sequence scribble = new Sequence();
+    double x = 0, y = 0;
+    for (int i = 0; i < 600; i++) {
+      x += rand.nextGaussian() * 5;
+      y += rand.nextGaussian() * 5;
+      scribble.add(new Pt(x, y));
+    }
+    double[] windows = {
+        10, 40, 200, 1000, Double.MAX_VALUE
+    };
+    for (double w : windows) {
+      List<Pt> expected = bruteForceSelfIntersections(scribble, w);
+      List<Pt> actual = scribble.getSelfIntersectionPoints(w);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.get(i).getX(), actual.get(i).getX());
+        assertEquals(expected.get(i).getY(), actual.get(i).getY());
+      }
+    }
+    assertEquals(scribble.getSelfIntersectionPoints(Double.MAX_VALUE).size(), scribble
+        .getSelfIntersectionPoints(-1).size());
+
+    // a simple loop: 0,0 -> 10,0 -> 10,10 -> 5,-5 -> 5, -10 ...
+    Sequence loop = new Sequence();
+    loop.add(new Pt(0, 0));
+    loop.add(new Pt(10, 0));
+    loop.add(new Pt(10, 10));
+    loop.add(new Pt(5, -5));
+    loop.add(new Pt(5, -10));
+    loop.add(new Pt(5, -20));
+    List<Sequence.SelfIntersection> ix = loop.getSelfIntersections(Double.MAX_VALUE);
+    assertEquals(1, ix.size());
+    assertEquals(0, ix.get(0).getIndexA());
+    assertEquals(2, ix.get(0).getIndexB());
+    assertEquals(5.0 + 5.0 / 3.0, ix.get(0).getX(), 0.0001);
+    assertEquals(0.0, ix.get(0).getY(), 0.0001);
+  }
+
+  public void testStrokeFeatures() {
+    Random rand = new Random(3);
+    Sequence live = new Sequence();
+    double x = 0, y = 0;
+    long t = 0;
+    for (int i = 0; i < 200; i++) {
+      x += 1 + rand.nextDouble() * 4;
+      y += rand.nextGaussian() * 3;
+      t += 5 + rand.nextInt(10);
+      live.add(new Pt(x, y, t));
+      if (i % 7 == 0) {
+        live.getStrokeFeatures(); // catch up at irregular intervals like a listener would
+      }
+    }
+    StrokeFeatures features = live.getStrokeFeatures();
+    assertEquals(200, features.getPointCount());
+
+    Sequence batch = live.copy();
+    Functions.calculateCurvature(batch);
+    assertEquals(batch.length(), features.getPathLength(), 0.0001);
+    assertEquals(batch.getBounds2D(), features.getBounds());
+    assertEquals(batch.getSignedCurvatureSum(), features.getSignedCurvatureSum(), 0.0001);
+    double absCurvature = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      absCurvature += Math.abs(batch.getDouble(Channel.CURVATURE, i));
+    }
+    assertEquals(absCurvature, features.getAbsoluteCurvatureSum(), 0.0001);
+    assertEquals(batch.calculateSpeed(), features.getSpeedSum(), 0.0001);
+    for (int i = 0; i < batch.size(); i++) {
+      assertEquals(batch.getDouble(Channel.CURVATURE, i), features.getCurvature(i), 0.0001);
+    }
+    assertFalse(live.hasChannel(Channel.CURVATURE)); // running values stay out of the channels
+
+    // ...and don't clobber what a full pass put there
+    batch.setDouble(Channel.CURVATURE, 5, 42.0);
+    batch.getStrokeFeatures();
+    assertEquals(42.0, batch.getDouble(Channel.CURVATURE, 5));
+
+    live.remove(0);
+    features = live.getStrokeFeatures();
+    assertEquals(199, features.getPointCount());
+    assertEquals(live.length(), features.getPathLength(), 0.0001);
+
+    // samples that arrive in the same millisecond don't make the speed infinite
+    live.add(new Pt(x + 1, y, t));
+    live.add(new Pt(x + 2, y, t));
+    features = live.getStrokeFeatures();
+    assertFalse(Double.isInfinite(features.getSpeedSum()) || Double.isNaN(features.getSpeedSum()));
+    assertEquals(0.0, features.getLatestSpeed());
+
+    // moving points in place needs an explicit invalidation, which covers the features too
+    for (Pt pt : live) {
+      pt.move(0, 1000);
+    }
+    live.invalidateArcLength();
+    assertEquals(live.getBounds2D().getMinY(), live.getStrokeFeatures().getMinY(), 0.0001);
+  }
+
+  public void testArcLength() {
+    Sequence seq = makeSequence();
+    assertEquals(0.0, seq.getArcLength(0));
+    assertEquals(1.4142, seq.getArcLength(1), 0.001);
+    assertEquals(3.5763, seq.getArcLength(3), 0.001);
+    assertEquals(seq.getArcLength(3) - seq.getArcLength(1), seq.getPathLength(1, 3), 0.0000001);
+    assertEquals(0.0, seq.getPathLength(2, 1));
+
+    Pt mid = seq.getPointAtArcLength(1.4142 / 2);
+    assertEquals(0.5, mid.getX(), 0.001);
+    assertEquals(0.5, mid.getY(), 0.001);
+    assertEquals(2, seq.getIndexAfterArcLength(1.5));
+    assertEquals(1, seq.getIndexBeforeArcLength(1.5));
+
+    // the cache follows additions and removals
+    seq.add(new Pt(3.0, 2.8));
+    assertEquals(4.5763, seq.length(), 0.001);
+    seq.remove(0);
+    assertEquals(4.5763 - 1.4142, seq.length(), 0.001);
+
+    // ...but moving points requires an explicit invalidation
+    seq.getLast().move(0, 1);
+    seq.invalidateArcLength();
+    assertEquals(5.5763 - 1.4142, seq.length(), 0.001);
+
+    Pt there = seq.getInterpolatedPoint(0, 1.0, 1);
+    assertEquals(1.0, there.distance(seq.get(0)), 0.001);
+    assertNull(seq.getInterpolatedPoint(0, 100.0, 1));
+  }
+
+  public void testResampler() {
+    Sequence seq = new Sequence();
+    seq.add(new Pt(0, 0, 0));
+    seq.add(new Pt(10, 0, 100));
+    seq.add(new Pt(10, 5, 200));
+
+    Resampler r = new Resampler(2);
+    assertEquals(5, r.resampleBySpacing(seq, 4.0));
+    assertEquals(8.0, r.getXs()[2], 0.0000001);
+    assertEquals(80L, r.getTimes()[2]);
+    assertEquals(10.0, r.getXs()[3], 0.0000001);
+    assertEquals(2.0, r.getYs()[3], 0.0000001);
+    assertEquals(5.0, r.getYs()[4], 0.0000001);
+
+    // same as the Sequence-building version
+    Sequence curvy = Functions.getCurvilinearNormalizedSequence(seq, 0, seq.size() - 1, 4.0);
+    assertEquals(curvy.size(), r.size());
+    for (int i = 0; i < curvy.size(); i++) {
+      assertEquals(curvy.get(i).getX(), r.getXs()[i], 0.0000001);
+      assertEquals(curvy.get(i).getY(), r.getYs()[i], 0.0000001);
+    }
+
+    double[] xs = r.getXs();
+    assertEquals(4, r.resampleByCount(seq, 4));
+    assertSame(xs, r.getXs()); // big enough already, so no new buffers
+    assertEquals(5.0, r.getXs()[1], 0.0000001);
+    assertEquals(10.0, r.getXs()[2], 0.0000001);
+    assertEquals(5.0, r.getYs()[3], 0.0000001);
+
+    assertEquals(4, r.resampleByTime(seq, 75));
+    assertEquals(7.5, r.getXs()[1], 0.0000001);
+    assertEquals(2.5, r.getYs()[2], 0.0000001);
+    assertEquals(200L, r.getTimes()[3]);
+
+    PackedSequence packed = new PackedSequence();
+    r.writeTo(packed);
+    assertEquals(4, packed.size());
+    assertEquals(4, r.resampleByTime(packed, 75));
+    assertEquals(4, r.toSequence().size());
+
+    assertEquals(0, r.resampleByCount(new Sequence(), 10));
+
+    // a path with no length still gets its first and last points
+    Sequence dot = new Sequence();
+    dot.add(new Pt(3, 4, 10));
+    dot.add(new Pt(3, 4, 20));
+    assertEquals(2, r.resampleBySpacing(dot, 4.0));
+    assertEquals(10L, r.getTimes()[0]);
+    assertEquals(20L, r.getTimes()[1]);
+    dot.removeLast();
+    assertEquals(1, r.resampleBySpacing(dot, 4.0));
+
+    // chord hops match the Euclidean normalization
+    Sequence wiggle = new Sequence();
+    for (int i = 0; i < 30; i++) {
+      wiggle.add(new Pt(i * 3, Math.sin(i * 0.7) * 8, i * 10));
+    }
+    List<Pt> hops = Functions.getNormalizedSequence(wiggle.getPoints(), 2.5);
+    assertEquals(hops.size(), r.resampleByChord(wiggle, 2.5));
+    for (int i = 0; i < hops.size(); i++) {
+      assertEquals(hops.get(i).getX(), r.getXs()[i], 0.0000001);
+      assertEquals(hops.get(i).getY(), r.getYs()[i], 0.0000001);
+    }
+
+    // rough stats still come from the Euclidean normalization, endpoint copies and all
+    Sequence normal = Functions.getNormalizedSequence(wiggle, 5.0 / 2.0);
+    Rectangle2D bounds = normal.getBounds2D();
+    double dx = bounds.getWidth() * 2.0;
+    double dy = bounds.getHeight() * 2.0;
+    assertEquals(bounds.getWidth(), wiggle.getRoughDX(2.0), 0.0000001);
+    assertEquals(dx * dy, wiggle.getRoughArea(2.0), 0.0000001);
+    assertEquals((normal.size() / dx) * (normal.size() / dy), wiggle.getRoughDensity(2.0),
+        0.0000001);
+  }
+
+  public void testCurvilinearNeighbor() {
+    Sequence seq = new Sequence();
+    for (int i = 0; i < 20; i++) {
+      seq.add(new Pt(i * 2, (i % 3) * 1.5, i * 10));
+    }
+    for (int start = 0; start < seq.size(); start++) {
+      for (double dist = 0.5; dist < 50; dist += 3.7) {
+        for (int dir = -1; dir <= 1; dir += 2) {
+          Pt expected = null;
+          Pt prev = null;
+          double soFar = 0;
+          for (int i = start; i >= 0 && i < seq.size(); i += dir) {
+            Pt pt = seq.get(i);
+            if (prev != null) {
+              double d = prev.distance(pt);
+              if (soFar + d > dist) {
+                expected = new Vec(prev, pt).getVectorOfMagnitude(dist - soFar).add(prev);
+                break;
+              }
+              soFar += d;
+            }
+            prev = pt;
+          }
+          Pt actual = Functions.getCurvilinearNeighbor(seq, start, dist, dir);
+          if (expected == null) {
+            assertNull(actual);
+          } else {
+            assertEquals(expected.getX(), actual.getX(), 0.0001);
+            assertEquals(expected.getY(), actual.getY(), 0.0001);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The original O(n^2) implementation of Sequence.getSelfIntersectionPoints, for comparison.
+   */
+  private static List<Pt> bruteForceSelfIntersections(Sequence seq, double localDistance) {
+    List<Pt> points = seq.getPoints();
+    List<Pt> ret = new ArrayList<Pt>();
+    double runDist;
+    Line lineA = new Line();
+    Line lineB = new Line();
+    for (int i = 0; i < (points.size() - 3); i++) {
+      lineA.push(points.get(i));
+      if (lineA.isValid()) {
+        runDist = lineA.getLength();
+        lineB.clear();
+        for (int j = i + 1; j < (points.size() - 1); j++) {
+          lineB.push(points.get(j));
+          if (lineB.isValid()) {
+            runDist += lineB.getLength();
+            if (!lineA.isAdjacentTo(lineB) && lineA.intersectsLine(lineB)) {
+              IntersectionData ix = new IntersectionData(lineA, lineB);
+              if (ix.intersectsInSegments() && (!ret.contains(ix.getIntersection()))) {
+                ret.add(ix.getIntersection());
+              }
+            }
+          }
+          if (runDist > localDistance) {
+            break;
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
   protected Sequence makeSequence() {
     Sequence ret = new Sequence();
     ret.add(new Pt(0.0, 0.0));
@@ -66,33 +66,27 @@ public class AngleConstraint extends Constraint {
         // Also move fulcrum along bisector if it is free.
         double shift = e / free;
         double abSum = 0;
-        Vec vecA = null;
-        Vec vecB = null;
-        Vec vecF = null;
         if (!isPinned(a)) {
-          Pt rotatedA = Functions.rotatePointAboutPivot(a, f, shift);
-          vecA = new Vec(rotatedA.x - a.x, rotatedA.y - a.y);
-          abSum = abSum + vecA.mag();
-          accumulate(a, vecA, heat);
+          abSum = abSum + accumulateRotation(a, f.x, f.y, shift);
         }
         if (!isPinned(b)) {
-          Pt rotatedB = Functions.rotatePointAboutPivot(b, f, -shift);
-          vecB = new Vec(rotatedB.x - b.x, rotatedB.y - b.y);
-          abSum = abSum + vecB.mag();
-          accumulate(b, vecB, heat);
+          abSum = abSum + accumulateRotation(b, f.x, f.y, -shift);
         }
         if (!isPinned(f)) {
-          Vec toA = new Vec(f, a);
-          Vec toB = new Vec(f, b);
+          double toAx = a.x - f.x;
+          double toAy = a.y - f.y;
+          double toBx = b.x - f.x;
+          double toBy = b.y - f.y;
           // cross product's tells us the 'handedness' of the triangle using f->a as a reference
-          double cross = toA.cross(toB);
+          double cross = toAx * toBy - toAy * toBx;
           double signCross = Math.signum(cross);
           double signErr = Math.signum(e);
           double dirF = 1.0;
           if (signCross == signErr) {
             dirF = -1.0;
           }
-          Vec bisector = Vec.sum(toA, toB); // this bisects the triangle starting from f
+          double bisectorX = toAx + toBx; // this bisects the triangle starting from f
+          double bisectorY = toAy + toBy;
           // move fulcrum towards or away from centroid depending on handedness and error. 
           // if the system is too acute the fulcrum moves inward; too obtuse and it moves outward
           double magF = (abSum / 2.0);
@@ -102,8 +96,10 @@ public class AngleConstraint extends Constraint {
             bug("damping is negative!");
           }
           moveF = moveF * damping; // dampen the fulcrum's movement because it tends to shorten lines a lot
-          vecF = bisector.getVectorOfMagnitude(moveF);
-          accumulate(f, vecF, heat);
+          double bisectorLen = Math.sqrt(bisectorX * bisectorX + bisectorY * bisectorY);
+          if (bisectorLen > 0) {
+            accumulate(f, bisectorX * moveF / bisectorLen, bisectorY * moveF / bisectorLen);
+          }
         }
       }
     }
@@ -120,14 +116,10 @@ public class AngleConstraint extends Constraint {
         // Rotate a and b about f by e/2 and -e/2 radians. (assuming free = 2)
         double shift = e / free;
         if (!isPinned(a)) {
-          Pt rotatedA = Functions.rotatePointAboutPivot(a, f, shift);
-          Vec vecA = new Vec(rotatedA.x - a.x, rotatedA.y - a.y);
-          accumulate(a, vecA, heat);
+          accumulateRotation(a, f.x, f.y, shift);
         }
         if (!isPinned(b)) {
-          Pt rotatedB = Functions.rotatePointAboutPivot(b, f, -shift);
-          Vec vecB = new Vec(rotatedB.x - b.x, rotatedB.y - b.y);
-          accumulate(b, vecB, heat);
+          accumulateRotation(b, f.x, f.y, -shift);
         }
       }
     }
@@ -146,6 +138,20 @@ public class AngleConstraint extends Constraint {
     return ret;
   }
 
+  /**
+   * The residual is measureError(), which moves one-for-one with the signed angle at the fulcrum.
+   * Related points are { a, b, f }.
+   */
+  public void evaluate(Pt[] related, double[] r, int rOff, double[] jac, int jOff) {
+    r[rOff] = measureError();
+    // the angle is measured from u = f - a to v = f - b.
+    double[] g = new double[4];
+    angleGradient(f.x - a.x, f.y - a.y, f.x - b.x, f.y - b.y, g);
+    setPartial(jac, jOff, 3, 0, 0, -g[0], -g[1]);
+    setPartial(jac, jOff, 3, 0, 1, -g[2], -g[3]);
+    setPartial(jac, jOff, 3, 0, 2, g[0] + g[2], g[1] + g[3]);
+  }
+
   public Line getSegment1() {
     return new Line(f, a);
   }
@@ -0,0 +1,503 @@
+package org.six11.util.solve;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.six11.util.pen.Pt;
+
+import static org.six11.util.Debug.bug;
+
+/**
+ * A compact copy of a VariableBank's state, for undo/redo and crash recovery where JsonIO would be
+ * too slow. Everything is kept in flat arrays: point coordinates, pinned flags and names, and for
+ * each constraint a type tag, its id, the indexes of its points and its numeric value (NaN if it
+ * has none).
+ *
+ * Points that constraints refer to but which aren't in the bank (such as a LocationConstraint
+ * target) are stored after the bank's own points, so the snapshot is self-contained.
+ *
+ * A snapshot taken from a live bank also remembers the Pt and Constraint objects. restore() reuses
+ * them when it can, so it only has to copy numbers back in and other references to those objects
+ * stay good. A snapshot read from bytes has no objects and restore() builds new ones.
+ */
+public class BankSnapshot {
+
+  private static final int MAGIC = 0x536e6170; // "Snap"
+  private static final int VERSION = 1;
+
+  private static final byte UNKNOWN = -1;
+  private static final byte ANGLE = 0;
+  private static final byte DISTANCE = 1;
+  private static final byte LOCATION = 2;
+  private static final byte ORIENTATION = 3;
+  private static final byte POINT_AS_LINE_PARAM = 4;
+  private static final byte POINT_ON_LINE = 5;
+
+  private final int bankPoints; // points [0, bankPoints) are in the bank, the rest are not
+  private final double[] xy;
+  private final long[] times;
+  private final BitSet pinned;
+  private final String[] names;
+  private final byte[] tags;
+  private final int[] ids;
+  private final int[] refStart; // constraint i uses refs[refStart[i] .. refStart[i + 1])
+  private final int[] refs;
+  private final double[] values;
+
+  private final Pt[] pts; // null if read from bytes
+  private final Constraint[] constraints; // null if read from bytes
+
+  private BankSnapshot(int bankPoints, double[] xy, long[] times, BitSet pinned, String[] names,
+      byte[] tags, int[] ids, int[] refStart, int[] refs, double[] values, Pt[] pts,
+      Constraint[] constraints) {
+    this.bankPoints = bankPoints;
+    this.xy = xy;
+    this.times = times;
+    this.pinned = pinned;
+    this.names = names;
+    this.tags = tags;
+    this.ids = ids;
+    this.refStart = refStart;
+    this.refs = refs;
+    this.values = values;
+    this.pts = pts;
+    this.constraints = constraints;
+  }
+
+  /**
+   * Copies the current state of the given bank.
+   */
+  public static BankSnapshot take(VariableBank vars) {
+    List<Pt> bankList = vars.getPoints();
+    List<Constraint> conList = vars.getConstraints();
+    Map<Pt, Integer> index = new IdentityHashMap<Pt, Integer>();
+    List<Pt> all = new ArrayList<Pt>(bankList.size());
+    for (Pt pt : bankList) {
+      if (!index.containsKey(pt)) {
+        index.put(pt, all.size());
+        all.add(pt);
+      }
+    }
+    int bankPoints = all.size();
+    int m = conList.size();
+    byte[] tags = new byte[m];
+    int[] ids = new int[m];
+    int[] refStart = new int[m + 1];
+    double[] values = new double[m];
+    Pt[][] related = new Pt[m][];
+    int numRefs = 0;
+    for (int i = 0; i < m; i++) {
+      Constraint c = conList.get(i);
+      tags[i] = tagOf(c);
+      ids[i] = c.getID();
+      values[i] = valueOf(c);
+      related[i] = c.getRelatedPoints();
+      refStart[i] = numRefs;
+      numRefs += related[i].length;
+      for (Pt pt : related[i]) {
+        if (!index.containsKey(pt)) {
+          index.put(pt, all.size());
+          all.add(pt);
+        }
+      }
+    }
+    refStart[m] = numRefs;
+    int[] refs = new int[numRefs];
+    for (int i = 0; i < m; i++) {
+      for (int j = 0; j < related[i].length; j++) {
+        refs[refStart[i] + j] = index.get(related[i][j]);
+      }
+    }
+    int n = all.size();
+    double[] xy = new double[2 * n];
+    long[] times = new long[n];
+    BitSet pinned = new BitSet(n);
+    String[] names = new String[n];
+    Pt[] pts = all.toArray(new Pt[n]);
+    for (int i = 0; i < n; i++) {
+      xy[2 * i] = pts[i].getX();
+      xy[2 * i + 1] = pts[i].getY();
+      times[i] = pts[i].getTime();
+      pinned.set(i, Constraint.isPinned(pts[i]));
+      names[i] = pts[i].getString("name");
+    }
+    return new BankSnapshot(bankPoints, xy, times, pinned, names, tags, ids, refStart, refs,
+        values, pts, conList.toArray(new Constraint[m]));
+  }
+
+  private static byte tagOf(Constraint c) {
+    byte ret = UNKNOWN;
+    if (c instanceof AngleConstraint) {
+      ret = ANGLE;
+    } else if (c instanceof DistanceConstraint) {
+      ret = DISTANCE;
+    } else if (c instanceof LocationConstraint) {
+      ret = LOCATION;
+    } else if (c instanceof OrientationConstraint) {
+      ret = ORIENTATION;
+    } else if (c instanceof PointAsLineParamConstraint) {
+      ret = POINT_AS_LINE_PARAM;
+    } else if (c instanceof PointOnLineConstraint) {
+      ret = POINT_ON_LINE;
+    }
+    return ret;
+  }
+
+  private static NumericValue numericValueOf(Constraint c) {
+    NumericValue ret = null;
+    if (c instanceof AngleConstraint) {
+      ret = ((AngleConstraint) c).getValue();
+    } else if (c instanceof DistanceConstraint) {
+      ret = ((DistanceConstraint) c).getValue();
+    } else if (c instanceof OrientationConstraint) {
+      ret = ((OrientationConstraint) c).getValue();
+    } else if (c instanceof PointAsLineParamConstraint) {
+      ret = ((PointAsLineParamConstraint) c).dist;
+    }
+    return ret;
+  }
+
+  private static double valueOf(Constraint c) {
+    NumericValue nv = numericValueOf(c);
+    return nv == null ? Double.NaN : nv.getValue();
+  }
+
+  public int getPointCount() {
+    return bankPoints;
+  }
+
+  public int getConstraintCount() {
+    return tags.length;
+  }
+
+  /**
+   * Puts the bank back the way it was when this snapshot was taken. Points and constraints that
+   * still exist are reused and updated in place; the rest are rebuilt. Constraints of types this
+   * class doesn't know about can only come back if the snapshot was taken from a live bank.
+   */
+  public void restore(VariableBank vars) {
+    int n = names.length;
+    Pt[] restoredPts = new Pt[n];
+    for (int i = 0; i < n; i++) {
+      Pt pt = pts == null ? new Pt(xy[2 * i], xy[2 * i + 1], times[i]) : pts[i];
+      if (pt.getX() != xy[2 * i] || pt.getY() != xy[2 * i + 1]) {
+        pt.setLocation(xy[2 * i], xy[2 * i + 1]);
+      }
+      boolean pin = pinned.get(i);
+      if (Constraint.isPinned(pt) != pin) {
+        Constraint.setPinned(pt, pin);
+      }
+      if (names[i] != null && !names[i].equals(pt.getString("name"))) {
+        ConstraintSolver.setName(pt, names[i]);
+      }
+      restoredPts[i] = pt;
+    }
+    int m = tags.length;
+    List<Constraint> restoredCons = new ArrayList<Constraint>(m);
+    for (int i = 0; i < m; i++) {
+      Constraint c = constraints == null ? null : constraints[i];
+      if (c == null || !sameRefs(c, i, restoredPts)) {
+        Constraint rebuilt = build(i, restoredPts);
+        if (rebuilt != null) {
+          c = rebuilt;
+        } else if (c == null) {
+          bug("Can't restore constraint " + ids[i] + ": unknown type.");
+          continue;
+        } else {
+          bug("Can't rebuild constraint " + ids[i] + " (" + c.getType() + "). Keeping it as is.");
+        }
+      }
+      NumericValue nv = numericValueOf(c);
+      if (nv != null && !Double.isNaN(values[i]) && nv.getValue() != values[i]) {
+        nv.setValue(values[i]);
+      }
+      restoredCons.add(c);
+    }
+
+    if (!sameContents(vars.getPoints(), restoredPts, bankPoints)) {
+      vars.getPoints().clear();
+      for (int i = 0; i < bankPoints; i++) {
+        vars.getPoints().add(restoredPts[i]);
+      }
+    }
+    if (!sameContents(vars.getConstraints(), restoredCons.toArray(new Constraint[m]), m)) {
+      vars.getConstraints().clear();
+      vars.getConstraints().addAll(restoredCons);
+    }
+  }
+
+  private boolean sameRefs(Constraint c, int i, Pt[] restoredPts) {
+    Pt[] related = c.getRelatedPoints();
+    boolean ret = related.length == refStart[i + 1] - refStart[i];
+    for (int j = 0; ret && j < related.length; j++) {
+      ret = related[j] == restoredPts[refs[refStart[i] + j]];
+    }
+    return ret;
+  }
+
+  private static <T> boolean sameContents(List<T> list, T[] items, int count) {
+    boolean ret = list.size() == count;
+    for (int i = 0; ret && i < count; i++) {
+      ret = list.get(i) == items[i];
+    }
+    return ret;
+  }
+
+  /**
+   * Makes a new constraint of the snapshot's type for entry i, with the snapshot's id and value.
+   * Returns null if the type isn't known.
+   */
+  private Constraint build(int i, Pt[] restoredPts) {
+    int s = refStart[i];
+    int count = refStart[i + 1] - s;
+    Pt[] p = new Pt[count];
+    for (int j = 0; j < count; j++) {
+      p[j] = restoredPts[refs[s + j]];
+    }
+    Constraint ret = null;
+    switch (tags[i]) {
+      case ANGLE: // related points are a, b, fulcrum
+        ret = new AngleConstraint(p[0], p[2], p[1], new NumericValue(values[i]));
+        break;
+      case DISTANCE:
+        ret = new DistanceConstraint(p[0], p[1], new NumericValue(values[i]));
+        break;
+      case LOCATION:
+        ret = new LocationConstraint(p[0], p[1]);
+        break;
+      case ORIENTATION:
+        ret = new OrientationConstraint(p[0], p[1], p[2], p[3], new NumericValue(values[i]));
+        break;
+      case POINT_AS_LINE_PARAM:
+        ret = new PointAsLineParamConstraint(p[0], p[1], new NumericValue(values[i]), p[2]);
+        break;
+      case POINT_ON_LINE:
+        Set<Pt> members = new HashSet<Pt>();
+        for (Pt pt : p) {
+          members.add(pt);
+        }
+        ret = new PointOnLineConstraint(members);
+        break;
+    }
+    if (ret != null) {
+      ret.setID(ids[i]);
+    }
+    return ret;
+  }
+
+  /**
+   * What changed between an earlier snapshot and this one. Point and constraint indexes refer to
+   * this snapshot.
+   */
+  public static class Diff {
+    private final boolean structureChanged;
+    private final BitSet moved;
+    private final BitSet pinChanged;
+    private final BitSet valueChanged;
+
+    Diff(boolean structureChanged, BitSet moved, BitSet pinChanged, BitSet valueChanged) {
+      this.structureChanged = structureChanged;
+      this.moved = moved;
+      this.pinChanged = pinChanged;
+      this.valueChanged = valueChanged;
+    }
+
+    /**
+     * True if points or constraints were added, removed, reordered or rewired. When this is true
+     * the other fields are empty, since indexes can't be matched up.
+     */
+    public boolean isStructureChanged() {
+      return structureChanged;
+    }
+
+    public BitSet getMovedPoints() {
+      return moved;
+    }
+
+    public BitSet getPinChangedPoints() {
+      return pinChanged;
+    }
+
+    public BitSet getValueChangedConstraints() {
+      return valueChanged;
+    }
+
+    public boolean isEmpty() {
+      return !structureChanged && moved.isEmpty() && pinChanged.isEmpty()
+          && valueChanged.isEmpty();
+    }
+
+    public String toString() {
+      return structureChanged ? "structure changed" : "moved " + moved + ", pins " + pinChanged
+          + ", values " + valueChanged;
+    }
+  }
+
+  /**
+   * Compares this snapshot with an earlier one.
+   */
+  public Diff diff(BankSnapshot previous) {
+    boolean structureChanged = previous.bankPoints != bankPoints
+        || previous.names.length != names.length || previous.tags.length != tags.length
+        || previous.refs.length != refs.length;
+    for (int i = 0; !structureChanged && i < tags.length; i++) {
+      structureChanged = previous.tags[i] != tags[i] || previous.ids[i] != ids[i]
+          || previous.refStart[i] != refStart[i];
+    }
+    for (int i = 0; !structureChanged && i < refs.length; i++) {
+      structureChanged = previous.refs[i] != refs[i];
+    }
+    for (int i = 0; !structureChanged && i < names.length; i++) {
+      structureChanged = (pts != null && previous.pts != null) ? pts[i] != previous.pts[i]
+          : !equal(names[i], previous.names[i]);
+    }
+    BitSet moved = new BitSet();
+    BitSet pinChanged = new BitSet();
+    BitSet valueChanged = new BitSet();
+    if (!structureChanged) {
+      for (int i = 0; i < names.length; i++) {
+        if (xy[2 * i] != previous.xy[2 * i] || xy[2 * i + 1] != previous.xy[2 * i + 1]) {
+          moved.set(i);
+        }
+      }
+      pinChanged.or(pinned);
+      pinChanged.xor(previous.pinned);
+      for (int i = 0; i < tags.length; i++) {
+        if (Double.compare(values[i], previous.values[i]) != 0) {
+          valueChanged.set(i);
+        }
+      }
+    }
+    return new Diff(structureChanged, moved, pinChanged, valueChanged);
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * Writes the snapshot in a compact binary form. Object references are not written, so
+   * read() gives a snapshot that builds new points and constraints when restored.
+   */
+  public void write(DataOutputStream out) throws IOException {
+    int n = names.length;
+    int m = tags.length;
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(n);
+    out.writeInt(bankPoints);
+    out.writeInt(m);
+    out.writeInt(refs.length);
+    for (int i = 0; i < xy.length; i++) {
+      out.writeDouble(xy[i]);
+    }
+    for (int i = 0; i < n; i++) {
+      out.writeLong(times[i]);
+    }
+    byte[] pinBits = new byte[(n + 7) / 8];
+    for (int i = pinned.nextSetBit(0); i >= 0; i = pinned.nextSetBit(i + 1)) {
+      pinBits[i / 8] |= 1 << (i % 8);
+    }
+    out.write(pinBits);
+    for (int i = 0; i < n; i++) {
+      out.writeBoolean(names[i] != null);
+      if (names[i] != null) {
+        out.writeUTF(names[i]);
+      }
+    }
+    out.write(tags);
+    for (int i = 0; i < m; i++) {
+      out.writeInt(ids[i]);
+      out.writeInt(refStart[i + 1] - refStart[i]);
+      out.writeDouble(values[i]);
+    }
+    for (int i = 0; i < refs.length; i++) {
+      out.writeInt(refs[i]);
+    }
+    out.flush();
+  }
+
+  public static BankSnapshot read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a solver snapshot.");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unknown snapshot version " + version);
+    }
+    int n = in.readInt();
+    int bankPoints = in.readInt();
+    int m = in.readInt();
+    int numRefs = in.readInt();
+    double[] xy = new double[2 * n];
+    for (int i = 0; i < xy.length; i++) {
+      xy[i] = in.readDouble();
+    }
+    long[] times = new long[n];
+    for (int i = 0; i < n; i++) {
+      times[i] = in.readLong();
+    }
+    byte[] pinBits = new byte[(n + 7) / 8];
+    in.readFully(pinBits);
+    BitSet pinned = new BitSet(n);
+    for (int i = 0; i < n; i++) {
+      if ((pinBits[i / 8] & (1 << (i % 8))) != 0) {
+        pinned.set(i);
+      }
+    }
+    String[] names = new String[n];
+    for (int i = 0; i < n; i++) {
+      if (in.readBoolean()) {
+        names[i] = in.readUTF();
+      }
+    }
+    byte[] tags = new byte[m];
+    in.readFully(tags);
+    int[] ids = new int[m];
+    int[] refStart = new int[m + 1];
+    double[] values = new double[m];
+    for (int i = 0; i < m; i++) {
+      ids[i] = in.readInt();
+      refStart[i + 1] = refStart[i] + in.readInt();
+      values[i] = in.readDouble();
+    }
+    if (refStart[m] != numRefs) {
+      throw new IOException("Corrupt snapshot: expected " + numRefs + " point references, found "
+          + refStart[m]);
+    }
+    int[] refs = new int[numRefs];
+    for (int i = 0; i < numRefs; i++) {
+      refs[i] = in.readInt();
+      if (refs[i] < 0 || refs[i] >= n) {
+        throw new IOException("Corrupt snapshot: point reference " + refs[i] + " out of range");
+      }
+    }
+    return new BankSnapshot(bankPoints, xy, times, pinned, names, tags, ids, refStart, refs,
+        values, null, null);
+  }
+
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 24 * names.length + 24
+        * tags.length + 4 * refs.length);
+    try {
+      write(new DataOutputStream(bytes));
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex); // can't happen writing to memory
+    }
+    return bytes.toByteArray();
+  }
+
+  public static BankSnapshot fromBytes(byte[] data) throws IOException {
+    return read(new DataInputStream(new ByteArrayInputStream(data)));
+  }
+}
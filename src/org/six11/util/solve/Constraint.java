@@ -1,7 +1,7 @@
 package org.six11.util.solve;
 
 import java.util.Collection;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -16,7 +16,7 @@ import static org.six11.util.Debug.num;
 
 public abstract class Constraint {
 
-  private static int ID_COUNTER = 0;
+  private static final AtomicInteger ID_COUNTER = new AtomicInteger();
   static Entropy entropy;
   static {
     entropy = Entropy.getEntropy();
@@ -26,11 +26,12 @@ public abstract class Constraint {
   StringBuffer messages;
   protected String secretName;
   protected double lastKnownError;
-  protected final int id;
+  protected int id;
+  private SolverWorkspace workspace;
 
   public Constraint() {
     this.messages = new StringBuffer();
-    id = ID_COUNTER++;
+    id = ID_COUNTER.getAndIncrement();
   }
 
   /**
@@ -105,6 +106,71 @@ public abstract class Constraint {
 
   public abstract double measureError();
 
+  /**
+   * The number of scalar residuals this constraint contributes to the Levenberg-Marquardt solver.
+   * The default is one: measureError() itself.
+   */
+  public int getResidualCount() {
+    return 1;
+  }
+
+  /**
+   * Writes this constraint's residuals into r[rOff..rOff + getResidualCount()) and their partial
+   * derivatives into jac. The derivative of residual i with respect to the x and y coordinates of
+   * related[j] goes in jac[jOff + (i * related.length + j) * 2] and the following slot. 'related' is
+   * the array returned by getRelatedPoints(); the solver passes it back in so both sides agree on
+   * the order. The solver drives every residual toward zero in the least-squares sense.
+   * 
+   * This default uses measureError() as the single residual and estimates its derivatives with
+   * finite differences. Subclasses should override it with analytic derivatives.
+   */
+  public void evaluate(Pt[] related, double[] r, int rOff, double[] jac, int jOff) {
+    double h = 1e-6;
+    double e = measureError();
+    r[rOff] = e;
+    for (int j = 0; j < related.length; j++) {
+      Pt pt = related[j];
+      double x = pt.getX();
+      double y = pt.getY();
+      pt.setLocation(x + h, y);
+      jac[jOff + j * 2] = (measureError() - e) / h;
+      pt.setLocation(x, y + h);
+      jac[jOff + j * 2 + 1] = (measureError() - e) / h;
+      pt.setLocation(x, y);
+    }
+  }
+
+  /**
+   * Sets the derivative of the given residual with respect to related point j. See evaluate().
+   */
+  protected static void setPartial(double[] jac, int jOff, int numRelated, int residual, int j,
+      double dx, double dy) {
+    int k = jOff + (residual * numRelated + j) * 2;
+    jac[k] = dx;
+    jac[k + 1] = dy;
+  }
+
+  /**
+   * Writes the partial derivatives of the signed angle from vector u to vector v (as computed by
+   * Functions.getSignedAngleBetween) with respect to u and v into out[0..4): du.x, du.y, dv.x, dv.y.
+   */
+  protected static void angleGradient(double ux, double uy, double vx, double vy, double[] out) {
+    double uu = ux * ux + uy * uy;
+    double vv = vx * vx + vy * vy;
+    if (uu > 0) {
+      out[0] = uy / uu;
+      out[1] = -ux / uu;
+    } else {
+      out[0] = out[1] = 0;
+    }
+    if (vv > 0) {
+      out[2] = -vy / vv;
+      out[3] = vx / vv;
+    } else {
+      out[2] = out[3] = 0;
+    }
+  }
+
   public void resetLastError() {
     this.lastKnownError = Double.MAX_VALUE;
   }
@@ -136,27 +202,47 @@ public abstract class Constraint {
     pt.setBoolean("pinned", val);
   }
 
+  /**
+   * Tells this constraint where accumulateCorrection() should put its corrections. The solver
+   * sets this before each step.
+   */
+  void setWorkspace(SolverWorkspace workspace) {
+    this.workspace = workspace;
+  }
+
   public Vec accumulate(Pt pt, Vec correction, double heat) {
+    accumulate(pt, correction.getX(), correction.getY());
+    return correction;
+  }
+
+  /**
+   * Asks the solver to move the given point by (dx, dy) this step. The solver sums everybody's
+   * requests for each point before moving anything.
+   */
+  protected void accumulate(Pt pt, double dx, double dy) {
     if (isPinned(pt)) {
       bug("Warning: you are adding a correction vector to point " + pt.getString("name")
           + ", but it is pinned. Constraint type: " + getType());
     }
-    boolean add = true;
-//    if (detectOscillation()) {
-//      if (entropy.getBoolean()) {
-//        Vec correction2 = new Vec(correction.getX() * entropy.getDouble(2 * heat),
-//            correction.getY() * entropy.getDouble(2 * heat));
-//        correction = correction2;
-//      } else {
-//        add = false;
-//      }
-//    }
-    if (add) {
-      @SuppressWarnings("unchecked")
-      List<Vec> corrections = (List<Vec>) pt.getAttribute(ConstraintSolver.ACCUM_CORRECTION);
-      corrections.add(correction);
+    if (workspace != null) {
+      workspace.add(pt, dx, dy);
     }
-    return correction;
+  }
+
+  /**
+   * Asks the solver to rotate the given point about (pivotX, pivotY) by the given angle. This is
+   * the same rotation as Functions.rotatePointAboutPivot(), without making any objects. Returns how
+   * far the point would move.
+   */
+  protected double accumulateRotation(Pt pt, double pivotX, double pivotY, double radians) {
+    double cos = Math.cos(radians);
+    double sin = Math.sin(radians);
+    double rx = pt.x - pivotX;
+    double ry = pt.y - pivotY;
+    double dx = pivotX + rx * cos - ry * sin - pt.x;
+    double dy = pivotY + rx * sin + ry * cos - pt.y;
+    accumulate(pt, dx, dy);
+    return Math.sqrt(dx * dx + dy * dy);
   }
 
   public abstract void draw(DrawingBuffer buf);
@@ -198,6 +284,13 @@ public abstract class Constraint {
     return id;
   }
 
+  /**
+   * Used by BankSnapshot so a rebuilt constraint keeps the id of the one it replaces.
+   */
+  void setID(int id) {
+    this.id = id;
+  }
+
   public String toString() {
     return getClass() + "." + id;
   }
@@ -0,0 +1,224 @@
+package org.six11.util.solve;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Splits a constraint problem into independent clusters. Two constraints are in the same cluster
+ * if they share a point that is free to move (directly or through a chain of other constraints).
+ * Pinned points don't connect anything, since nothing one constraint does to them can affect
+ * another. Clusters can be solved separately, and in parallel.
+ *
+ * One caveat: constraints whose NumericValues are computed from other points (see
+ * MultisourceNumericValue) are coupled in a way this can't see, and may end up in different
+ * clusters.
+ */
+public class ConstraintGraph {
+
+  private static ForkJoinPool pool;
+
+  /**
+   * A set of points and the constraints that involve them, which can be solved without looking at
+   * anything else.
+   */
+  public static class Cluster {
+    private final List<Pt> points;
+    private final List<Constraint> constraints;
+    private LevenbergMarquardt lm;
+
+    Cluster() {
+      points = new ArrayList<Pt>();
+      constraints = new ArrayList<Constraint>();
+    }
+
+    public List<Pt> getPoints() {
+      return Collections.unmodifiableList(points);
+    }
+
+    public List<Constraint> getConstraints() {
+      return Collections.unmodifiableList(constraints);
+    }
+
+    /**
+     * The sum of the absolute errors of this cluster's constraints.
+     */
+    public double measureError() {
+      double sum = 0;
+      for (Constraint c : constraints) {
+        sum += Math.abs(c.measureError());
+      }
+      return sum;
+    }
+
+    /**
+     * The Levenberg-Marquardt solver for this cluster, made on first use.
+     */
+    public LevenbergMarquardt getSolver() {
+      if (lm == null) {
+        lm = new LevenbergMarquardt(points, constraints);
+      }
+      return lm;
+    }
+  }
+
+  /**
+   * Groups the constraints into clusters. Constraints that can't move any point (all of theirs are
+   * pinned or unknown) aren't in any cluster. Points that no constraint can move aren't either.
+   */
+  public static List<Cluster> findClusters(List<Pt> points, List<Constraint> constraints) {
+    Map<Pt, Integer> index = new IdentityHashMap<Pt, Integer>();
+    for (Pt pt : points) {
+      if (!Constraint.isPinned(pt) && !index.containsKey(pt)) {
+        index.put(pt, index.size());
+      }
+    }
+    int[] parent = new int[index.size()];
+    for (int i = 0; i < parent.length; i++) {
+      parent[i] = i;
+    }
+    Pt[][] related = new Pt[constraints.size()][];
+    int[] firstFree = new int[constraints.size()];
+    for (int c = 0; c < related.length; c++) {
+      related[c] = constraints.get(c).getRelatedPoints();
+      firstFree[c] = -1;
+      for (Pt pt : related[c]) {
+        Integer i = index.get(pt);
+        if (i != null) {
+          if (firstFree[c] < 0) {
+            firstFree[c] = i;
+          } else {
+            union(parent, firstFree[c], i);
+          }
+        }
+      }
+    }
+    Map<Integer, Cluster> byRoot = new LinkedHashMap<Integer, Cluster>();
+    for (int c = 0; c < related.length; c++) {
+      if (firstFree[c] >= 0) {
+        int root = find(parent, firstFree[c]);
+        Cluster cluster = byRoot.get(root);
+        if (cluster == null) {
+          cluster = new Cluster();
+          byRoot.put(root, cluster);
+        }
+        cluster.constraints.add(constraints.get(c));
+      }
+    }
+    boolean[] placed = new boolean[parent.length];
+    for (Pt pt : points) {
+      Integer i = index.get(pt);
+      if (i != null && !placed[i]) {
+        placed[i] = true;
+        Cluster cluster = byRoot.get(find(parent, i));
+        if (cluster != null) {
+          cluster.points.add(pt);
+        }
+      }
+    }
+    return new ArrayList<Cluster>(byRoot.values());
+  }
+
+  /**
+   * Finds the points within the given number of hops of the seeds, where one hop goes from a point
+   * through a constraint to the constraint's other points. Pinned points and points in 'held'
+   * are never returned and never lead anywhere. The seeds themselves are returned unless they are
+   * pinned or held, in which case the search starts from their neighbors. Only points in the
+   * variable bank are considered, and its index supplies each point's constraints.
+   */
+  public static List<Pt> findNeighborhood(VariableBank vars, Collection<Pt> seeds, Set<Pt> held,
+      int hops) {
+    Set<Pt> seen = Collections.newSetFromMap(new IdentityHashMap<Pt, Boolean>());
+    List<Pt> ret = new ArrayList<Pt>();
+    List<Pt> frontier = new ArrayList<Pt>();
+    for (Pt pt : seeds) {
+      if (seen.add(pt)) {
+        frontier.add(pt);
+        if (!Constraint.isPinned(pt) && !held.contains(pt)) {
+          ret.add(pt);
+        }
+      }
+    }
+    for (int h = 0; h < hops && !frontier.isEmpty(); h++) {
+      List<Pt> next = new ArrayList<Pt>();
+      for (Pt pt : frontier) {
+        for (Constraint c : vars.getConstraintsInvolving(pt)) {
+          for (Pt other : c.getRelatedPoints()) {
+            if (vars.hasPoint(other) && !Constraint.isPinned(other)
+                && !held.contains(other) && seen.add(other)) {
+              ret.add(other);
+              next.add(other);
+            }
+          }
+        }
+      }
+      frontier = next;
+    }
+    return ret;
+  }
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  private static void union(int[] parent, int a, int b) {
+    int ra = find(parent, a);
+    int rb = find(parent, b);
+    if (ra != rb) {
+      parent[ra] = rb;
+    }
+  }
+
+  /**
+   * Runs one Levenberg-Marquardt iteration on each of the given clusters, spread across a shared
+   * fork/join pool. Returns when they are all done.
+   */
+  public static void iterate(List<Cluster> clusters) {
+    if (clusters.size() == 1) {
+      clusters.get(0).getSolver().iterate();
+    } else if (clusters.size() > 1) {
+      getPool().invoke(new IterateTask(clusters, 0, clusters.size()));
+    }
+  }
+
+  private static synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool();
+    }
+    return pool;
+  }
+
+  @SuppressWarnings("serial")
+  private static class IterateTask extends RecursiveAction {
+    final List<Cluster> clusters;
+    final int lo, hi;
+
+    IterateTask(List<Cluster> clusters, int lo, int hi) {
+      this.clusters = clusters;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    protected void compute() {
+      if (hi - lo == 1) {
+        clusters.get(lo).getSolver().iterate();
+      } else {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new IterateTask(clusters, lo, mid), new IterateTask(clusters, mid, hi));
+      }
+    }
+  }
+}
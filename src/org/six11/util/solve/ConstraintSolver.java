@@ -6,7 +6,11 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -36,10 +40,17 @@ public class ConstraintSolver {
     Solved, Unsatisfied, Working;
   }
 
-  public static final String ACCUM_CORRECTION = "accumulated correction";
+  /**
+   * How run() relaxes the system. Annealing is the original randomized approach. LevenbergMarquardt
+   * uses damped Gauss-Newton steps (see LevenbergMarquardt), and falls back to annealing if it gets
+   * stuck before the error is acceptable.
+   */
+  public static enum Mode {
+    Annealing, LevenbergMarquardt;
+  }
+
   public static final String LAST_SOLVER_ADJUSTMENT_VEC = "last solver adjustment";
   private static final double MIN_ACCPETABLE_ERROR = 0.0001;
-  private static final String LAST_SOLVER_DESIRED_ADJUSTMENT_VEC = "last desired solver adjustment";
 
   /**
    * When the heat value is above this threshold, each step() will move ALL points. Below this
@@ -62,6 +73,12 @@ public class ConstraintSolver {
   private File debuggingFile;
   private FileWriter debuggingFileWriter;
   private Entropy entropy;
+  private Mode mode = Mode.Annealing;
+  private List<ConstraintGraph.Cluster> clusters; // null when the problem structure has changed
+  private boolean lmGaveUp; // true if LM stalled and this solve is falling back to annealing
+  private SolverWorkspace workspace; // annealing accumulators, null when the point set has changed
+  private boolean publishHints = true;
+  private boolean quiet; // true inside solve(): no listeners or chatter
 
   public static void main(String[] in) throws Exception {
     new ConstraintSolver(in);
@@ -101,6 +118,46 @@ public class ConstraintSolver {
     return fps;
   }
 
+  public void setMode(Mode mode) {
+    this.mode = mode;
+    structureChanged();
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Gives this solver its own random number source with the given seed, so it no longer shares
+   * the global Entropy. Two solvers with the same seed and problem take the same steps.
+   */
+  public void setSeed(long seed) {
+    this.entropy = Entropy.getSeededEntropy(seed);
+  }
+
+  /**
+   * Whether each step writes the "stable" flag and LAST_SOLVER_ADJUSTMENT_VEC onto the points.
+   * These are only for the UI and file debugging, so headless callers can turn them off. The
+   * default is true.
+   */
+  public void setPublishHints(boolean v) {
+    this.publishHints = v;
+  }
+
+  public boolean isPublishHints() {
+    return publishHints;
+  }
+
+  /**
+   * Forget the cached clusters, their Levenberg-Marquardt problems and the annealing workspace so
+   * the next step rebuilds them.
+   */
+  private void structureChanged() {
+    clusters = null;
+    workspace = null;
+    lmGaveUp = false;
+  }
+
   public void setDebugOut(boolean v) {
     this.debugOutput = v;
   }
@@ -124,6 +181,9 @@ public class ConstraintSolver {
   }
 
   protected void fire() {
+    if (quiet) {
+      return;
+    }
     for (Listener lis : stepListeners) {
       lis.constraintStepDone(currentState, numIterations, residual, vars.getPoints().size(), vars
           .getConstraints().size());
@@ -156,26 +216,23 @@ public class ConstraintSolver {
     } else {
       naptime = 0;
     }
-    double prevError = Double.MAX_VALUE;
-    double heat = 1.0;
-    double heatStep = -0.001;
     numIterations = 0;
-    Statistics errorStats = new Statistics();
-    int sampleStatsN = 10;
-    errorStats.setMaximumN(sampleStatsN);
-    double prevRunningErrorMean = 0;
+    Schedule schedule = new Schedule();
     while (true) {
       synchronized (monitor) {
         try {
           if (paused || finished) {
-            prevError = Double.MAX_VALUE;
-            heat = 1.0;
+            schedule.restart();
             residual = Double.MAX_VALUE;
             monitor.wait();
             numIterations = 0;
+            structureChanged();
+          }
+          try {
+            schedule.iterate();
+          } catch (RuntimeException ex) {
+            bug("Solver step failed: " + ex);
           }
-          double e = step(prevError, heat);
-          numIterations = numIterations + 1;
           if (debugOutput && debugOutWriter != null) {
             try {
               debugOutWriter.flush();
@@ -183,24 +240,7 @@ public class ConstraintSolver {
               ex.printStackTrace();
             }
           }
-          errorStats.addData(e);
-          if (errorStats.getN() == sampleStatsN && (numIterations % sampleStatsN == 0)) {
-            double thisRunningErrorMean = errorStats.getMean();
-            if (prevRunningErrorMean > 0) {
-              double improvementRatio = (thisRunningErrorMean / prevRunningErrorMean);
-              if (improvementRatio > 0.95) { // if we not improving,
-                heat = heat + heatStep; // cool down a little bit.
-              }
-            }
-            prevRunningErrorMean = thisRunningErrorMean;
-          }
-          prevError = e;
-          //          heat = heat + heatStep;
-          if (heat < HEAT_SINGLE_TARGET_THRESHOLD && heat - heatStep > HEAT_SINGLE_TARGET_THRESHOLD) {
-            bug("Cold :(");
-          }
-          heat = max(0.1, heat);
-          printDebug(heat);
+          printDebug(schedule.heat);
           if (!finished) {
             currentState = State.Working;
           }
@@ -224,6 +264,204 @@ public class ConstraintSolver {
     }
   }
 
+  /**
+   * Solves the current problem on the calling thread and returns when it is solved or out of
+   * budget. Nothing sleeps or waits, and listeners are not told about each step. This holds the
+   * monitor like solveNear() does, so a background runInBackground() loop pauses until it is done.
+   * Exceptions thrown by constraints are passed on rather than swallowed. Call setSeed() first to
+   * get the same answer every time.
+   * 
+   * @param maxIterations
+   *          stop after this many steps. Zero or less means no limit.
+   * @param maxMillis
+   *          stop after roughly this much wall-clock time. Zero or less means no limit.
+   * @param tolerance
+   *          the problem is solved when the summed absolute constraint error is no more than this.
+   */
+  public SolveResult solve(int maxIterations, long maxMillis, double tolerance) {
+    long start = System.currentTimeMillis();
+    synchronized (monitor) {
+      boolean wasQuiet = quiet;
+      quiet = true;
+      try {
+        structureChanged();
+        finished = false;
+        numIterations = 0;
+        Schedule schedule = new Schedule();
+        double err = calcTotalConstraintError();
+        while (err > tolerance && !finished) {
+          if (maxIterations > 0 && numIterations >= maxIterations) {
+            break;
+          }
+          if (maxMillis > 0 && System.currentTimeMillis() - start >= maxMillis) {
+            break;
+          }
+          schedule.iterate();
+          err = calcTotalConstraintError();
+        }
+        currentState = err <= tolerance ? State.Solved : State.Unsatisfied;
+        finished = true;
+        List<Constraint> constraints = vars.getConstraints();
+        double[] errors = new double[constraints.size()];
+        for (int i = 0; i < errors.length; i++) {
+          errors[i] = constraints.get(i).measureError();
+        }
+        return new SolveResult(currentState, err, numIterations,
+            System.currentTimeMillis() - start, constraints, errors);
+      } finally {
+        quiet = wasQuiet;
+      }
+    }
+  }
+
+  /**
+   * Re-solves only the neighborhood of some points the user just moved, starting from the current
+   * (presumably converged) positions. This is meant to be called for every frame of a drag. The
+   * moved points stay where they are. Points within 'hops' constraint hops of them are free to
+   * move, and every constraint touching a free point is considered. Everything further away is
+   * left alone. If the neighborhood can't be satisfied by itself, it grows one hop at a time while
+   * there is time left.
+   * 
+   * The neighborhood is solved with Levenberg-Marquardt regardless of the mode, since it converges
+   * in a few iterations from a warm start. Constraints outside the neighborhood are not in the
+   * result. Once the drag is over, wakeUp() or solve() will clean up anything left. The
+   * neighborhood comes from the variable bank's point index, so the work per call depends on its
+   * size and not on the size of the whole drawing.
+   * 
+   * @param budgetNanos
+   *          stop after roughly this much time, e.g. 4000000 for 4 ms. Zero or less means no
+   *          limit.
+   * @param tolerance
+   *          stop when the summed absolute error of the considered constraints is no more than this.
+   */
+  public SolveResult solveNear(Collection<Pt> moved, int hops, long budgetNanos, double tolerance) {
+    Set<Pt> held = Collections.newSetFromMap(new IdentityHashMap<Pt, Boolean>());
+    held.addAll(moved);
+    return solveNear(moved, held, hops, budgetNanos, tolerance);
+  }
+
+  /**
+   * Like solveNear(Collection, ...), for when a constraint's value was just edited (say, through a
+   * Manipulator). The search starts from the constraint's points, and none of them are held.
+   */
+  public SolveResult solveNear(Constraint changed, int hops, long budgetNanos, double tolerance) {
+    Set<Pt> held = Collections.emptySet();
+    return solveNear(Arrays.asList(changed.getRelatedPoints()), held, hops, budgetNanos,
+        tolerance);
+  }
+
+  private SolveResult solveNear(Collection<Pt> seeds, Set<Pt> held, int hops, long budgetNanos,
+      double tolerance) {
+    long start = System.nanoTime();
+    synchronized (monitor) {
+      int iterations = 0;
+      List<Constraint> local = new ArrayList<Constraint>();
+      double err = 0;
+      int prevFree = -1;
+      while (true) {
+        List<Pt> free = ConstraintGraph.findNeighborhood(vars, seeds, held, hops);
+        local.clear();
+        Set<Constraint> seen = Collections
+            .newSetFromMap(new IdentityHashMap<Constraint, Boolean>());
+        for (Pt pt : free) {
+          for (Constraint c : vars.getConstraintsInvolving(pt)) {
+            if (seen.add(c)) {
+              local.add(c);
+            }
+          }
+        }
+        err = sumError(local);
+        if (err <= tolerance || free.size() == prevFree) {
+          break; // done, or the neighborhood can't grow any more
+        }
+        prevFree = free.size();
+        LevenbergMarquardt lm = new LevenbergMarquardt(free, local);
+        while (err > tolerance && !lm.isStalled() && !outOfTime(start, budgetNanos)) {
+          lm.iterate();
+          iterations++;
+          err = sumError(local);
+        }
+        if (err <= tolerance || outOfTime(start, budgetNanos)) {
+          break;
+        }
+        hops++;
+      }
+      State state = err <= tolerance ? State.Solved : State.Unsatisfied;
+      double[] errors = new double[local.size()];
+      for (int i = 0; i < errors.length; i++) {
+        errors[i] = local.get(i).measureError();
+      }
+      return new SolveResult(state, err, iterations, (System.nanoTime() - start) / 1000000, local,
+          errors);
+    }
+  }
+
+  private static boolean outOfTime(long start, long budgetNanos) {
+    return budgetNanos > 0 && System.nanoTime() - start >= budgetNanos;
+  }
+
+  private static double sumError(List<Constraint> constraints) {
+    double sum = 0;
+    for (Constraint c : constraints) {
+      sum += Math.abs(c.measureError());
+    }
+    return sum;
+  }
+
+  /**
+   * The cooling schedule shared by run() and solve(). The heat starts at 1 and drops a little each
+   * time the running mean of the step error stops improving.
+   */
+  private class Schedule {
+    private static final int SAMPLE_STATS_N = 10;
+    private static final double HEAT_STEP = -0.001;
+
+    double prevError = Double.MAX_VALUE;
+    double heat = 1.0;
+    Statistics errorStats = new Statistics();
+    double prevRunningErrorMean = 0;
+
+    Schedule() {
+      errorStats.setMaximumN(SAMPLE_STATS_N);
+    }
+
+    void restart() {
+      prevError = Double.MAX_VALUE;
+      heat = 1.0;
+    }
+
+    /**
+     * Takes one step with whichever method the mode calls for, then cools if needed.
+     */
+    double iterate() {
+      double e;
+      if (mode == Mode.LevenbergMarquardt && !lmGaveUp) {
+        e = lmStep();
+      } else {
+        e = step(prevError, heat);
+      }
+      numIterations = numIterations + 1;
+      errorStats.addData(e);
+      if (errorStats.getN() == SAMPLE_STATS_N && (numIterations % SAMPLE_STATS_N == 0)) {
+        double thisRunningErrorMean = errorStats.getMean();
+        if (prevRunningErrorMean > 0) {
+          double improvementRatio = (thisRunningErrorMean / prevRunningErrorMean);
+          if (improvementRatio > 0.95) { // if we not improving,
+            heat = heat + HEAT_STEP; // cool down a little bit.
+          }
+        }
+        prevRunningErrorMean = thisRunningErrorMean;
+      }
+      prevError = e;
+      if (!quiet && heat < HEAT_SINGLE_TARGET_THRESHOLD
+          && heat - HEAT_STEP > HEAT_SINGLE_TARGET_THRESHOLD) {
+        bug("Cold :(");
+      }
+      heat = max(0.1, heat);
+      return e;
+    }
+  }
+
   private void printDebug(double heat) {
     if (shouldPrintToFile && debuggingFileWriter != null) {
       //      if (false) {
@@ -299,102 +537,94 @@ public class ConstraintSolver {
   }
 
   private double calcTotalConstraintError() {
-    double sum = 0;
-    for (Constraint c : vars.getConstraints()) {
-      sum += Math.abs(c.measureError());
-    }
-    return sum;
+    return sumError(vars.getConstraints());
   }
 
-  @SuppressWarnings("unchecked")
   private double step(double prevError, double heat) {
     if (debugOutput) {
       buf.setLength(0);
     }
     double totalError = 0;
-    try {
-      // 1: clear any current correction values
-      for (Pt pt : vars.getPoints()) {
-        List<Vec> corrections = (List<Vec>) pt.getAttribute(ACCUM_CORRECTION);
-        if (corrections == null) {
-          pt.setAttribute(ACCUM_CORRECTION, new ArrayList<Vec>());
-          corrections = (List<Vec>) pt.getAttribute(ACCUM_CORRECTION);
-        }
-        corrections.clear();
-      }
+    // 1: clear any current correction values
+    if (workspace == null) {
+      workspace = new SolverWorkspace(vars.getPoints());
+    }
+    SolverWorkspace ws = workspace;
+    ws.clear();
 
-      // 2: poll all constraints and have them add correction vectors to each point
-      Constraint worst = null;
-      double worstError = 0;
-      for (Constraint c : vars.getConstraints()) {
-        c.clearMessages();
-        if (heat > HEAT_SINGLE_TARGET_THRESHOLD) {
-          c.accumulateCorrection(heat);
-        } else {
+    // 2: poll all constraints and have them add correction vectors to each point
+    Constraint worst = null;
+    double worstError = 0;
+    for (Constraint c : vars.getConstraints()) {
+      c.clearMessages();
+      c.setWorkspace(ws);
+      if (heat > HEAT_SINGLE_TARGET_THRESHOLD) {
+        c.accumulateCorrection(heat);
+      } else {
+        if (debugOutput) {
           bug("moving just one");
-          double e = c.measureError();
-          if (Math.abs(e) > Math.abs(worstError)) {
-            worst = c;
-            worstError = e;
-          }
         }
-        c.pushLastError();
-      }
-      for (Constraint c : vars.getConstraints()) {
-        if (debugOutput) {
-          if (c == worst) {
-            buf.append("[" + String.format(f + "] ", c.measureError()));
-          } else {
-            buf.append(String.format(f + " ", c.measureError()));
-          }
+        double e = c.measureError();
+        if (Math.abs(e) > Math.abs(worstError)) {
+          worst = c;
+          worstError = e;
         }
       }
-      if (worst != null) {
-        //        bug("Worst offender: " + worst);
-        worst.accumulateCorrection(heat);
-      }
-
-      // 3: now all points have some accumulated correction. sum them and update the point's location.
-      int numFinished = 0;
-      double biggestMove = 0;
-      for (Pt pt : vars.getPoints()) {
-        List<Vec> corrections = (List<Vec>) pt.getAttribute(ACCUM_CORRECTION);
-        pt.setBoolean("stable", corrections.size() == 0); // used by the UI
-        if (corrections.size() == 0) {
-          numFinished = numFinished + 1;
+      c.pushLastError();
+    }
+    for (Constraint c : vars.getConstraints()) {
+      if (debugOutput) {
+        if (c == worst) {
+          buf.append("[" + String.format(f + "] ", c.measureError()));
+        } else {
+          buf.append(String.format(f + " ", c.measureError()));
         }
-        Vec delta = Vec.sum(corrections.toArray(new Vec[0]));
-        double mag = delta.mag();
-        biggestMove = max(biggestMove, mag);
-        totalError = totalError + mag;
-        pt.setAttribute(LAST_SOLVER_DESIRED_ADJUSTMENT_VEC, delta);
       }
-      double biggestActualMove = 0;
-      for (Pt pt : vars.getPoints()) {
-        // respects the shape of root function:
-        Vec desired = (Vec) pt.getAttribute(LAST_SOLVER_DESIRED_ADJUSTMENT_VEC);
-        Vec delta = desired;
-        if (biggestMove > 1) {
-          double targetMag = desired.mag() / biggestMove;
-          delta = desired.getVectorOfMagnitude(targetMag);
-        }
-        double mag = delta.mag();
-        if (mag > 0.0) {
-          delta = delta.getScaled(entropy.getDouble(heat)); // shorten delta by a random amount in range [0..heat]
-          pt.move(delta);
-          biggestActualMove = max(biggestActualMove, delta.mag());
-          pt.setAttribute(LAST_SOLVER_ADJUSTMENT_VEC, delta);
-        }
+    }
+    if (worst != null) {
+      //        bug("Worst offender: " + worst);
+      worst.accumulateCorrection(heat);
+    }
+
+    // 3: now all points have some accumulated correction. sum them and update the point's location.
+    int numFinished = 0;
+    double biggestMove = 0;
+    int n = ws.size();
+    for (int i = 0; i < n; i++) {
+      if (ws.count[i] == 0) {
+        numFinished = numFinished + 1;
       }
-      residual = totalError;
-      if (totalError < MIN_ACCPETABLE_ERROR || numFinished == vars.getPoints().size()) {
-        finished = true;
-        currentState = State.Solved;
+      double mag = Math.hypot(ws.dx[i], ws.dy[i]);
+      biggestMove = max(biggestMove, mag);
+      totalError = totalError + mag;
+    }
+    // respects the shape of root function: if anything wants to move more than one unit, scale
+    // everything down so the biggest move is exactly one.
+    double scale = biggestMove > 1 ? 1 / biggestMove : 1;
+    for (int i = 0; i < n; i++) {
+      double dx = ws.dx[i] * scale;
+      double dy = ws.dy[i] * scale;
+      ws.moveX[i] = 0;
+      ws.moveY[i] = 0;
+      if ((dx != 0 || dy != 0) && !ws.isPinned(i)) {
+        double shorten = entropy.getDouble(heat); // shorten delta by a random amount in range [0..heat]
+        dx = dx * shorten;
+        dy = dy * shorten;
+        Pt pt = ws.getPoint(i);
+        pt.setLocation(pt.x + dx, pt.y + dy);
+        ws.moveX[i] = dx;
+        ws.moveY[i] = dy;
       }
-      fire();
-    } catch (Exception ex) {
-      // and they say I have a software engineering background.
     }
+    if (publishHints) {
+      ws.publishHints();
+    }
+    residual = totalError;
+    if (totalError < MIN_ACCPETABLE_ERROR || numFinished == n) {
+      finished = true;
+      currentState = State.Solved;
+    }
+    fire();
     if (debugOutput) {
       buf.insert(0, String.format(f + " ", totalError));
       buf.insert(0, (prevError < totalError ? "*WORSE* " : "better! "));
@@ -416,10 +646,60 @@ public class ConstraintSolver {
     return totalError;
   }
 
+  /**
+   * One Levenberg-Marquardt iteration on each independent cluster of constraints that isn't
+   * already satisfied. The clusters are solved in parallel. Returns the total constraint error
+   * afterwards.
+   */
+  private double lmStep() {
+    List<ConstraintGraph.Cluster> active = new ArrayList<ConstraintGraph.Cluster>();
+    try {
+      if (clusters == null) {
+        clusters = ConstraintGraph.findClusters(vars.getPoints(), vars.getConstraints());
+      }
+      double clusterTolerance = MIN_ACCPETABLE_ERROR / max(1, clusters.size());
+      for (ConstraintGraph.Cluster cluster : clusters) {
+        if (cluster.measureError() > clusterTolerance) {
+          active.add(cluster);
+        }
+      }
+      ConstraintGraph.iterate(active);
+    } catch (RuntimeException ex) {
+      if (!quiet) {
+        bug("Levenberg-Marquardt failed (" + ex + "). Falling back to annealing.");
+      }
+      lmGaveUp = true;
+      return calcTotalConstraintError();
+    }
+    boolean stalled = !active.isEmpty();
+    for (ConstraintGraph.Cluster cluster : active) {
+      LevenbergMarquardt lm = cluster.getSolver();
+      stalled = stalled && lm.isStalled();
+      Pt[] moved = lm.getFreePoints();
+      for (int k = 0; publishHints && k < moved.length; k++) {
+        Vec delta = new Vec(lm.getLastMoveX(k), lm.getLastMoveY(k));
+        moved[k].setAttribute(LAST_SOLVER_ADJUSTMENT_VEC, delta);
+        moved[k].setBoolean("stable", delta.mag() < MIN_ACCPETABLE_ERROR); // used by the UI
+      }
+    }
+    residual = calcTotalConstraintError();
+    if (residual < MIN_ACCPETABLE_ERROR) {
+      finished = true;
+      currentState = State.Solved;
+    } else if (stalled || active.isEmpty()) {
+      if (!quiet) {
+        bug("Levenberg-Marquardt stalled with error " + residual + ". Falling back to annealing.");
+      }
+      lmGaveUp = true;
+    }
+    fire();
+    return residual;
+  }
+
   public boolean hasPoints(Pt... pts) {
     boolean ret = true;
     for (Pt pt : pts) {
-      if (!vars.getPoints().contains(pt)) {
+      if (!vars.hasPoint(pt)) {
         ret = false;
         break;
       }
@@ -447,6 +727,7 @@ public class ConstraintSolver {
       }
       //      Debug.stacktrace("made point " + pt.getString("name"), 8);
       vars.getPoints().add(pt);
+      structureChanged();
     }
     if (ui != null) {
       ui.modelChanged();
@@ -464,6 +745,7 @@ public class ConstraintSolver {
   public void addConstraint(Constraint c) {
     if (!vars.getConstraints().contains(c)) {
       vars.getConstraints().add(c);
+      structureChanged();
       if (ui != null) {
         ui.modelChanged();
       }
@@ -473,6 +755,7 @@ public class ConstraintSolver {
   public void removeConstraint(Constraint c) {
     Debug.stacktrace("removing basic constraint: " + c, 8);
     vars.getConstraints().remove(c);
+    structureChanged();
     if (ui != null) {
       ui.modelChanged();
     }
@@ -480,6 +763,7 @@ public class ConstraintSolver {
 
   public void wakeUp() {
     synchronized (monitor) {
+      structureChanged(); // pins may have changed
       double err = calcTotalConstraintError();
       if (err > MIN_ACCPETABLE_ERROR) {
         finished = false;
@@ -498,17 +782,20 @@ public class ConstraintSolver {
     Set<Constraint> doomedConstraints = new HashSet<Constraint>();
     for (Constraint c : vars.getConstraints()) {
       c.remove(doomed);
+      vars.constraintChanged(c);
       if (!c.isValid(vars)) {
         doomedConstraints.add(c);
       }
     }
     vars.getConstraints().removeAll(doomedConstraints);
+    structureChanged();
     wakeUp();
     return doomedConstraints;
   }
 
   public void replacePoint(Pt oldPt, Pt newPt) {
     vars.getPoints().remove(oldPt);
+    structureChanged();
     addPoint(newPt);
     if (!hasName(newPt)) {
       Debug.stacktrace("point has no name", 6);
@@ -516,6 +803,7 @@ public class ConstraintSolver {
     for (Constraint c : vars.getConstraints()) {
       if (c.involves(oldPt)) {
         c.replace(oldPt, newPt);
+        vars.constraintChanged(c);
       }
     }
     wakeUp();
@@ -526,8 +814,28 @@ public class ConstraintSolver {
     replacePoint(oldPt, newPt);
   }
 
+  /**
+   * Copies the current points and constraints, for undo or checkpointing.
+   */
+  public synchronized BankSnapshot snapshot() {
+    return BankSnapshot.take(vars);
+  }
+
+  /**
+   * Puts the points and constraints back the way they were in the given snapshot.
+   */
+  public synchronized void restore(BankSnapshot snap) {
+    snap.restore(vars);
+    structureChanged();
+    if (ui != null) {
+      ui.modelChanged();
+    }
+    wakeUp();
+  }
+
   public void clearConstraints() {
     vars.clear();
+    structureChanged();
   }
 
   /**
@@ -11,7 +11,6 @@ import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.DrawingBufferRoutines;
 import org.six11.util.pen.Line;
 import org.six11.util.pen.Pt;
-import org.six11.util.pen.Vec;
 
 import static org.six11.util.Debug.num;
 import static org.six11.util.Debug.bug;
@@ -62,13 +61,16 @@ public class DistanceConstraint extends Constraint {
       if (abs(e) > TOLERANCE) {
         double shift = e / free; // move each free point its fair share of the way to the goal
 //        shift = makeRandom(shift, heat);
-        if (!isPinned(a)) {
-          Vec aToB = new Vec(a, b).getUnitVector().getScaled(shift);
-          accumulate(a, aToB, heat);
-        }
-        if (!isPinned(b)) {
-          Vec bToA = new Vec(b, a).getUnitVector().getScaled(shift);
-          accumulate(b, bToA, heat);
+        double len = a.distance(b);
+        if (len > 0) {
+          double ux = (b.x - a.x) / len;
+          double uy = (b.y - a.y) / len;
+          if (!isPinned(a)) {
+            accumulate(a, ux * shift, uy * shift);
+          }
+          if (!isPinned(b)) {
+            accumulate(b, -ux * shift, -uy * shift);
+          }
         }
       }
     }
@@ -86,6 +88,24 @@ public class DistanceConstraint extends Constraint {
     return ret;
   }
 
+  /**
+   * The residual is measureError(). Related points are { a, b }.
+   */
+  public void evaluate(Pt[] related, double[] r, int rOff, double[] jac, int jOff) {
+    double dx = b.x - a.x;
+    double dy = b.y - a.y;
+    double len = Math.sqrt(dx * dx + dy * dy);
+    r[rOff] = len - d.getValue();
+    double ux = 0;
+    double uy = 0;
+    if (len > 0) {
+      ux = dx / len;
+      uy = dy / len;
+    }
+    setPartial(jac, jOff, 2, 0, 0, -ux, -uy);
+    setPartial(jac, jOff, 2, 0, 1, ux, uy);
+  }
+
   public void draw(DrawingBuffer buf) {
     double e = measureError();
     Color col = (abs(e) > TOLERANCE) ? Color.RED : Color.GREEN;
@@ -0,0 +1,309 @@
+package org.six11.util.solve;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * A damped Gauss-Newton (Levenberg-Marquardt) solver for a set of constraints. Unlike the annealing
+ * step in ConstraintSolver, this is deterministic and usually converges in a handful of
+ * iterations.
+ *
+ * The free coordinates live in a packed state vector: the unpinned points that some constraint
+ * refers to are numbered 0..n-1, and point k's x and y are state[2k] and state[2k + 1]. Pinned
+ * points, and points the constraints mention that aren't in the point list (like a
+ * LocationConstraint's target), are treated as constants. Each constraint supplies residuals and
+ * their derivatives through Constraint.evaluate(). Each iteration builds the normal equations
+ * (J'J + lambda * diag(J'J)) dx = -J'r, solves them by Cholesky factorization, and accepts the
+ * step only if it lowers the sum of squared residuals. Lambda shrinks after a good step and grows
+ * after a bad one.
+ *
+ * The structure (which points are free, which constraints exist) is captured when this is made. If
+ * points, constraints or pins change, make a new one.
+ */
+public class LevenbergMarquardt {
+
+  private static final double MIN_LAMBDA = 1e-12;
+  private static final double MAX_LAMBDA = 1e12;
+  private static final int MAX_TRIES = 12;
+
+  private final Pt[] free;
+  private final Constraint[] cons;
+  private final Pt[][] related;
+  private final int[][] relatedIdx; // state index of each related point, or -1 if it is constant
+  private final int[] rOff;
+  private final int n; // number of unknowns (twice the number of free points)
+  private final int m; // number of residuals
+
+  private final double[] state;
+  private final double[] trial;
+  private final double[] r;
+  private final double[] jac;
+  private final double[] normal; // n x n, row major
+  private final double[] chol;
+  private final double[] grad;
+  private final double[] delta;
+  private final double[] lastMove;
+
+  private double lambda = 1e-3;
+  private double cost;
+  private boolean stalled;
+  private int iterations;
+
+  public LevenbergMarquardt(List<Pt> points, List<Constraint> constraints) {
+    Map<Pt, Integer> bank = new IdentityHashMap<Pt, Integer>();
+    for (Pt pt : points) {
+      bank.put(pt, -1);
+    }
+    cons = constraints.toArray(new Constraint[0]);
+    related = new Pt[cons.length][];
+    relatedIdx = new int[cons.length][];
+    rOff = new int[cons.length + 1];
+    int numFree = 0;
+    int maxJac = 0;
+    Pt[] freeList = new Pt[points.size()];
+    for (int c = 0; c < cons.length; c++) {
+      related[c] = cons[c].getRelatedPoints();
+      relatedIdx[c] = new int[related[c].length];
+      for (int j = 0; j < related[c].length; j++) {
+        Pt pt = related[c][j];
+        int idx = -1;
+        if (bank.containsKey(pt) && !Constraint.isPinned(pt)) {
+          idx = bank.get(pt);
+          if (idx < 0) {
+            idx = numFree++;
+            bank.put(pt, idx);
+            freeList[idx] = pt;
+          }
+        }
+        relatedIdx[c][j] = idx;
+      }
+      int k = cons[c].getResidualCount();
+      rOff[c + 1] = rOff[c] + k;
+      maxJac = Math.max(maxJac, k * related[c].length * 2);
+    }
+    free = Arrays.copyOf(freeList, numFree);
+    n = numFree * 2;
+    m = rOff[cons.length];
+    state = new double[n];
+    trial = new double[n];
+    r = new double[m];
+    jac = new double[maxJac];
+    normal = new double[n * n];
+    chol = new double[n * n];
+    grad = new double[n];
+    delta = new double[n];
+    lastMove = new double[n];
+    for (int k = 0; k < numFree; k++) {
+      state[2 * k] = free[k].getX();
+      state[2 * k + 1] = free[k].getY();
+    }
+    cost = evaluateCost();
+  }
+
+  /**
+   * Takes one damped Gauss-Newton step and returns the resulting sum of squared residuals. If no
+   * amount of damping finds a step that lowers the error, the points are left alone and
+   * isStalled() becomes true.
+   */
+  public double iterate() {
+    iterations++;
+    Arrays.fill(lastMove, 0);
+    if (n == 0) {
+      stalled = true;
+      return cost;
+    }
+    readState();
+    buildNormalEquations();
+    boolean improved = false;
+    for (int tries = 0; tries < MAX_TRIES && !improved; tries++) {
+      if (solveDamped()) {
+        for (int i = 0; i < n; i++) {
+          trial[i] = state[i] + delta[i];
+        }
+        writeState(trial);
+        double trialCost = evaluateCost();
+        if (trialCost < cost) {
+          improved = true;
+          for (int i = 0; i < n; i++) {
+            lastMove[i] = delta[i];
+          }
+          System.arraycopy(trial, 0, state, 0, n);
+          cost = trialCost;
+          lambda = Math.max(MIN_LAMBDA, lambda / 10);
+        }
+      }
+      if (!improved) {
+        lambda = Math.min(MAX_LAMBDA, lambda * 10);
+      }
+    }
+    if (!improved) {
+      writeState(state);
+    }
+    stalled = !improved;
+    return cost;
+  }
+
+  /**
+   * The current sum of squared residuals.
+   */
+  public double getCost() {
+    return cost;
+  }
+
+  /**
+   * True if the last iteration couldn't find any step that reduced the error. That means it is at
+   * a (possibly local) minimum, or that there is nothing to move.
+   */
+  public boolean isStalled() {
+    return stalled;
+  }
+
+  public int getIterations() {
+    return iterations;
+  }
+
+  public double getLambda() {
+    return lambda;
+  }
+
+  /**
+   * The points this solver moves, in state order.
+   */
+  public Pt[] getFreePoints() {
+    return free;
+  }
+
+  /**
+   * How far free point k moved in the last iteration, in x and y.
+   */
+  public double getLastMoveX(int k) {
+    return lastMove[2 * k];
+  }
+
+  public double getLastMoveY(int k) {
+    return lastMove[2 * k + 1];
+  }
+
+  /**
+   * Picks up any changes to the free points' locations made by somebody else since the last
+   * iteration.
+   */
+  private void readState() {
+    boolean changed = false;
+    for (int k = 0; k < free.length; k++) {
+      if (state[2 * k] != free[k].getX() || state[2 * k + 1] != free[k].getY()) {
+        state[2 * k] = free[k].getX();
+        state[2 * k + 1] = free[k].getY();
+        changed = true;
+      }
+    }
+    if (changed) {
+      cost = evaluateCost();
+    }
+  }
+
+  private void writeState(double[] x) {
+    for (int k = 0; k < free.length; k++) {
+      free[k].setLocation(x[2 * k], x[2 * k + 1]);
+    }
+  }
+
+  private double evaluateCost() {
+    double sum = 0;
+    for (int c = 0; c < cons.length; c++) {
+      cons[c].evaluate(related[c], r, rOff[c], jac, 0);
+    }
+    for (int i = 0; i < m; i++) {
+      sum += r[i] * r[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Fills in J'J and J'r, one constraint at a time. Each constraint only touches a few columns.
+   */
+  private void buildNormalEquations() {
+    Arrays.fill(normal, 0);
+    Arrays.fill(grad, 0);
+    for (int c = 0; c < cons.length; c++) {
+      cons[c].evaluate(related[c], r, rOff[c], jac, 0);
+      int[] idx = relatedIdx[c];
+      int p = idx.length;
+      int k = rOff[c + 1] - rOff[c];
+      for (int i = 0; i < k; i++) {
+        double ri = r[rOff[c] + i];
+        int row = i * p * 2;
+        for (int a = 0; a < p * 2; a++) {
+          int colA = idx[a >> 1];
+          if (colA < 0) {
+            continue;
+          }
+          colA = colA * 2 + (a & 1);
+          double ja = jac[row + a];
+          if (ja == 0) {
+            continue;
+          }
+          grad[colA] += ja * ri;
+          for (int b = 0; b < p * 2; b++) {
+            int colB = idx[b >> 1];
+            if (colB >= 0) {
+              normal[colA * n + colB * 2 + (b & 1)] += ja * jac[row + b];
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Solves (J'J + lambda * diag(J'J)) delta = -J'r. Returns false if the matrix isn't positive
+   * definite even with the damping.
+   */
+  private boolean solveDamped() {
+    System.arraycopy(normal, 0, chol, 0, n * n);
+    for (int i = 0; i < n; i++) {
+      double d = normal[i * n + i];
+      chol[i * n + i] = d + lambda * Math.max(d, 1e-9);
+    }
+    // Cholesky: chol = L L', with L stored in the lower triangle.
+    for (int j = 0; j < n; j++) {
+      double sum = chol[j * n + j];
+      for (int k = 0; k < j; k++) {
+        sum -= chol[j * n + k] * chol[j * n + k];
+      }
+      if (!(sum > 0)) {
+        return false;
+      }
+      double ljj = Math.sqrt(sum);
+      chol[j * n + j] = ljj;
+      for (int i = j + 1; i < n; i++) {
+        double s = chol[i * n + j];
+        for (int k = 0; k < j; k++) {
+          s -= chol[i * n + k] * chol[j * n + k];
+        }
+        chol[i * n + j] = s / ljj;
+      }
+    }
+    // forward substitution: L y = -grad
+    for (int i = 0; i < n; i++) {
+      double s = -grad[i];
+      for (int k = 0; k < i; k++) {
+        s -= chol[i * n + k] * delta[k];
+      }
+      delta[i] = s / chol[i * n + i];
+    }
+    // back substitution: L' delta = y
+    for (int i = n - 1; i >= 0; i--) {
+      double s = delta[i];
+      for (int k = i + 1; k < n; k++) {
+        s -= chol[k * n + i] * delta[k];
+      }
+      delta[i] = s / chol[i * n + i];
+    }
+    return true;
+  }
+}
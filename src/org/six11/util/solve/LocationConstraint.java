@@ -10,7 +10,6 @@ import org.six11.util.data.Lists;
 import org.six11.util.pen.DrawingBuffer;
 import org.six11.util.pen.DrawingBufferRoutines;
 import org.six11.util.pen.Pt;
-import org.six11.util.pen.Vec;
 
 import static org.six11.util.Debug.bug;
 import static org.six11.util.Debug.num;
@@ -44,8 +43,7 @@ public class LocationConstraint extends Constraint {
     addMessage(p.getString("name") + ": " + num(error) + ". correction vector: "
         + num(target.x - p.x) + ", " + num(target.y - p.y));
     if (!isPinned(p) && error > TOLERANCE) {
-      Vec toTarget = new Vec(target.x - p.x, target.y - p.y);
-      accumulate(p, toTarget, heat);
+      accumulate(p, target.x - p.x, target.y - p.y);
     }
   }
 
@@ -53,6 +51,22 @@ public class LocationConstraint extends Constraint {
     return p.distance(target);
   }
 
+  /**
+   * Two residuals: the x and y offsets from the target. Related points are { p, target }.
+   */
+  public int getResidualCount() {
+    return 2;
+  }
+
+  public void evaluate(Pt[] related, double[] r, int rOff, double[] jac, int jOff) {
+    r[rOff] = p.x - target.x;
+    r[rOff + 1] = p.y - target.y;
+    setPartial(jac, jOff, 2, 0, 0, 1, 0);
+    setPartial(jac, jOff, 2, 0, 1, -1, 0);
+    setPartial(jac, jOff, 2, 1, 0, 0, 1);
+    setPartial(jac, jOff, 2, 1, 1, 0, -1);
+  }
+
   public void draw(DrawingBuffer buf) {
     DrawingBufferRoutines.dot(buf, target, 3, 0.1, Color.BLACK, Color.red.brighter());
     if (!p.isSameLocation(target)) {
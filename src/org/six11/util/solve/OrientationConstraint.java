@@ -74,22 +74,16 @@ public class OrientationConstraint extends Constraint {
     // both points are free = rotate about mid by (amt / 2)
     // one point free = rotate free point about pinned point by amt
     // both points are pinned = do nothing
-    Line line = new Line(pt1, pt2);
     int free = 2 - countPinned(pt1, pt2);
     if (free == 2) {
-      Pt pivot = line.getMidpoint();
-      Pt rotated1 = Functions.rotatePointAboutPivot(pt1, pivot, amt / 2);
-      Vec vec1 = new Vec(rotated1.x - pt1.x, rotated1.y - pt1.y);
-      accumulate(pt1, vec1, heat);
-      Pt rotated2 = Functions.rotatePointAboutPivot(pt2, pivot, amt / 2);
-      Vec vec2 = new Vec(rotated2.x - pt2.x, rotated2.y - pt2.y);
-      accumulate(pt2, vec2, heat);
+      double midX = (pt1.x + pt2.x) / 2;
+      double midY = (pt1.y + pt2.y) / 2;
+      accumulateRotation(pt1, midX, midY, amt / 2);
+      accumulateRotation(pt2, midX, midY, amt / 2);
     } else if (free == 1) {
       Pt pivot = isPinned(pt1) ? pt1 : pt2;
       Pt moveMe = isPinned(pt1) ? pt2 : pt1;
-      Pt rotated = Functions.rotatePointAboutPivot(moveMe, pivot, amt / 2);
-      Vec vec = new Vec(rotated.x - moveMe.x, rotated.y - moveMe.y);
-      accumulate(moveMe, vec, heat);
+      accumulateRotation(moveMe, pivot.x, pivot.y, amt / 2);
     }
   }
 
@@ -113,6 +107,37 @@ public class OrientationConstraint extends Constraint {
     return ret;
   }
 
+  /**
+   * The residual has the same magnitude as measureError(), but it is measured as the difference
+   * between the lines' angle and the nearer of +target and -target, modulo pi. measureError()'s
+   * sign flips back and forth when the target is 90 degrees, and this doesn't, so it moves
+   * one-for-one with the angle. Related points are { lineA1, lineA2, lineB1, lineB2 }.
+   */
+  public void evaluate(Pt[] related, double[] r, int rOff, double[] jac, int jOff) {
+    double targetAngle = angle.getValue();
+    double ux = lineA2.x - lineA1.x;
+    double uy = lineA2.y - lineA1.y;
+    double vx = lineB1.x - lineB2.x;
+    double vy = lineB1.y - lineB2.y;
+    double current = Functions.getSignedAngleBetween(new Vec(ux, uy), new Vec(vx, vy));
+    double r1 = wrapHalfTurn(current - targetAngle);
+    double r2 = wrapHalfTurn(current + targetAngle);
+    r[rOff] = abs(r1) <= abs(r2) ? r1 : r2;
+    double[] g = new double[4];
+    angleGradient(ux, uy, vx, vy, g);
+    setPartial(jac, jOff, 4, 0, 0, -g[0], -g[1]);
+    setPartial(jac, jOff, 4, 0, 1, g[0], g[1]);
+    setPartial(jac, jOff, 4, 0, 2, g[2], g[3]);
+    setPartial(jac, jOff, 4, 0, 3, -g[2], -g[3]);
+  }
+
+  /**
+   * Shifts the angle by a multiple of pi so it is in [-pi/2, pi/2).
+   */
+  private static double wrapHalfTurn(double radians) {
+    return radians - Math.PI * Math.floor((radians + Math.PI / 2) / Math.PI);
+  }
+
   @Override
   public void draw(DrawingBuffer buf) {
     Color col = (abs(measureError()) > TOLERANCE) ? Color.RED : Color.GREEN;
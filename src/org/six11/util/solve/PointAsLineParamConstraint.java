@@ -71,6 +71,27 @@ public class PointAsLineParamConstraint extends Constraint {
     return new Pt(lineA.x + v.getX(), lineA.y + v.getY());
   }
 
+  /**
+   * Two residuals: the x and y offsets from the target to the point at the given fraction of the way
+   * from lineA to lineB. Related points are { lineA, lineB, target }. Since the constructor pins
+   * the target, the Levenberg-Marquardt solver satisfies this by moving the line, not the target.
+   */
+  public int getResidualCount() {
+    return 2;
+  }
+
+  public void evaluate(Pt[] related, double[] r, int rOff, double[] jac, int jOff) {
+    double t = dist.getValue();
+    r[rOff] = lineA.x + t * (lineB.x - lineA.x) - target.x;
+    r[rOff + 1] = lineA.y + t * (lineB.y - lineA.y) - target.y;
+    setPartial(jac, jOff, 3, 0, 0, 1 - t, 0);
+    setPartial(jac, jOff, 3, 0, 1, t, 0);
+    setPartial(jac, jOff, 3, 0, 2, -1, 0);
+    setPartial(jac, jOff, 3, 1, 0, 0, 1 - t);
+    setPartial(jac, jOff, 3, 1, 1, 0, t);
+    setPartial(jac, jOff, 3, 1, 2, 0, -1);
+  }
+
   public void draw(DrawingBuffer buf) {
     // only need to draw a line. the points should be taken care of elsewhere.
     Color col = (abs(measureError()) > TOLERANCE) ? Color.RED : Color.GREEN;
@@ -97,10 +97,14 @@ public class PointOnLineConstraint extends Constraint {
 
   private void maybeMove(int pins, Pt move, Line target, double heat) {
     if (!isPinned(move)) {
-      Pt near = Functions.getNearestPointOnLine(move, target);
-      double shift = near.distance(move) / (manyPoints.size() - pins);
-      Vec delta = new Vec(move, near).getVectorOfMagnitude(shift);
-      accumulate(move, delta, heat);
+      // move a fair share of the way to the nearest point on the target line
+      Pt start = target.getStart();
+      Pt end = target.getEnd();
+      double lx = end.x - start.x;
+      double ly = end.y - start.y;
+      double r = ((move.x - start.x) * lx + (move.y - start.y) * ly) / (lx * lx + ly * ly);
+      double share = 1.0 / (manyPoints.size() - pins);
+      accumulate(move, (start.x + r * lx - move.x) * share, (start.y + r * ly - move.y) * share);
     }
   }
 
@@ -114,6 +118,51 @@ public class PointOnLineConstraint extends Constraint {
     return sum;
   }
 
+  /**
+   * One residual per point: its signed distance from the total-least-squares line through all the
+   * points. Moving a point along the line's normal changes its residual one-for-one, and because
+   * the line is the best fit, moving the line itself doesn't change the summed squared error to
+   * first order. So each row of the Jacobian is just the normal, at that point's column.
+   */
+  public int getResidualCount() {
+    return manyPoints.size();
+  }
+
+  public void evaluate(Pt[] related, double[] r, int rOff, double[] jac, int jOff) {
+    int n = related.length;
+    double mx = 0;
+    double my = 0;
+    for (Pt pt : related) {
+      mx += pt.x;
+      my += pt.y;
+    }
+    mx /= n;
+    my /= n;
+    double sxx = 0;
+    double syy = 0;
+    double sxy = 0;
+    for (Pt pt : related) {
+      double dx = pt.x - mx;
+      double dy = pt.y - my;
+      sxx += dx * dx;
+      syy += dy * dy;
+      sxy += dx * dy;
+    }
+    double phi = 0.5 * Math.atan2(2 * sxy, sxx - syy); // direction of the principal axis
+    double nx = -Math.sin(phi);
+    double ny = Math.cos(phi);
+    for (int i = 0; i < n; i++) {
+      r[rOff + i] = nx * (related[i].x - mx) + ny * (related[i].y - my);
+      for (int j = 0; j < n; j++) {
+        if (i == j) {
+          setPartial(jac, jOff, n, i, j, nx, ny);
+        } else {
+          setPartial(jac, jOff, n, i, j, 0, 0);
+        }
+      }
+    }
+  }
+
   @Override
   public void draw(DrawingBuffer buf) {
     Color col = (abs(measureError()) > TOLERANCE) ? Color.RED : Color.GREEN;
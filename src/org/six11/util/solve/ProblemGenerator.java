@@ -0,0 +1,211 @@
+package org.six11.util.solve;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.six11.util.pen.Pt;
+
+/**
+ * Makes synthetic constraint problems for benchmarking and testing the solver. Each problem is
+ * built around a known solution, so it is always satisfiable, and then every unpinned point is
+ * nudged by some random noise. The same seed gives the same problems.
+ *
+ * Problems can be saved and loaded in the same JSON format TestSolveUI uses.
+ */
+public class ProblemGenerator {
+
+  public static enum Shape {
+    /** A pinned point followed by n - 1 links, with a distance per link and an angle per joint. */
+    Chain,
+    /** An n by n lattice with edge lengths, right angles and collinear rows. */
+    Grid,
+    /** A regular n-gon with edge lengths and interior angles. */
+    RigidPolygon,
+    /** A regular n-gon with edge lengths, interior angles and every diagonal's length. */
+    OverConstrained;
+  }
+
+  private static final double SPACING = 40;
+
+  private final Random rand;
+  private final double jitter;
+
+  /**
+   * @param jitter
+   *          the standard deviation of the noise added to each unpinned point.
+   */
+  public ProblemGenerator(long seed, double jitter) {
+    this.rand = new Random(seed);
+    this.jitter = jitter;
+  }
+
+  public VariableBank make(Shape shape, int n) {
+    VariableBank ret = null;
+    switch (shape) {
+      case Chain:
+        ret = chain(n);
+        break;
+      case Grid:
+        ret = grid(n);
+        break;
+      case RigidPolygon:
+        ret = polygon(n, false);
+        break;
+      case OverConstrained:
+        ret = polygon(n, true);
+        break;
+    }
+    return ret;
+  }
+
+  private Pt point(VariableBank vars, double x, double y) {
+    Pt ret = new Pt(x, y);
+    ConstraintSolver.setName(ret, "p" + vars.getPoints().size());
+    vars.getPoints().add(ret);
+    return ret;
+  }
+
+  private static void distance(VariableBank vars, Pt a, Pt b) {
+    vars.getConstraints().add(new DistanceConstraint(a, b, new NumericValue(a.distance(b))));
+  }
+
+  private static void angle(VariableBank vars, Pt a, Pt f, Pt b) {
+    double radians = Math.abs(AngleConstraint.measureAngle(a, f, b));
+    vars.getConstraints().add(new AngleConstraint(a, f, b, new NumericValue(radians)));
+  }
+
+  /**
+   * Moves every unpinned point by gaussian noise.
+   */
+  private VariableBank perturb(VariableBank vars) {
+    for (Pt pt : vars.getPoints()) {
+      if (!Constraint.isPinned(pt)) {
+        pt.setLocation(pt.getX() + rand.nextGaussian() * jitter, pt.getY() + rand.nextGaussian()
+            * jitter);
+      }
+    }
+    return vars;
+  }
+
+  public VariableBank chain(int n) {
+    VariableBank vars = new VariableBank();
+    Pt prev = point(vars, 0, 0);
+    Constraint.setPinned(prev, true);
+    double heading = 0;
+    List<Pt> pts = new ArrayList<Pt>();
+    pts.add(prev);
+    for (int i = 1; i < n; i++) {
+      heading += (rand.nextDouble() - 0.5) * Math.PI / 2;
+      Pt next = point(vars, prev.getX() + SPACING * Math.cos(heading), prev.getY() + SPACING
+          * Math.sin(heading));
+      distance(vars, prev, next);
+      pts.add(next);
+      prev = next;
+    }
+    for (int i = 2; i < n; i++) {
+      angle(vars, pts.get(i - 2), pts.get(i - 1), pts.get(i));
+    }
+    return perturb(vars);
+  }
+
+  public VariableBank grid(int n) {
+    VariableBank vars = new VariableBank();
+    Pt[][] pts = new Pt[n][n];
+    for (int row = 0; row < n; row++) {
+      for (int col = 0; col < n; col++) {
+        pts[row][col] = point(vars, col * SPACING, row * SPACING);
+      }
+    }
+    Constraint.setPinned(pts[0][0], true);
+    for (int row = 0; row < n; row++) {
+      for (int col = 0; col < n; col++) {
+        if (col + 1 < n) {
+          distance(vars, pts[row][col], pts[row][col + 1]);
+        }
+        if (row + 1 < n) {
+          distance(vars, pts[row][col], pts[row + 1][col]);
+        }
+        if (col + 1 < n && row + 1 < n) {
+          vars.getConstraints().add(
+              new OrientationConstraint(pts[row][col], pts[row][col + 1], pts[row][col],
+                  pts[row + 1][col], new NumericValue(Math.PI / 2)));
+        }
+      }
+      if (n > 2) {
+        Set<Pt> rowPoints = new HashSet<Pt>();
+        for (int col = 0; col < n; col++) {
+          rowPoints.add(pts[row][col]);
+        }
+        vars.getConstraints().add(new PointOnLineConstraint(rowPoints));
+      }
+    }
+    return perturb(vars);
+  }
+
+  private VariableBank polygon(int n, boolean diagonals) {
+    VariableBank vars = new VariableBank();
+    double radius = SPACING * n / (2 * Math.PI);
+    Pt[] pts = new Pt[n];
+    for (int i = 0; i < n; i++) {
+      double theta = 2 * Math.PI * i / n;
+      pts[i] = point(vars, radius * Math.cos(theta), radius * Math.sin(theta));
+    }
+    Constraint.setPinned(pts[0], true);
+    for (int i = 0; i < n; i++) {
+      distance(vars, pts[i], pts[(i + 1) % n]);
+      angle(vars, pts[(i + n - 1) % n], pts[i], pts[(i + 1) % n]);
+      if (diagonals) {
+        for (int j = i + 2; j < n; j++) {
+          if (i != 0 || j != n - 1) {
+            distance(vars, pts[i], pts[j]);
+          }
+        }
+      }
+    }
+    return perturb(vars);
+  }
+
+  /**
+   * Writes the problem as JSON with "points" and "constraints" arrays, like TestSolveUI.save().
+   */
+  public static void write(VariableBank vars, Writer out) throws IOException {
+    try {
+      JsonIO io = new JsonIO();
+      JSONObject top = new JSONObject();
+      top.put("points", io.write(vars.getPoints(), "name", "pinned"));
+      top.put("constraints", io.write(vars.getConstraints()));
+      out.write(top.toString());
+      out.flush();
+    } catch (JSONException ex) {
+      throw new IOException("Couldn't encode problem: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Reads a problem written by write() or TestSolveUI.save().
+   */
+  public static VariableBank read(Reader in) throws IOException {
+    try {
+      JsonIO io = new JsonIO();
+      JSONObject top = new JSONObject(new JSONTokener(in));
+      JSONArray pointArray = top.getJSONArray("points");
+      JSONArray constraintArray = top.getJSONArray("constraints");
+      VariableBank vars = new VariableBank();
+      vars.getPoints().addAll(io.readPoints(pointArray, "name", "pinned"));
+      vars.getConstraints().addAll(io.readConstraints(constraintArray, vars));
+      return vars;
+    } catch (JSONException ex) {
+      throw new IOException("Couldn't decode problem: " + ex.getMessage());
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package org.six11.util.solve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.six11.util.solve.ConstraintSolver.State;
+
+/**
+ * What ConstraintSolver.solve() returns: how it ended, how much error is left, and how much work
+ * it took.
+ */
+public class SolveResult {
+
+  private final State state;
+  private final double residual;
+  private final int iterations;
+  private final long millis;
+  private final List<Constraint> constraints;
+  private final double[] errors;
+
+  SolveResult(State state, double residual, int iterations, long millis,
+      List<Constraint> constraints, double[] errors) {
+    this.state = state;
+    this.residual = residual;
+    this.iterations = iterations;
+    this.millis = millis;
+    this.constraints = Collections.unmodifiableList(new ArrayList<Constraint>(constraints));
+    this.errors = errors;
+  }
+
+  /**
+   * Solved if the residual is within the requested tolerance, otherwise Unsatisfied.
+   */
+  public State getState() {
+    return state;
+  }
+
+  public boolean isSolved() {
+    return state == State.Solved;
+  }
+
+  /**
+   * The sum of the absolute errors of all constraints when the solve stopped.
+   */
+  public double getResidual() {
+    return residual;
+  }
+
+  public int getIterations() {
+    return iterations;
+  }
+
+  public long getMillis() {
+    return millis;
+  }
+
+  /**
+   * The constraints, in the same order as getError(int).
+   */
+  public List<Constraint> getConstraints() {
+    return constraints;
+  }
+
+  /**
+   * The signed error (from measureError()) of constraint i when the solve stopped.
+   */
+  public double getError(int i) {
+    return errors[i];
+  }
+
+  public String toString() {
+    return state + " after " + iterations + " iterations (" + millis + " ms), residual "
+        + residual;
+  }
+}
@@ -0,0 +1,213 @@
+package org.six11.util.solve;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.six11.util.args.Arguments;
+import org.six11.util.args.Arguments.ArgType;
+import org.six11.util.args.Arguments.ValueType;
+import org.six11.util.pen.Pt;
+import org.six11.util.solve.ConstraintSolver.Mode;
+import org.six11.util.spud.CLine;
+import org.six11.util.spud.CPoint;
+import org.six11.util.spud.CPointLocation;
+import org.six11.util.spud.ConstraintModel;
+
+/**
+ * Runs both solvers over a corpus of generated problems and prints one tab-separated row per run:
+ * iterations, wall time, bytes allocated and the final residual. Run it before and after a solver
+ * change to see what the change did.
+ *
+ * By default the corpus comes from ProblemGenerator with a fixed seed. Use --save to write it to a
+ * directory as JSON, and --load to run a saved corpus (or files from TestSolveUI) instead.
+ */
+public class SolverBenchmark {
+
+  private static final Object[][] CORPUS = new Object[][] {
+      { ProblemGenerator.Shape.Chain, 10 }, { ProblemGenerator.Shape.Chain, 50 },
+      { ProblemGenerator.Shape.Grid, 4 }, { ProblemGenerator.Shape.Grid, 8 },
+      { ProblemGenerator.Shape.RigidPolygon, 6 }, { ProblemGenerator.Shape.RigidPolygon, 20 },
+      { ProblemGenerator.Shape.OverConstrained, 6 }, { ProblemGenerator.Shape.OverConstrained, 12 }
+  };
+
+  public static void main(String[] in) throws IOException {
+    Arguments args = new Arguments();
+    args.setProgramName("SolverBenchmark");
+    args.setDocumentationProgram("Times the constraint solvers on synthetic problems.");
+    args.addFlag("seed", ArgType.ARG_OPTIONAL, ValueType.VALUE_REQUIRED,
+        "Random seed for the generator and solvers (default 1)");
+    args.addFlag("jitter", ArgType.ARG_OPTIONAL, ValueType.VALUE_REQUIRED,
+        "How far points start from their solution (default 5)");
+    args.addFlag("iterations", ArgType.ARG_OPTIONAL, ValueType.VALUE_REQUIRED,
+        "Iteration budget per solve (default 5000)");
+    args.addFlag("millis", ArgType.ARG_OPTIONAL, ValueType.VALUE_REQUIRED,
+        "Time budget per solve in milliseconds, 0 for none (default 10000)");
+    args.addFlag("tolerance", ArgType.ARG_OPTIONAL, ValueType.VALUE_REQUIRED,
+        "Residual that counts as solved (default 0.001)");
+    args.addFlag("repeat", ArgType.ARG_OPTIONAL, ValueType.VALUE_REQUIRED,
+        "Times to run each problem; the first run is warm-up and not printed (default 3)");
+    args.addFlag("save", ArgType.ARG_OPTIONAL, ValueType.VALUE_REQUIRED,
+        "Write the generated corpus to this directory");
+    args.addFlag("load", ArgType.ARG_OPTIONAL, ValueType.VALUE_REQUIRED,
+        "Read the corpus from .json files in this directory instead of generating it");
+    args.addFlag("help", ArgType.ARG_OPTIONAL, ValueType.VALUE_IGNORED, "Print this message");
+    args.parseArguments(in);
+    if (args.hasFlag("help")) {
+      System.out.println(args.getUsage());
+      System.exit(0);
+    }
+    args.validate();
+
+    long seed = args.hasValue("seed") ? Long.parseLong(args.getValue("seed")) : 1;
+    double jitter = args.hasValue("jitter") ? Double.parseDouble(args.getValue("jitter")) : 5;
+    int maxIter = args.hasValue("iterations") ? Integer.parseInt(args.getValue("iterations"))
+        : 5000;
+    long maxMillis = args.hasValue("millis") ? Long.parseLong(args.getValue("millis")) : 10000;
+    double tolerance = args.hasValue("tolerance") ? Double.parseDouble(args
+        .getValue("tolerance")) : 0.001;
+    int repeat = args.hasValue("repeat") ? Integer.parseInt(args.getValue("repeat")) : 3;
+
+    List<String> names = new ArrayList<String>();
+    List<String> problems = new ArrayList<String>();
+    if (args.hasValue("load")) {
+      File[] files = new File(args.getValue("load")).listFiles();
+      if (files == null) {
+        throw new IOException("Can't list " + args.getValue("load"));
+      }
+      Arrays.sort(files);
+      for (File f : files) {
+        if (f.getName().endsWith(".json")) {
+          names.add(f.getName());
+          problems.add(toJson(read(f)));
+        }
+      }
+    } else {
+      ProblemGenerator gen = new ProblemGenerator(seed, jitter);
+      for (Object[] entry : CORPUS) {
+        ProblemGenerator.Shape shape = (ProblemGenerator.Shape) entry[0];
+        int n = (Integer) entry[1];
+        names.add(shape + "-" + n);
+        problems.add(toJson(gen.make(shape, n)));
+      }
+    }
+    if (args.hasValue("save")) {
+      File dir = new File(args.getValue("save"));
+      dir.mkdirs();
+      for (int i = 0; i < names.size(); i++) {
+        FileWriter out = new FileWriter(new File(dir, names.get(i) + ".json"));
+        out.write(problems.get(i));
+        out.close();
+      }
+    }
+
+    System.out.println("problem\tpoints\tconstraints\tsolver\tstate\titerations\tms\tbytes"
+        + "\tMB/s\tresidual");
+    for (int i = 0; i < names.size(); i++) {
+      for (Mode mode : Mode.values()) {
+        for (int r = 0; r < repeat; r++) {
+          ConstraintSolver solver = new ConstraintSolver();
+          solver.setMode(mode);
+          solver.setSeed(seed);
+          solver.setPublishHints(false);
+          VariableBank vars = ProblemGenerator.read(new StringReader(problems.get(i)));
+          for (Pt pt : vars.getPoints()) {
+            solver.addPoint(pt);
+          }
+          for (Constraint c : vars.getConstraints()) {
+            solver.addConstraint(c);
+          }
+          long bytesBefore = allocatedBytes();
+          long nanosBefore = System.nanoTime();
+          SolveResult result = solver.solve(maxIter, maxMillis, tolerance);
+          long nanos = System.nanoTime() - nanosBefore;
+          long bytes = allocatedBytes() - bytesBefore;
+          if (r > 0 || repeat == 1) {
+            System.out.println(names.get(i) + "\t" + vars.getPoints().size() + "\t"
+                + vars.getConstraints().size() + "\t" + mode + "\t" + result.getState() + "\t"
+                + result.getIterations() + "\t" + fmt(nanos / 1e6) + "\t" + bytes + "\t"
+                + fmt(rate(bytes, nanos)) + "\t" + result.getResidual());
+          }
+        }
+      }
+    }
+
+    System.out.println();
+    System.out.println("spud\tlines\tconstraints\tevaluations\tenqueued\tms\tbytes\tMB/s"
+        + "\tunsolved");
+    for (int n : new int[] { 100, 1000, 5000 }) {
+      for (int r = 0; r < repeat; r++) {
+        ConstraintModel model = makeLineChain(n);
+        long bytesBefore = allocatedBytes();
+        ConstraintModel.Stats stats = model.solve();
+        long bytes = allocatedBytes() - bytesBefore;
+        if (r > 0 || repeat == 1) {
+          System.out.println("LineChain-" + n + "\t" + (n - 1) + "\t"
+              + stats.getConstraintCount() + "\t" + stats.getEvaluations() + "\t"
+              + stats.getEnqueued() + "\t" + fmt(stats.getNanos() / 1e6) + "\t" + bytes + "\t"
+              + fmt(rate(bytes, stats.getNanos())) + "\t" + stats.getUnsolvedConstraints());
+        }
+      }
+    }
+  }
+
+  /**
+   * A chain of n points joined by lines, with each point's location given.
+   */
+  private static ConstraintModel makeLineChain(int n) {
+    ConstraintModel model = new ConstraintModel();
+    CPoint[] pts = new CPoint[n];
+    pts[0] = new CPoint();
+    for (int i = 0; i < n - 1; i++) {
+      pts[i + 1] = new CPoint();
+      CLine.makeLine(model, pts[i], pts[i + 1]);
+    }
+    for (int i = n - 1; i >= 0; i--) {
+      model.addConstraint(new CPointLocation(pts[i], new Pt(i * 10, (i % 2) * 5)));
+    }
+    return model;
+  }
+
+  private static VariableBank read(File f) throws IOException {
+    FileReader in = new FileReader(f);
+    try {
+      return ProblemGenerator.read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String toJson(VariableBank vars) throws IOException {
+    StringWriter out = new StringWriter();
+    ProblemGenerator.write(vars, out);
+    return out.toString();
+  }
+
+  /**
+   * Bytes allocated so far by this thread, or 0 if the JVM can't say.
+   */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    long ret = 0;
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      ret = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread
+          .currentThread().getId());
+    }
+    return Math.max(ret, 0);
+  }
+
+  private static double rate(long bytes, long nanos) {
+    return nanos > 0 ? (bytes / (1024.0 * 1024.0)) / (nanos / 1e9) : 0;
+  }
+
+  private static String fmt(double v) {
+    return String.format("%.2f", v);
+  }
+}
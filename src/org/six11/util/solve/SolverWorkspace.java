@@ -0,0 +1,114 @@
+package org.six11.util.solve;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.six11.util.pen.Pt;
+import org.six11.util.pen.Vec;
+
+/**
+ * Scratch space for the annealing step in ConstraintSolver. Each point in the variable bank gets an
+ * index, and the corrections constraints ask for are summed into flat dx/dy arrays instead of
+ * lists of Vec objects hanging off each point. Once made, clearing and accumulating allocates
+ * nothing.
+ *
+ * The point list is captured when this is made. If points are added or removed, make a new one.
+ */
+class SolverWorkspace {
+
+  private final Pt[] points;
+  private final Map<Pt, Integer> index;
+  private final BitSet pinned;
+  final double[] dx;
+  final double[] dy;
+  final int[] count; // how many corrections each point got this step
+  final double[] moveX; // what the last step actually did to each point
+  final double[] moveY;
+
+  SolverWorkspace(List<Pt> bankPoints) {
+    index = new IdentityHashMap<Pt, Integer>();
+    Pt[] unique = new Pt[bankPoints.size()];
+    for (Pt pt : bankPoints) {
+      if (!index.containsKey(pt)) {
+        unique[index.size()] = pt;
+        index.put(pt, index.size());
+      }
+    }
+    points = Arrays.copyOf(unique, index.size());
+    pinned = new BitSet(points.length);
+    dx = new double[points.length];
+    dy = new double[points.length];
+    count = new int[points.length];
+    moveX = new double[points.length];
+    moveY = new double[points.length];
+  }
+
+  int size() {
+    return points.length;
+  }
+
+  Pt getPoint(int i) {
+    return points[i];
+  }
+
+  /**
+   * The index of the given point, or -1 if it isn't in this workspace.
+   */
+  int indexOf(Pt pt) {
+    Integer ret = index.get(pt);
+    return ret == null ? -1 : ret;
+  }
+
+  boolean isPinned(int i) {
+    return pinned.get(i);
+  }
+
+  /**
+   * Zeroes the accumulators and re-reads which points are pinned, since that can change between
+   * steps.
+   */
+  void clear() {
+    Arrays.fill(dx, 0);
+    Arrays.fill(dy, 0);
+    Arrays.fill(count, 0);
+    pinned.clear();
+    for (int i = 0; i < points.length; i++) {
+      if (Constraint.isPinned(points[i])) {
+        pinned.set(i);
+      }
+    }
+  }
+
+  /**
+   * Adds a correction for the given point. Returns false (and does nothing) if the point isn't in
+   * this workspace.
+   */
+  boolean add(Pt pt, double x, double y) {
+    Integer i = index.get(pt);
+    if (i == null) {
+      return false;
+    }
+    dx[i] += x;
+    dy[i] += y;
+    count[i]++;
+    return true;
+  }
+
+  /**
+   * Copies the per-point results of the last step onto the points themselves, as the "stable"
+   * boolean and the ConstraintSolver.LAST_SOLVER_ADJUSTMENT_VEC attribute. Only the UI and debug
+   * output look at these.
+   */
+  void publishHints() {
+    for (int i = 0; i < points.length; i++) {
+      points[i].setBoolean("stable", count[i] == 0);
+      if (moveX[i] != 0 || moveY[i] != 0) {
+        points[i].setAttribute(ConstraintSolver.LAST_SOLVER_ADJUSTMENT_VEC, new Vec(moveX[i],
+            moveY[i]));
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package org.six11.util.solve;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks that BankSnapshot puts a bank back the way it was, both from a live snapshot and from
+ * bytes.
+ */
+public class TestBankSnapshot extends TestCase {
+
+  private static VariableBank makeBank() {
+    VariableBank vars = new ProblemGenerator(11, 4).make(ProblemGenerator.Shape.Grid, 5);
+    Pt target = new Pt(-20, -20);
+    vars.getConstraints().add(new LocationConstraint(vars.getPoints().get(3), target));
+    return vars;
+  }
+
+  private static double[] errors(VariableBank vars) {
+    double[] ret = new double[vars.getConstraints().size()];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = vars.getConstraints().get(i).measureError();
+    }
+    return ret;
+  }
+
+  public void testRestoreInPlace() {
+    VariableBank vars = makeBank();
+    List<Pt> pointsBefore = new ArrayList<Pt>(vars.getPoints());
+    List<Constraint> constraintsBefore = new ArrayList<Constraint>(vars.getConstraints());
+    double[] errorsBefore = errors(vars);
+    BankSnapshot snap = BankSnapshot.take(vars);
+
+    vars.getPoints().get(4).setLocation(500, 500);
+    Constraint.setPinned(vars.getPoints().get(5), true);
+    ((DistanceConstraint) vars.getConstraintsOfType(DistanceConstraint.class).get(0)).getValue()
+        .setValue(1);
+    Constraint doomed = vars.getConstraints().remove(2);
+
+    BankSnapshot.Diff diff = BankSnapshot.take(vars).diff(snap);
+    assertTrue(diff.isStructureChanged());
+
+    snap.restore(vars);
+    assertEquals(pointsBefore.size(), vars.getPoints().size());
+    for (int i = 0; i < pointsBefore.size(); i++) {
+      assertSame(pointsBefore.get(i), vars.getPoints().get(i));
+    }
+    for (int i = 0; i < constraintsBefore.size(); i++) {
+      assertSame(constraintsBefore.get(i), vars.getConstraints().get(i));
+    }
+    assertSame(doomed, vars.getConstraints().get(2));
+    assertFalse(Constraint.isPinned(vars.getPoints().get(5)));
+    double[] errorsAfter = errors(vars);
+    for (int i = 0; i < errorsBefore.length; i++) {
+      assertEquals(errorsBefore[i], errorsAfter[i], 0);
+    }
+    assertTrue(BankSnapshot.take(vars).diff(snap).isEmpty());
+  }
+
+  public void testBytes() throws Exception {
+    VariableBank vars = makeBank();
+    BankSnapshot snap = BankSnapshot.take(vars);
+    byte[] data = snap.toBytes();
+    VariableBank copy = new VariableBank();
+    BankSnapshot.fromBytes(data).restore(copy);
+    assertEquals(vars.getPoints().size(), copy.getPoints().size());
+    assertEquals(vars.getConstraints().size(), copy.getConstraints().size());
+    for (int i = 0; i < vars.getPoints().size(); i++) {
+      Pt pt = vars.getPoints().get(i);
+      Pt other = copy.getPoints().get(i);
+      assertEquals(pt.getX(), other.getX(), 0);
+      assertEquals(pt.getY(), other.getY(), 0);
+      assertEquals(Constraint.isPinned(pt), Constraint.isPinned(other));
+      assertEquals(pt.getString("name"), other.getString("name"));
+    }
+    double[] expected = errors(vars);
+    double[] actual = errors(copy);
+    for (int i = 0; i < expected.length; i++) {
+      Constraint c = vars.getConstraints().get(i);
+      assertEquals(c.getType(), copy.getConstraints().get(i).getType());
+      assertEquals(c.getID(), copy.getConstraints().get(i).getID());
+      assertEquals(expected[i], actual[i], 1e-9);
+    }
+    assertSame(copy.getConstraints().get(0), copy.getConstraintWithID(vars.getConstraints()
+        .get(0).getID()));
+  }
+
+  public void testDiff() {
+    VariableBank vars = makeBank();
+    BankSnapshot before = BankSnapshot.take(vars);
+    vars.getPoints().get(7).setLocation(1, 2);
+    Constraint.setPinned(vars.getPoints().get(8), true);
+    ((DistanceConstraint) vars.getConstraints().get(0)).getValue().setValue(3);
+    BankSnapshot.Diff diff = BankSnapshot.take(vars).diff(before);
+    assertFalse(diff.isStructureChanged());
+    assertEquals(1, diff.getMovedPoints().cardinality());
+    assertTrue(diff.getMovedPoints().get(7));
+    assertEquals(1, diff.getPinChangedPoints().cardinality());
+    assertTrue(diff.getPinChangedPoints().get(8));
+    assertEquals(1, diff.getValueChangedConstraints().cardinality());
+    assertTrue(diff.getValueChangedConstraints().get(0));
+  }
+}
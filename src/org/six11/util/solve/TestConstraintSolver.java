@@ -0,0 +1,140 @@
+package org.six11.util.solve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Exercises the headless ConstraintSolver.solve() entry point.
+ */
+public class TestConstraintSolver extends TestCase {
+
+  private static ConstraintSolver makeTriangle(long seed) {
+    ConstraintSolver solver = new ConstraintSolver();
+    solver.setSeed(seed);
+    solver.setPublishHints(false);
+    Pt a = new Pt(0, 0);
+    Pt b = new Pt(80, 10);
+    Pt c = new Pt(30, 70);
+    ConstraintSolver.setName(a, "a");
+    ConstraintSolver.setName(b, "b");
+    ConstraintSolver.setName(c, "c");
+    Constraint.setPinned(a, true);
+    solver.addPoint(a);
+    solver.addPoint(b);
+    solver.addPoint(c);
+    solver.addConstraint(new DistanceConstraint(a, b, new NumericValue(50)));
+    solver.addConstraint(new DistanceConstraint(b, c, new NumericValue(50)));
+    solver.addConstraint(new AngleConstraint(a, b, c, new NumericValue(Math.toRadians(90))));
+    return solver;
+  }
+
+  public void testSolve() {
+    ConstraintSolver solver = makeTriangle(1);
+    SolveResult result = solver.solve(10000, 0, 0.01);
+    assertTrue(result.toString(), result.isSolved());
+    assertTrue(result.getResidual() <= 0.01);
+    assertEquals(3, result.getConstraints().size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, result.getError(i), 0.01);
+    }
+  }
+
+  public void testDeterministic() {
+    ConstraintSolver one = makeTriangle(99);
+    ConstraintSolver two = makeTriangle(99);
+    SolveResult r1 = one.solve(200, 0, 1e-9);
+    SolveResult r2 = two.solve(200, 0, 1e-9);
+    assertEquals(r1.getIterations(), r2.getIterations());
+    assertEquals(r1.getResidual(), r2.getResidual());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(one.getVars().getPoints().get(i), two.getVars().getPoints().get(i));
+    }
+  }
+
+  public void testBudget() {
+    SolveResult result = makeTriangle(5).solve(3, 0, 1e-12);
+    assertEquals(3, result.getIterations());
+    assertEquals(ConstraintSolver.State.Unsatisfied, result.getState());
+  }
+
+  public void testThreadPool() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<SolveResult>> futures = new ArrayList<Future<SolveResult>>();
+      for (int i = 0; i < 16; i++) {
+        final long seed = i % 2;
+        futures.add(pool.submit(new Callable<SolveResult>() {
+          public SolveResult call() {
+            return makeTriangle(seed).solve(500, 0, 1e-9);
+          }
+        }));
+      }
+      for (int i = 2; i < futures.size(); i++) {
+        SolveResult expected = futures.get(i % 2).get();
+        SolveResult actual = futures.get(i).get();
+        assertEquals(expected.getIterations(), actual.getIterations());
+        assertEquals(expected.getResidual(), actual.getResidual());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * A zig-zag chain of n points, each 10 away from the next, with the first one pinned.
+   */
+  private static ConstraintSolver makeChain(int n) {
+    ConstraintSolver solver = new ConstraintSolver();
+    solver.setPublishHints(false);
+    Pt prev = null;
+    for (int i = 0; i < n; i++) {
+      Pt pt = new Pt(8 * i, (i % 2) * 6);
+      ConstraintSolver.setName(pt, "p" + i);
+      solver.addPoint(pt);
+      if (prev == null) {
+        Constraint.setPinned(pt, true);
+      } else {
+        solver.addConstraint(new DistanceConstraint(prev, pt, new NumericValue(10)));
+      }
+      prev = pt;
+    }
+    return solver;
+  }
+
+  public void testSolveNear() {
+    ConstraintSolver solver = makeChain(200);
+    List<Pt> points = solver.getVars().getPoints();
+    Pt end = points.get(199);
+    end.setLocation(end.getX() - 3, end.getY() + 4);
+    SolveResult result = solver.solveNear(Collections.singleton(end), 2, 0, 1e-6);
+    assertTrue(result.toString(), result.isSolved());
+    assertTrue(result.getConstraints().size() < 10);
+    assertEquals(8 * 199 - 3, end.getX(), 0);
+    for (int i = 0; i < 190; i++) {
+      assertEquals(8 * i, points.get(i).getX(), 0);
+    }
+  }
+
+  public void testSolveNearGrows() {
+    ConstraintSolver solver = makeChain(200);
+    List<Pt> points = solver.getVars().getPoints();
+    Pt end = points.get(199);
+    end.setLocation(end.getX() + 20, end.getY() + 30);
+    SolveResult result = solver.solveNear(Collections.singleton(end), 1, 0, 1e-6);
+    assertTrue(result.toString(), result.isSolved());
+    assertTrue(result.getConstraints().size() > 2);
+    assertEquals(0, points.get(0).getX(), 0);
+    for (Constraint c : solver.getConstraints()) {
+      assertEquals(0, c.measureError(), 1e-5);
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package org.six11.util.solve;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks the analytic constraint Jacobians against finite differences, and that the
+ * Levenberg-Marquardt solver actually satisfies some small systems.
+ */
+public class TestLevenbergMarquardt extends TestCase {
+
+  private static Pt pt(String name, double x, double y) {
+    Pt ret = new Pt(x, y);
+    ConstraintSolver.setName(ret, name);
+    return ret;
+  }
+
+  /**
+   * Compares c.evaluate() with central differences of the residuals.
+   */
+  private void checkJacobian(Constraint c) {
+    Pt[] related = c.getRelatedPoints();
+    int k = c.getResidualCount();
+    double[] r = new double[k];
+    double[] jac = new double[k * related.length * 2];
+    c.evaluate(related, r, 0, jac, 0);
+    double h = 1e-6;
+    double[] rPlus = new double[k];
+    double[] rMinus = new double[k];
+    double[] scratch = new double[jac.length];
+    for (int j = 0; j < related.length; j++) {
+      for (int axis = 0; axis < 2; axis++) {
+        Pt p = related[j];
+        double x = p.getX();
+        double y = p.getY();
+        p.setLocation(x + (axis == 0 ? h : 0), y + (axis == 1 ? h : 0));
+        c.evaluate(related, rPlus, 0, scratch, 0);
+        p.setLocation(x - (axis == 0 ? h : 0), y - (axis == 1 ? h : 0));
+        c.evaluate(related, rMinus, 0, scratch, 0);
+        p.setLocation(x, y);
+        for (int i = 0; i < k; i++) {
+          double numeric = (rPlus[i] - rMinus[i]) / (2 * h);
+          double analytic = jac[(i * related.length + j) * 2 + axis];
+          assertEquals(c.getType() + " residual " + i + " point " + j + " axis " + axis, numeric,
+              analytic, 1e-4);
+        }
+      }
+    }
+  }
+
+  public void testJacobians() {
+    Pt a = pt("a", 10, 20);
+    Pt b = pt("b", 70, 35);
+    Pt c = pt("c", 40, 90);
+    Pt d = pt("d", 5, 60);
+    checkJacobian(new DistanceConstraint(a, b, new NumericValue(30)));
+    checkJacobian(new AngleConstraint(a, c, b, new NumericValue(Math.toRadians(60))));
+    checkJacobian(new OrientationConstraint(a, b, c, d, new NumericValue(Math.toRadians(90))));
+    checkJacobian(new OrientationConstraint(a, b, c, d, new NumericValue(Math.toRadians(10))));
+    checkJacobian(new LocationConstraint(a, new Pt(0, 0)));
+    Pt target = pt("t", 50, 50);
+    checkJacobian(new PointAsLineParamConstraint(a, b, new NumericValue(0.25), target));
+    Constraint.setPinned(target, false);
+  }
+
+  /**
+   * The point-on-line residuals are distances to the best-fit line, which itself moves with the
+   * points. Only the gradient of the summed squares is exact, so check that instead.
+   */
+  public void testPointOnLineGradient() {
+    Set<Pt> pts = new HashSet<Pt>();
+    pts.add(pt("p0", 0, 0));
+    pts.add(pt("p1", 10, 3));
+    pts.add(pt("p2", 20, -2));
+    pts.add(pt("p3", 30, 5));
+    PointOnLineConstraint c = new PointOnLineConstraint(pts);
+    Pt[] related = c.getRelatedPoints();
+    int k = c.getResidualCount();
+    double[] r = new double[k];
+    double[] jac = new double[k * related.length * 2];
+    c.evaluate(related, r, 0, jac, 0);
+    double h = 1e-6;
+    for (int j = 0; j < related.length; j++) {
+      double grad = 0;
+      for (int i = 0; i < k; i++) {
+        grad += 2 * r[i] * jac[(i * related.length + j) * 2 + 1];
+      }
+      double y = related[j].getY();
+      related[j].setLocation(related[j].getX(), y + h);
+      double plus = sumSquares(c, related);
+      related[j].setLocation(related[j].getX(), y - h);
+      double minus = sumSquares(c, related);
+      related[j].setLocation(related[j].getX(), y);
+      assertEquals(grad, (plus - minus) / (2 * h), 1e-4);
+    }
+  }
+
+  private double sumSquares(Constraint c, Pt[] related) {
+    double[] r = new double[c.getResidualCount()];
+    c.evaluate(related, r, 0, new double[r.length * related.length * 2], 0);
+    double ret = 0;
+    for (double v : r) {
+      ret += v * v;
+    }
+    return ret;
+  }
+
+  public void testSolveTriangle() {
+    Random rand = new Random(3);
+    List<Pt> points = new ArrayList<Pt>();
+    Pt a = pt("a", 0, 0);
+    Pt b = pt("b", 0, 0);
+    Pt c = pt("c", 0, 0);
+    for (Pt p : new Pt[] {
+        a, b, c
+    }) {
+      p.setLocation(rand.nextDouble() * 100, rand.nextDouble() * 100);
+      points.add(p);
+    }
+    Constraint.setPinned(a, true);
+    List<Constraint> cons = new ArrayList<Constraint>();
+    cons.add(new DistanceConstraint(a, b, new NumericValue(50)));
+    cons.add(new DistanceConstraint(b, c, new NumericValue(50)));
+    cons.add(new AngleConstraint(a, b, c, new NumericValue(Math.toRadians(90))));
+    double ax = a.getX();
+    double ay = a.getY();
+    LevenbergMarquardt lm = new LevenbergMarquardt(points, cons);
+    assertEquals(2, lm.getFreePoints().length);
+    for (int i = 0; i < 50 && lm.getCost() > 1e-12; i++) {
+      lm.iterate();
+    }
+    assertTrue("cost " + lm.getCost(), lm.getCost() < 1e-12);
+    for (Constraint con : cons) {
+      assertEquals(0, con.measureError(), 1e-5);
+    }
+    assertEquals(ax, a.getX());
+    assertEquals(ay, a.getY());
+  }
+
+  public void testSolveSquareWithPins() {
+    List<Pt> points = new ArrayList<Pt>();
+    Pt[] corners = new Pt[] {
+        pt("a", 0, 0), pt("b", 90, 10), pt("c", 110, 120), pt("d", -10, 80)
+    };
+    for (Pt p : corners) {
+      points.add(p);
+    }
+    List<Constraint> cons = new ArrayList<Constraint>();
+    for (int i = 0; i < 4; i++) {
+      cons.add(new DistanceConstraint(corners[i], corners[(i + 1) % 4], new NumericValue(100)));
+    }
+    cons.add(new OrientationConstraint(corners[0], corners[1], corners[1], corners[2],
+        new NumericValue(Math.toRadians(90))));
+    cons.add(new LocationConstraint(corners[0], new Pt(0, 0)));
+    cons.add(new OrientationConstraint(corners[0], corners[1], corners[2], corners[3],
+        new NumericValue(0)));
+    LevenbergMarquardt lm = new LevenbergMarquardt(points, cons);
+    for (int i = 0; i < 100 && lm.getCost() > 1e-12; i++) {
+      lm.iterate();
+    }
+    assertTrue("cost " + lm.getCost(), lm.getCost() < 1e-10);
+    assertEquals(100, corners[0].distance(corners[2]) / Math.sqrt(2), 1e-3);
+  }
+
+  public void testClusters() {
+    List<Pt> points = new ArrayList<Pt>();
+    List<Constraint> cons = new ArrayList<Constraint>();
+    Random rand = new Random(5);
+    Pt shared = pt("pinned", 0, 0);
+    Constraint.setPinned(shared, true);
+    points.add(shared);
+    // ten separate chains that only meet at a pinned point, so they are independent.
+    for (int chain = 0; chain < 10; chain++) {
+      Pt prev = shared;
+      for (int i = 0; i < 5; i++) {
+        double theta = rand.nextDouble() * Math.PI * 2;
+        double len = 10 + rand.nextDouble() * 20;
+        Pt next = pt("c" + chain + "." + i, prev.getX() + len * Math.cos(theta), prev.getY() + len
+            * Math.sin(theta));
+        points.add(next);
+        cons.add(new DistanceConstraint(prev, next, new NumericValue(20)));
+        prev = next;
+      }
+    }
+    List<ConstraintGraph.Cluster> clusters = ConstraintGraph.findClusters(points, cons);
+    assertEquals(10, clusters.size());
+    for (ConstraintGraph.Cluster cluster : clusters) {
+      assertEquals(5, cluster.getPoints().size());
+      assertEquals(5, cluster.getConstraints().size());
+    }
+    for (int i = 0; i < 200; i++) {
+      ConstraintGraph.iterate(clusters);
+    }
+    for (Constraint c : cons) {
+      assertEquals(0, c.measureError(), 1e-5);
+    }
+    assertTrue(Constraint.isPinned(shared));
+    assertEquals(0.0, shared.getX());
+
+    // joining two chains merges their clusters
+    cons.add(new DistanceConstraint(clusters.get(0).getPoints().get(4), clusters.get(1)
+        .getPoints().get(4), new NumericValue(10)));
+    assertEquals(9, ConstraintGraph.findClusters(points, cons).size());
+  }
+}
@@ -0,0 +1,56 @@
+package org.six11.util.solve;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks that generated problems survive a trip through JSON and can be solved.
+ */
+public class TestProblemGenerator extends TestCase {
+
+  public void testRoundTrip() throws Exception {
+    ProblemGenerator gen = new ProblemGenerator(3, 2);
+    for (ProblemGenerator.Shape shape : ProblemGenerator.Shape.values()) {
+      VariableBank vars = gen.make(shape, 5);
+      StringWriter out = new StringWriter();
+      ProblemGenerator.write(vars, out);
+      VariableBank copy = ProblemGenerator.read(new StringReader(out.toString()));
+      assertEquals(shape.toString(), vars.getPoints().size(), copy.getPoints().size());
+      assertEquals(shape.toString(), vars.getConstraints().size(), copy.getConstraints().size());
+      for (int i = 0; i < vars.getPoints().size(); i++) {
+        Pt pt = vars.getPoints().get(i);
+        Pt other = copy.getPoints().get(i);
+        assertEquals(pt.getX(), other.getX(), 1e-9);
+        assertEquals(pt.getY(), other.getY(), 1e-9);
+        assertEquals(Constraint.isPinned(pt), Constraint.isPinned(other));
+      }
+      for (int i = 0; i < vars.getConstraints().size(); i++) {
+        assertEquals(vars.getConstraints().get(i).measureError(), copy.getConstraints().get(i)
+            .measureError(), 1e-6);
+      }
+    }
+  }
+
+  public void testSolvable() {
+    VariableBank vars = new ProblemGenerator(7, 0).make(ProblemGenerator.Shape.Grid, 4);
+    for (Constraint c : vars.getConstraints()) {
+      assertEquals(c.getType(), 0, c.measureError(), 1e-6);
+    }
+    vars = new ProblemGenerator(7, 3).make(ProblemGenerator.Shape.OverConstrained, 6);
+    ConstraintSolver solver = new ConstraintSolver();
+    solver.setMode(ConstraintSolver.Mode.LevenbergMarquardt);
+    solver.setPublishHints(false);
+    for (Pt pt : vars.getPoints()) {
+      solver.addPoint(pt);
+    }
+    for (Constraint c : vars.getConstraints()) {
+      solver.addConstraint(c);
+    }
+    SolveResult result = solver.solve(500, 0, 1e-4);
+    assertTrue(result.toString(), result.isSolved());
+  }
+}
@@ -23,6 +23,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -74,6 +75,10 @@ public class TestSolveUI {
   private static final String ACTION_SAVE = "save";
   private static final String ACTION_OPEN = "open";
   private static final String PREF_LAST_DIRECTORY = "lastDirectory";
+  // while dragging, re-solve points this many constraints away, for at most 4 ms per event
+  private static final int DRAG_HOPS = 2;
+  private static final long DRAG_BUDGET_NANOS = 4000000L;
+  private static final double DRAG_TOLERANCE = 0.0001;
 
   Map<String, Action> actions;
   File currentFile;
@@ -128,6 +133,8 @@ public class TestSolveUI {
       public void mouseDragged(MouseEvent ev) {
         if (dragPt != null) {
           dragPt.setLocation(ev.getX(), ev.getY());
+          main.solveNear(Collections.singleton(dragPt), DRAG_HOPS, DRAG_BUDGET_NANOS,
+              DRAG_TOLERANCE);
           canvas.repaint();
         }
       }
@@ -272,6 +279,7 @@ public class TestSolveUI {
           } else {
             bug("Manipulator is not new. SO i should save to the existing constraint");
             currentManipulator.getConstraint().assume(currentManipulator, main.vars);
+            main.vars.constraintChanged(currentManipulator.getConstraint());
           }
         } else {
           bug("current manipulator is null!");
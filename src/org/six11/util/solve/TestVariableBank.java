@@ -0,0 +1,85 @@
+package org.six11.util.solve;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks that VariableBank's indexes follow changes made through its lists.
+ */
+public class TestVariableBank extends TestCase {
+
+  private static Pt pt(String name, double x, double y) {
+    Pt ret = new Pt(x, y);
+    ConstraintSolver.setName(ret, name);
+    return ret;
+  }
+
+  public void testIndexes() {
+    VariableBank vars = new VariableBank();
+    Pt a = pt("a", 0, 0);
+    Pt b = pt("b", 10, 0);
+    Pt c = pt("c", 10, 10);
+    Pt twin = pt("twin", 0, 0); // same coordinates as a, but a different point
+    vars.getPoints().add(a);
+    vars.getPoints().add(b);
+    vars.getPoints().add(c);
+    assertTrue(vars.hasPoint(a));
+    assertFalse(vars.hasPoint(twin));
+    assertFalse(vars.getPoints().contains(twin));
+    assertSame(b, vars.getPointWithName("b"));
+    assertNull(vars.getPointWithName("nobody"));
+
+    Constraint ab = new DistanceConstraint(a, b, new NumericValue(10));
+    Constraint bc = new DistanceConstraint(b, c, new NumericValue(10));
+    Constraint angle = new AngleConstraint(a, c, b, new NumericValue(Math.PI / 2));
+    vars.getConstraints().add(ab);
+    vars.getConstraints().add(bc);
+    vars.getConstraints().add(angle);
+    assertSame(bc, vars.getConstraintWithID(bc.getID()));
+    assertEquals(3, vars.getConstraintsInvolving(b).size());
+    assertEquals(2, vars.getConstraintsInvolving(a).size());
+    assertEquals(2, vars.getConstraintsOfType(DistanceConstraint.class).size());
+    assertEquals(3, vars.getConstraintsOfType(Constraint.class).size());
+
+    Set<VariableBank.ConstraintFilter> filters = new HashSet<VariableBank.ConstraintFilter>();
+    filters.add(VariableBank.getTypeFilter(AngleConstraint.class));
+    assertEquals(1, vars.searchConstraints(filters).size());
+
+    // removing through an iterator updates the indexes
+    for (Iterator<Constraint> it = vars.getConstraints().iterator(); it.hasNext();) {
+      if (it.next() == ab) {
+        it.remove();
+      }
+    }
+    assertEquals(1, vars.getConstraintsInvolving(a).size());
+    assertEquals(1, vars.getConstraintsOfType(DistanceConstraint.class).size());
+
+    // renaming a point after it was added
+    ConstraintSolver.setName(c, "see");
+    assertSame(c, vars.getPointWithName("see"));
+    assertNull(vars.getPointWithName("c"));
+
+    // a constraint that changes its points in place
+    bc.replace(c, twin);
+    vars.constraintChanged(bc);
+    assertEquals(1, vars.getConstraintsInvolving(c).size()); // only the angle is left
+    assertEquals(1, vars.getConstraintsInvolving(twin).size());
+
+    // removing a point by identity leaves its look-alike alone
+    vars.getPoints().add(twin);
+    vars.getPoints().remove(twin);
+    assertTrue(vars.hasPoint(a));
+    assertFalse(vars.hasPoint(twin));
+
+    vars.clear();
+    List<Constraint> none = vars.getConstraintsInvolving(b);
+    assertTrue(none.isEmpty());
+    assertFalse(vars.hasPoint(a));
+  }
+}
@@ -1,27 +1,58 @@
 package org.six11.util.solve;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import static org.six11.util.Debug.bug;
 
 import org.six11.util.pen.Pt;
 
+/**
+ * The points and constraints a solver works on. The lists returned by getPoints() and
+ * getConstraints() can be changed directly, and the bank keeps a few indexes up to date as they
+ * are: point name to point, constraint id to constraint, point to the constraints that involve it,
+ * and constraint class to constraints. Membership (contains(), hasPoint()) means the very same
+ * object, not one with equal coordinates.
+ *
+ * Constraints can change which points they refer to (see Constraint.replace() and
+ * Constraint.remove()). Call constraintChanged() afterwards so the point index follows.
+ */
 public class VariableBank {
 
-  private List<Pt> points;
-  private List<Constraint> constraints;
-  
+  private final PointList points;
+  private final ConstraintList constraints;
+
+  private final Map<Pt, Integer> pointCount; // how many times each point is in the list
+  private final Map<String, Pt> names;
+  private final Map<Constraint, Integer> constraintCount;
+  private final Map<Integer, Constraint> ids;
+  private final Map<Class<?>, List<Constraint>> types;
+  private final Map<Pt, List<Constraint>> incident;
+  private final Map<Constraint, Pt[]> indexedPoints; // what each constraint was indexed under
+
   public VariableBank() {
-    points = new ArrayList<Pt>();
-    constraints = new ArrayList<Constraint>();
+    points = new PointList();
+    constraints = new ConstraintList();
+    pointCount = new IdentityHashMap<Pt, Integer>();
+    names = new HashMap<String, Pt>();
+    constraintCount = new IdentityHashMap<Constraint, Integer>();
+    ids = new HashMap<Integer, Constraint>();
+    types = new LinkedHashMap<Class<?>, List<Constraint>>();
+    incident = new IdentityHashMap<Pt, List<Constraint>>();
+    indexedPoints = new IdentityHashMap<Constraint, Pt[]>();
   }
 
   public List<Constraint> getConstraints() {
     return constraints;
   }
-  
+
   public List<Pt> getPoints() {
     return points;
   }
@@ -30,57 +61,116 @@ public class VariableBank {
     points.clear();
     getConstraints().clear();
   }
-  
+
   public Pt getPointWithName(String n) {
-    Pt ret = null;
+    Pt ret = names.get(n);
+    if (ret == null || !n.equals(ret.getString("name"))) {
+      // names can change after a point is added, so the index may be stale.
+      reindexNames();
+      ret = names.get(n);
+    }
+    return ret;
+  }
+
+  private void reindexNames() {
+    names.clear();
     for (Pt pt : points) {
-      if (pt.getString("name").equals(n)) {
-        ret = pt;
-        break;
+      indexName(pt);
+    }
+  }
+
+  private void indexName(Pt pt) {
+    String name = pt.getString("name");
+    if (name != null && !names.containsKey(name)) {
+      names.put(name, pt);
+    }
+  }
+
+  public boolean hasPoint(Pt pt) {
+    return pointCount.containsKey(pt);
+  }
+
+  /**
+   * The constraints that involve the given point, according to the index. Don't change the
+   * returned list.
+   */
+  public List<Constraint> getConstraintsInvolving(Pt pt) {
+    List<Constraint> ret = incident.get(pt);
+    if (ret == null) {
+      ret = Collections.emptyList();
+    }
+    return ret;
+  }
+
+  /**
+   * The constraints that are instances of the given class (including subclasses).
+   */
+  public List<Constraint> getConstraintsOfType(Class<? extends Constraint> constraintClass) {
+    List<Constraint> ret = new ArrayList<Constraint>();
+    for (Map.Entry<Class<?>, List<Constraint>> entry : types.entrySet()) {
+      if (constraintClass.isAssignableFrom(entry.getKey())) {
+        ret.addAll(entry.getValue());
       }
     }
     return ret;
   }
-  
-  public boolean hasPoint(Pt pt) {
-    return points.contains(pt);
+
+  /**
+   * Re-reads which points the given constraint refers to. Call this after changing a constraint's
+   * points in place.
+   */
+  public void constraintChanged(Constraint c) {
+    if (constraintCount.containsKey(c)) {
+      unindexIncidence(c);
+      indexIncidence(c);
+    }
   }
-  
+
   public Set<Constraint> searchConstraints(Set<ConstraintFilter> filters) {
-    Set<Constraint> ret = new HashSet<Constraint>();
-    ret.addAll(getConstraints());
+    Set<Constraint> ret = null;
+    for (ConstraintFilter filter : filters) {
+      if (filter instanceof TypeFilter) { // start from the type index rather than everything
+        ret = new HashSet<Constraint>(getConstraintsOfType(((TypeFilter) filter).constraintClass));
+        break;
+      }
+    }
+    if (ret == null) {
+      ret = new HashSet<Constraint>(getConstraints());
+    }
     for (ConstraintFilter filter : filters) {
       ret = filter.filter(ret);
     }
     return ret;
   }
-  
+
   public static ConstraintFilter getTypeFilter(final Class<? extends Constraint> constraintClass) {
-    return new ConstraintFilter() {
-      public Set<Constraint> filter(Set<Constraint> input) {
-        Set<Constraint> ret = new HashSet<Constraint>();
-        for (Constraint c : input) {
-          if (constraintClass.isAssignableFrom(c.getClass())) {
-            ret.add(c);
-          }
-        }
-        return ret;
-      }      
-    };
+    return new TypeFilter(constraintClass);
   }
-  
+
   public abstract static class ConstraintFilter {
     public abstract Set<Constraint> filter(Set<Constraint> input);
   }
 
-  public Constraint getConstraintWithID(int cID) {
-    Constraint ret = null;
-    for (Constraint c : getConstraints()) {
-      if (c.getID() == cID) {
-        ret = c;
-        break;
+  private static class TypeFilter extends ConstraintFilter {
+    final Class<? extends Constraint> constraintClass;
+
+    TypeFilter(Class<? extends Constraint> constraintClass) {
+      this.constraintClass = constraintClass;
+    }
+
+    public Set<Constraint> filter(Set<Constraint> input) {
+      Set<Constraint> ret = new HashSet<Constraint>();
+      for (Constraint c : input) {
+        if (constraintClass.isAssignableFrom(c.getClass())) {
+          ret.add(c);
+        }
       }
+      return ret;
     }
+  }
+
+  public Constraint getConstraintWithID(int cID) {
+    Constraint ret = ids.get(cID);
     if (ret == null) {
       bug("Warning: variable bank does not contain a constraint with the id " + cID + ". Here's what I have:");
       for (Constraint c : getConstraints()){
@@ -89,4 +179,224 @@ public class VariableBank {
     }
     return ret;
   }
+
+  private static <T> boolean increment(Map<T, Integer> counts, T key) {
+    Integer n = counts.get(key);
+    counts.put(key, n == null ? 1 : n + 1);
+    return n == null;
+  }
+
+  /**
+   * Returns true if that was the last one.
+   */
+  private static <T> boolean decrement(Map<T, Integer> counts, T key) {
+    Integer n = counts.get(key);
+    if (n == null || n <= 1) {
+      counts.remove(key);
+      return true;
+    }
+    counts.put(key, n - 1);
+    return false;
+  }
+
+  private static <K, V> void addTo(Map<K, List<V>> map, K key, V value) {
+    List<V> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<V>(4);
+      map.put(key, list);
+    }
+    list.add(value);
+  }
+
+  private static <K, V> void removeFrom(Map<K, List<V>> map, K key, V value) {
+    List<V> list = map.get(key);
+    if (list != null) {
+      for (int i = 0; i < list.size(); i++) {
+        if (list.get(i) == value) {
+          list.remove(i);
+          break;
+        }
+      }
+      if (list.isEmpty()) {
+        map.remove(key);
+      }
+    }
+  }
+
+  private void indexIncidence(Constraint c) {
+    Pt[] related = c.getRelatedPoints();
+    Map<Pt, Boolean> once = new IdentityHashMap<Pt, Boolean>();
+    for (Pt pt : related) {
+      if (once.put(pt, Boolean.TRUE) == null) {
+        addTo(incident, pt, c);
+      }
+    }
+    indexedPoints.put(c, related);
+  }
+
+  private void unindexIncidence(Constraint c) {
+    Pt[] related = indexedPoints.remove(c);
+    if (related != null) {
+      Map<Pt, Boolean> once = new IdentityHashMap<Pt, Boolean>();
+      for (Pt pt : related) {
+        if (once.put(pt, Boolean.TRUE) == null) {
+          removeFrom(incident, pt, c);
+        }
+      }
+    }
+  }
+
+  private void indexConstraint(Constraint c) {
+    if (increment(constraintCount, c)) {
+      if (!ids.containsKey(c.getID())) {
+        ids.put(c.getID(), c);
+      }
+      addTo(types, c.getClass(), c);
+      indexIncidence(c);
+    }
+  }
+
+  private void unindexConstraint(Constraint c) {
+    if (decrement(constraintCount, c)) {
+      if (ids.get(c.getID()) == c) {
+        ids.remove(c.getID());
+        for (Constraint other : constraints) { // another constraint may share the id
+          if (other != c && other.getID() == c.getID()) {
+            ids.put(other.getID(), other);
+            break;
+          }
+        }
+      }
+      removeFrom(types, c.getClass(), c);
+      unindexIncidence(c);
+    }
+  }
+
+  /**
+   * Finds an element by identity rather than equals(), which for Pt compares coordinates.
+   */
+  private static int identityIndex(List<?> list, Object o) {
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i) == o) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private class PointList extends AbstractList<Pt> {
+    private final ArrayList<Pt> items = new ArrayList<Pt>();
+
+    public Pt get(int index) {
+      return items.get(index);
+    }
+
+    public int size() {
+      return items.size();
+    }
+
+    public void add(int index, Pt pt) {
+      items.add(index, pt);
+      modCount++;
+      increment(pointCount, pt);
+      indexName(pt);
+    }
+
+    public Pt set(int index, Pt pt) {
+      Pt old = items.set(index, pt);
+      forget(old);
+      increment(pointCount, pt);
+      indexName(pt);
+      return old;
+    }
+
+    public Pt remove(int index) {
+      Pt old = items.remove(index);
+      modCount++;
+      forget(old);
+      return old;
+    }
+
+    private void forget(Pt pt) {
+      if (decrement(pointCount, pt)) {
+        String name = pt.getString("name");
+        if (name != null && names.get(name) == pt) {
+          names.remove(name);
+        }
+      }
+    }
+
+    public boolean remove(Object o) {
+      int i = identityIndex(items, o);
+      if (i >= 0) {
+        remove(i);
+      }
+      return i >= 0;
+    }
+
+    public boolean contains(Object o) {
+      return pointCount.containsKey(o);
+    }
+
+    public void clear() {
+      items.clear();
+      modCount++;
+      pointCount.clear();
+      names.clear();
+    }
+  }
+
+  private class ConstraintList extends AbstractList<Constraint> {
+    private final ArrayList<Constraint> items = new ArrayList<Constraint>();
+
+    public Constraint get(int index) {
+      return items.get(index);
+    }
+
+    public int size() {
+      return items.size();
+    }
+
+    public void add(int index, Constraint c) {
+      items.add(index, c);
+      modCount++;
+      indexConstraint(c);
+    }
+
+    public Constraint set(int index, Constraint c) {
+      Constraint old = items.set(index, c);
+      unindexConstraint(old);
+      indexConstraint(c);
+      return old;
+    }
+
+    public Constraint remove(int index) {
+      Constraint old = items.remove(index);
+      modCount++;
+      unindexConstraint(old);
+      return old;
+    }
+
+    public boolean remove(Object o) {
+      int i = identityIndex(items, o);
+      if (i >= 0) {
+        remove(i);
+      }
+      return i >= 0;
+    }
+
+    public boolean contains(Object o) {
+      return constraintCount.containsKey(o);
+    }
+
+    public void clear() {
+      items.clear();
+      modCount++;
+      constraintCount.clear();
+      ids.clear();
+      types.clear();
+      incident.clear();
+      indexedPoints.clear();
+    }
+  }
 }
@@ -1,8 +1,12 @@
 package org.six11.util.spud;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.six11.util.Debug;
@@ -10,6 +14,7 @@ import org.six11.util.Debug;
 public class ConstraintModel {
 
   private List<Constraint> constraints;
+  private Stats lastStats;
 
   public ConstraintModel() {
     this.constraints = new ArrayList<Constraint>();
@@ -32,43 +37,150 @@ public class ConstraintModel {
     return buf.toString();
   }
 
-  public void solve() {
-    long startTime = System.currentTimeMillis();
-    int lastUnsolved = countUnsolved();
-    boolean progress;
-    do {
-      solveRound();
-      int thisUnsolved = countUnsolved();
-      progress = thisUnsolved < lastUnsolved;
-      lastUnsolved = thisUnsolved;
-    } while (lastUnsolved > 0 && progress);
-    long endTime = System.currentTimeMillis();
-    bug("solve() complete: " + (endTime - startTime) + " ms, " + lastUnsolved
-        + " unsolved variables");
-  }
-
-  private int countUnsolved() {
-    int numUnsolved = 0;
-    Set<Geom> vars = new HashSet<Geom>();
+  /**
+   * Solves as much of the model as possible. Every constraint is tried once. After that a constraint
+   * is only tried again when one of the geometry values in its 'geometry' map becomes solved, since
+   * that is the only thing that can let it make more progress. Work is proportional to the number
+   * of constraints and the number of times their geometry becomes known, not to the number of
+   * constraints times the number of rounds.
+   */
+  public Stats solve() {
+    long startTime = System.nanoTime();
+    Stats stats = new Stats();
+    Map<Geom, List<Constraint>> users = new IdentityHashMap<Geom, List<Constraint>>();
+    Set<Geom> known = Collections.newSetFromMap(new IdentityHashMap<Geom, Boolean>());
+    for (Constraint c : constraints) {
+      index(c, users, known);
+    }
+    Set<Constraint> queued = Collections.newSetFromMap(new IdentityHashMap<Constraint, Boolean>());
+    LinkedList<Constraint> agenda = new LinkedList<Constraint>(constraints);
+    queued.addAll(constraints);
+    while (!agenda.isEmpty()) {
+      Constraint c = agenda.removeFirst();
+      queued.remove(c);
+      if (c.isSolved()) {
+        continue;
+      }
+      c.solveSafely();
+      stats.evaluations++;
+      for (Geom g : c.geometry.values()) {
+        if (g != null && g.isSolved() && known.add(g)) {
+          stats.geometrySolved++;
+          List<Constraint> affected = users.get(g);
+          if (affected == null) { // made by the constraint while solving, e.g. a CDistance circle
+            index(c, users, known);
+            continue;
+          }
+          for (Constraint other : affected) {
+            if (!other.isSolved() && queued.add(other)) {
+              agenda.addLast(other);
+              stats.enqueued++;
+            }
+          }
+        }
+      }
+    }
     for (Constraint c : constraints) {
       if (!c.isSolved()) {
-        numUnsolved++;
+        stats.unsolvedConstraints++;
       }
-      for (Geom value : c.geometry.values()) {
-        vars.add(value);
+    }
+    for (Geom g : users.keySet()) {
+      if (!g.isSolved()) {
+        stats.unsolvedGeometry++;
       }
     }
-    for (Geom var : vars) {
-      if (var != null && !var.isSolved()) {
-        numUnsolved++;
+    stats.constraints = constraints.size();
+    stats.nanos = System.nanoTime() - startTime;
+    lastStats = stats;
+    bug("solve() complete: " + stats);
+    return stats;
+  }
+
+  /**
+   * Records which constraints refer to each of c's geometry values, and which of those are already
+   * solved.
+   */
+  private static void index(Constraint c, Map<Geom, List<Constraint>> users, Set<Geom> known) {
+    for (Geom g : c.geometry.values()) {
+      if (g != null) {
+        List<Constraint> list = users.get(g);
+        if (list == null) {
+          list = new ArrayList<Constraint>(2);
+          users.put(g, list);
+          if (g.isSolved()) {
+            known.add(g);
+          }
+        }
+        if (!list.contains(c)) {
+          list.add(c);
+        }
       }
     }
-    return numUnsolved;
   }
 
-  private void solveRound() {
-    for (Constraint c : constraints) {
-      c.solveSafely();
+  /**
+   * The report from the most recent solve(), or null if it hasn't been solved.
+   */
+  public Stats getLastStats() {
+    return lastStats;
+  }
+
+  /**
+   * What happened during one solve().
+   */
+  public static class Stats {
+    int constraints;
+    int evaluations;
+    int enqueued;
+    int geometrySolved;
+    int unsolvedConstraints;
+    int unsolvedGeometry;
+    long nanos;
+
+    public int getConstraintCount() {
+      return constraints;
+    }
+
+    /**
+     * How many times a constraint's solve() was called.
+     */
+    public int getEvaluations() {
+      return evaluations;
+    }
+
+    /**
+     * How many times a constraint was put back on the agenda because some of its geometry became
+     * solved.
+     */
+    public int getEnqueued() {
+      return enqueued;
+    }
+
+    /**
+     * How many geometry values went from unknown to solved.
+     */
+    public int getGeometrySolved() {
+      return geometrySolved;
+    }
+
+    public int getUnsolvedConstraints() {
+      return unsolvedConstraints;
+    }
+
+    public int getUnsolvedGeometry() {
+      return unsolvedGeometry;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    public String toString() {
+      return String.format("%.3f ms, %d constraints, %d evaluations (%d re-queued), "
+          + "%d geometry solved, %d constraints and %d geometry unsolved", nanos / 1e6,
+          constraints, evaluations, enqueued, geometrySolved, unsolvedConstraints,
+          unsolvedGeometry);
     }
   }
 
@@ -0,0 +1,36 @@
+package org.six11.util.spud;
+
+import junit.framework.TestCase;
+
+import org.six11.util.pen.Pt;
+
+/**
+ * Checks that ConstraintModel.solve() only revisits constraints when their geometry changes.
+ */
+public class TestConstraintModel extends TestCase {
+
+  public void testChainOfLines() {
+    ConstraintModel model = new ConstraintModel();
+    int n = 2000;
+    CPoint[] pts = new CPoint[n];
+    CLine[] lines = new CLine[n - 1];
+    // lines are added before the points are placed, so most of the work happens on re-queues.
+    pts[0] = new CPoint();
+    for (int i = 0; i < n - 1; i++) {
+      pts[i + 1] = new CPoint();
+      lines[i] = CLine.makeLine(model, pts[i], pts[i + 1]);
+    }
+    for (int i = n - 1; i >= 0; i--) {
+      model.addConstraint(new CPointLocation(pts[i], new Pt(i * 10, (i % 2) * 5)));
+    }
+    ConstraintModel.Stats stats = model.solve();
+    assertSame(stats, model.getLastStats());
+    assertEquals(0, stats.getUnsolvedConstraints());
+    assertEquals(0, stats.getUnsolvedGeometry());
+    assertEquals(3 * n - 2, stats.getConstraintCount());
+    assertTrue(stats.toString(), stats.getEvaluations() <= 3 * stats.getConstraintCount());
+    for (int i = 0; i < n - 1; i++) {
+      assertTrue(lines[i].isSolved());
+    }
+  }
+}
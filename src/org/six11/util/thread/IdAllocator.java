@@ -0,0 +1,87 @@
+// $Id$
+
+package org.six11.util.thread;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out unique integer ids without making every caller fight over a shared counter. Each
+ * thread reserves a block of ids at a time from a shared AtomicInteger and then counts through its
+ * block privately, so the shared cache line is only touched once per block.
+ *
+ * Ids are unique across threads and increase within any one thread, but ids from different threads
+ * interleave, so don't count on a global ordering.
+ *
+ * If somebody constructs an object with an explicit id (e.g. when reading from a file), call
+ * reserveThrough(id) so that id is never handed out again.
+ *
+ * @author Gabe Johnson <johnsogg@cmu.edu>
+ */
+public class IdAllocator {
+
+  public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+  private final AtomicInteger next;
+  private final int blockSize;
+  private final ThreadLocal<int[]> block;
+
+  /**
+   * Ids at or below this have been claimed explicitly, so any thread whose block started at or
+   * below it has to throw its block away.
+   */
+  private final AtomicInteger floor;
+
+  public IdAllocator(int firstId) {
+    this(firstId, DEFAULT_BLOCK_SIZE);
+  }
+
+  public IdAllocator(int firstId, int blockSize) {
+    this.next = new AtomicInteger(firstId);
+    this.blockSize = Math.max(1, blockSize);
+    this.floor = new AtomicInteger(firstId - 1);
+    this.block = new ThreadLocal<int[]>() {
+      protected int[] initialValue() {
+        // { next id to hand out, one past the last id in the block }
+        return new int[] {
+            0, 0
+        };
+      }
+    };
+  }
+
+  /**
+   * Returns an id that nobody else has been given.
+   */
+  public int nextId() {
+    int[] b = block.get();
+    if (b[0] >= b[1] || b[0] <= floor.get()) {
+      int start = next.getAndAdd(blockSize);
+      b[0] = start;
+      b[1] = start + blockSize;
+    }
+    return b[0]++;
+  }
+
+  /**
+   * Makes sure that no id less than or equal to the given one is handed out in the future.
+   */
+  public void reserveThrough(int id) {
+    raise(next, id + 1);
+    raise(floor, id);
+  }
+
+  private static void raise(AtomicInteger val, int atLeast) {
+    int cur = val.get();
+    while (cur < atLeast && !val.compareAndSet(cur, atLeast)) {
+      cur = val.get();
+    }
+  }
+
+  /**
+   * Returns the next id that will be reserved from the shared pool. Every id handed out so far is
+   * less than this.
+   */
+  public int getHighWater() {
+    return next.get();
+  }
+}